@@ -0,0 +1,271 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Benchmarks for GpslConverter, giving a baseline to check changes against.
+ * For each of the small, medium, and large generated files it measures
+ * parse(File), parse(File) from a binary sidecar, save(String, GpxType, File)
+ * sequentially and in parallel, getXMLGregorianCalendarFromTimeStamp, and
+ * getTimeFromXMLGregorianCalendar. Each benchmark is warmed up and then run
+ * for several iterations, and the best time per operation, the throughput,
+ * and the bytes allocated per operation and per second are reported. The
+ * allocation is that of the benchmark thread, as reported by the HotSpot
+ * ThreadMXBean, so it does not include work done on other threads when
+ * parallel parsing or saving is on.<br>
+ * <br>
+ * Run with a large heap for the large file, e.g. -Xmx2g.<br>
+ * <br>
+ * Usage: GpslBenchmark [small,medium,large] [iterations] [tab|comma] [dir]
+ */
+public class GpslBenchmark
+{
+    private static final int WARMUP_ITERATIONS = 3;
+    /** The most time stamps used by the time conversion benchmarks. */
+    private static final int MAX_TIMES = 1000000;
+
+    private final int iterations;
+    private final ThreadMXBean threadBean;
+    /** Keeps the results live so the work is not optimized away. */
+    private long sink;
+
+    /**
+     * Constructor.
+     *
+     * @param iterations The number of measured iterations.
+     */
+    public GpslBenchmark(int iterations) {
+        this.iterations = iterations;
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            ((com.sun.management.ThreadMXBean)bean)
+                .setThreadAllocatedMemoryEnabled(true);
+        }
+        threadBean = bean;
+    }
+
+    /**
+     * An operation to measure.
+     */
+    private interface Operation
+    {
+        /**
+         * Does the operation once.
+         *
+         * @return A value to keep live.
+         * @throws Throwable
+         */
+        long run() throws Throwable;
+    }
+
+    /**
+     * Runs the benchmarks on a file.
+     *
+     * @param label The label for the output.
+     * @param file The file.
+     * @throws Throwable
+     */
+    public void run(String label, final File file) throws Throwable {
+        final GpslConverter converter = new GpslConverter();
+        final GpxType gpx = converter.parse(file);
+        final File saveFile = new File(file.getPath() + ".saved.gpsl");
+        final List<String> timeStamps = new ArrayList<String>();
+        final List<XMLGregorianCalendar> xgcals =
+            new ArrayList<XMLGregorianCalendar>();
+        final String fileOffset = readOffset(file);
+        collectTimes(file, fileOffset, gpx, timeStamps, xgcals);
+        final double dOffset = Double.parseDouble(fileOffset);
+
+        System.out.println();
+        System.out.println(label + ": " + file.length() + " bytes, "
+            + xgcals.size() + " timed trackpoints used, GMTOffset="
+            + fileOffset);
+        System.out.printf("%-38s %12s %12s %14s %12s%n", "Benchmark",
+            "ms/op", "ops/s", "bytes/op", "MB/s alloc");
+
+        measure("parse(File)", new Operation() {
+            public long run() throws Throwable {
+                return converter.parse(file).getTrk().size();
+            }
+        });
+        final GpslSidecar sidecar = new GpslSidecar(new File(
+            System.getProperty("java.io.tmpdir")));
+        final GpslConverter sidecarConverter = new GpslConverter();
+        sidecarConverter.setSidecar(sidecar);
+        measure("parse(File) from sidecar", new Operation() {
+            public long run() throws Throwable {
+                return sidecarConverter.parse(file).getTrk().size();
+            }
+        });
+        sidecar.invalidate(file);
+        measure("save(String, GpxType, File)", new Operation() {
+            public long run() throws Throwable {
+                converter.save("GpslBenchmark", gpx, saveFile);
+                return saveFile.length();
+            }
+        });
+        final GpslConverter parallelConverter = new GpslConverter();
+        parallelConverter.getSaveOptions().setParallel(true);
+        measure("save(String, GpxType, File) parallel", new Operation() {
+            public long run() throws Throwable {
+                parallelConverter.save("GpslBenchmark", gpx, saveFile);
+                return saveFile.length();
+            }
+        });
+        measure("getXMLGregorianCalendarFromTimeStamp", new Operation() {
+            public long run() throws Throwable {
+                long sum = 0;
+                for(String time : timeStamps) {
+                    XMLGregorianCalendar xgcal = GpslConverter
+                        .getXMLGregorianCalendarFromTimeStamp(time, fileOffset);
+                    sum += xgcal == null ? 0 : xgcal.getSecond();
+                }
+                return sum;
+            }
+        });
+        measure("getTimeFromXMLGregorianCalendar", new Operation() {
+            public long run() throws Throwable {
+                long sum = 0;
+                for(XMLGregorianCalendar xgcal : xgcals) {
+                    sum += GpslConverter.getTimeFromXMLGregorianCalendar(
+                        xgcal, dOffset).charAt(18);
+                }
+                return sum;
+            }
+        });
+        if(xgcals.size() > 0) {
+            System.out.println("(The time conversions are for all "
+                + xgcals.size() + " times per op)");
+        }
+        saveFile.delete();
+    }
+
+    /**
+     * Measures an operation and prints the results.
+     *
+     * @param name The name to print.
+     * @param op The operation.
+     * @throws Throwable
+     */
+    private void measure(String name, Operation op) throws Throwable {
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += op.run();
+        }
+        long bestNanos = Long.MAX_VALUE;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for(int i = 0; i < iterations; i++) {
+            System.gc();
+            long bytes0 = getAllocatedBytes();
+            long start = System.nanoTime();
+            sink += op.run();
+            long nanos = System.nanoTime() - start;
+            long bytes1 = getAllocatedBytes();
+            bestNanos = Math.min(bestNanos, nanos);
+            totalNanos += nanos;
+            totalBytes += bytes1 - bytes0;
+        }
+        if(getAllocatedBytes() < 0) {
+            System.out.printf("%-38s %12.3f %12.2f %14s %12s%n", name,
+                bestNanos / 1e6, 1e9 / bestNanos, "n/a", "n/a");
+        } else {
+            System.out.printf("%-38s %12.3f %12.2f %14d %12.1f%n", name,
+                bestNanos / 1e6, 1e9 / bestNanos, totalBytes / iterations,
+                totalBytes / 1048576. / (totalNanos / 1e9));
+        }
+    }
+
+    /**
+     * @return The bytes allocated by this thread or -1 if not available.
+     */
+    private long getAllocatedBytes() {
+        if(threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Collects the time stamps from the file and the trackpoint times from the
+     * GpxType, up to MAX_TIMES of each.
+     */
+    private static void collectTimes(File file, String offset, GpxType gpx,
+        final List<String> timeStamps, List<XMLGregorianCalendar> xgcals)
+        throws IOException {
+        for(TrkType trk : gpx.getTrk()) {
+            for(TrksegType seg : trk.getTrkseg()) {
+                for(WptType wpt : seg.getTrkpt()) {
+                    if(wpt.getTime() != null && xgcals.size() < MAX_TIMES) {
+                        xgcals.add(wpt.getTime());
+                    }
+                }
+            }
+        }
+        // Get the time stamps as they are in the file
+        final GpslTimeEncoder encoder = new GpslTimeEncoder(
+            Double.parseDouble(offset));
+        new GpslConverter().parse(file, new GpslHandlerAdapter() {
+            char[] buf = new char[GpslTimeEncoder.MAX_LENGTH];
+
+            @Override
+            public void onTrackpoint(double lat, double lon, double ele,
+                long time) {
+                if(time != GpslTimeDecoder.NO_TIME
+                    && timeStamps.size() < MAX_TIMES) {
+                    int len = encoder.encodeEpochSeconds(time, buf, 0);
+                    timeStamps.add(new String(buf, 0, len));
+                }
+            }
+        });
+    }
+
+    private static String readOffset(File file) throws IOException {
+        GpslReader reader = new GpslReader(file);
+        reader.read(new GpslHandlerAdapter());
+        return reader.getOffset();
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String[] sizes = (args.length > 0 ? args[0] : "small,medium,large")
+            .split(",");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        char delimiter = args.length > 2 && args[2].equalsIgnoreCase("comma")
+            ? ',' : '\t';
+        File dir = new File(args.length > 3 ? args[3]
+            : System.getProperty("java.io.tmpdir"));
+
+        GpslBenchmark benchmark = new GpslBenchmark(iterations);
+        System.out.println("GpslBenchmark: " + iterations + " iterations, "
+            + System.getProperty("java.vm.name") + " "
+            + System.getProperty("java.version") + ", "
+            + Runtime.getRuntime().availableProcessors() + " processors");
+        long seed = 1;
+        for(String size : sizes) {
+            GpslSampleGenerator generator = GpslSampleGenerator.forSize(size);
+            generator.setSeed(seed++);
+            generator.setDelimiter(delimiter);
+            File file = new File(dir, "GpslBenchmark-" + size + ".gpsl");
+            generator.generate(file);
+            try {
+                benchmark.run(size, file);
+            } finally {
+                file.delete();
+            }
+        }
+        System.out.println("(" + benchmark.sink + ")");
+    }
+
+}
@@ -0,0 +1,252 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates synthetic GPSL files for benchmarks. The same settings and seed
+ * always give the same file, apart from the Saved line, which is fixed. The
+ * lines are formatted with String.format, independently of GpslWriter.<br>
+ * <br>
+ * Usage: GpslSampleGenerator file small|medium|large [tab|comma] [seed]
+ */
+public class GpslSampleGenerator
+{
+    /** Offsets used in turn as the seed varies, including fractional ones. */
+    private static final double[] OFFSETS = {-5, -4, 0, 1, 5.5, -9.5, 5.75,
+        10};
+    private static final String[] SYMBOLS = {"Flag", "Dot", "Waypoint",
+        "Campground", "Summit"};
+    /** Seconds since the epoch of the first trackpoint, in 2011. */
+    private static final long START_TIME = 1300000000L;
+
+    private int nWaypoints = 100;
+    private int nRoutes = 5;
+    private int nRoutePoints = 20;
+    private int nTracks = 10;
+    private int nSegments = 2;
+    private int nSegmentPoints = 500;
+    private char delimiter = '\t';
+    private double offset = -5;
+    private String ls = "\r\n";
+    private long seed = 1;
+
+    /**
+     * Gets a generator for one of the standard sizes.
+     *
+     * @param size small (about 1000 trackpoints), medium (about 100,000), or
+     *            large (about 2,000,000).
+     * @return The generator.
+     */
+    public static GpslSampleGenerator forSize(String size) {
+        GpslSampleGenerator generator = new GpslSampleGenerator();
+        if(size.equalsIgnoreCase("small")) {
+            generator.setCounts(20, 2, 10, 2, 2, 250);
+        } else if(size.equalsIgnoreCase("medium")) {
+            generator.setCounts(200, 10, 50, 20, 5, 1000);
+        } else if(size.equalsIgnoreCase("large")) {
+            generator.setCounts(1000, 20, 100, 100, 10, 2000);
+        } else {
+            throw new IllegalArgumentException("Unknown size: " + size);
+        }
+        return generator;
+    }
+
+    /**
+     * Sets the number of each kind of item.
+     *
+     * @param nWaypoints The number of waypoints.
+     * @param nRoutes The number of routes.
+     * @param nRoutePoints The number of points in each route.
+     * @param nTracks The number of tracks.
+     * @param nSegments The number of segments in each track.
+     * @param nSegmentPoints The number of points in each segment.
+     */
+    public void setCounts(int nWaypoints, int nRoutes, int nRoutePoints,
+        int nTracks, int nSegments, int nSegmentPoints) {
+        this.nWaypoints = nWaypoints;
+        this.nRoutes = nRoutes;
+        this.nRoutePoints = nRoutePoints;
+        this.nTracks = nTracks;
+        this.nSegments = nSegments;
+        this.nSegmentPoints = nSegmentPoints;
+    }
+
+    /**
+     * Writes the file.
+     *
+     * @param file The file.
+     * @throws IOException
+     */
+    public void generate(File file) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file), 256 * 1024);
+        try {
+            generate(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the contents of the file.
+     *
+     * @param out The Writer.
+     * @throws IOException
+     */
+    public void generate(Writer out) throws IOException {
+        Random random = new Random(seed);
+        String d = String.valueOf(delimiter);
+        out.write(GpslConverter.GPSLINK_ID + ls);
+        out.write("Saved May 12, 2011 10:00:00a" + ls);
+        out.write("Delimiter=" + d + ls);
+        out.write("GMTOffset=" + offset + ls);
+
+        if(nWaypoints > 0) {
+            writeSectionHeader(out, "Waypoints", "Symbol");
+            for(int i = 0; i < nWaypoints; i++) {
+                writeWaypoint(out, random, "WPT" + i, 90 * random.nextDouble()
+                    - 45, 360 * random.nextDouble() - 180);
+            }
+        }
+
+        if(nRoutes > 0) {
+            writeSectionHeader(out, "Routes", "Symbol");
+            for(int i = 0; i < nRoutes; i++) {
+                out.write("R" + d + "Route " + i + ls);
+                double lat = 90 * random.nextDouble() - 45;
+                double lon = 360 * random.nextDouble() - 180;
+                for(int j = 0; j < nRoutePoints; j++) {
+                    lat += .01 * random.nextGaussian();
+                    lon += .01 * random.nextGaussian();
+                    writeWaypoint(out, random, "R" + i + "P" + j, lat, lon);
+                }
+            }
+        }
+
+        if(nTracks > 0) {
+            writeSectionHeader(out, "Tracks", "Time");
+            long time = START_TIME;
+            for(int i = 0; i < nTracks; i++) {
+                out.write("H" + d + "ACTIVE LOG " + i + ls);
+                double lat = 90 * random.nextDouble() - 45;
+                double lon = 360 * random.nextDouble() - 180;
+                double ele = 2000 * random.nextDouble();
+                for(int j = 0; j < nSegments; j++) {
+                    for(int k = 0; k < nSegmentPoints; k++) {
+                        lat += 1e-4 * random.nextGaussian();
+                        lon += 1e-4 * random.nextGaussian();
+                        ele += random.nextGaussian();
+                        time += 1 + random.nextInt(5);
+                        out.write(String.format(Locale.US,
+                            "T%s%s%s%.6f%s%.6f%s%.0f%s%s", d, k == 0 ? "Start"
+                                : "Cont", d, lat, d, lon, d, ele
+                                * GpslConverter.M2FT, d, formatTime(time))
+                            + ls);
+                    }
+                    // Leave a gap between segments
+                    time += 600 + random.nextInt(3600);
+                }
+                // The next track starts on the next day
+                time += 86400;
+            }
+        }
+    }
+
+    private void writeSectionHeader(Writer out, String section,
+        String lastColumn) throws IOException {
+        String d = String.valueOf(delimiter);
+        out.write(ls + section + ls);
+        out.write("Type" + d + "Name" + d + "Latitude" + d + "Longitude" + d
+            + "Alt" + d + lastColumn + ls);
+    }
+
+    private void writeWaypoint(Writer out, Random random, String name,
+        double lat, double lon) throws IOException {
+        String d = String.valueOf(delimiter);
+        out.write(String.format(Locale.US, "W%s%s%s%.6f%s%.6f%s%.0f%s%s", d,
+            name, d, lat, d, lon, d, 10000 * random.nextDouble() - 100, d,
+            SYMBOLS[random.nextInt(SYMBOLS.length)])
+            + ls);
+    }
+
+    /**
+     * Formats UTC seconds as a GPSL time stamp in the local time given by the
+     * offset.
+     *
+     * @param seconds The seconds.
+     * @return The time stamp.
+     */
+    private String formatTime(long seconds) {
+        long local = seconds + Math.round(3600 * offset);
+        long days = GpslTimeDecoder.floorDiv(local, 86400);
+        int secondOfDay = (int)(local - 86400 * days);
+        long ymd = GpslTimeDecoder.civilFromDays(days);
+        return String.format(Locale.US, "%02d/%02d/%04d %02d:%02d:%02d",
+            ymd / 100 % 100, ymd % 100, ymd / 10000, secondOfDay / 3600,
+            secondOfDay / 60 % 60, secondOfDay % 60);
+    }
+
+    /**
+     * @return The number of trackpoints that will be generated.
+     */
+    public long getTrackpointCount() {
+        return (long)nTracks * nSegments * nSegmentPoints;
+    }
+
+    /**
+     * @param delimiter The delimiter, TAB or comma.
+     */
+    public void setDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * @param offset The GMTOffset in hours.
+     */
+    public void setOffset(double offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @param ls The line separator.
+     */
+    public void setLineSeparator(String ls) {
+        this.ls = ls;
+    }
+
+    /**
+     * Sets the seed for the random values. The offset is also chosen from the
+     * seed. Call setOffset afterward to use a specific one.
+     *
+     * @param seed The seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.offset = OFFSETS[(int)((seed & Long.MAX_VALUE) % OFFSETS.length)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: GpslSampleGenerator file "
+                + "small|medium|large [tab|comma] [seed]");
+            System.exit(1);
+        }
+        GpslSampleGenerator generator = forSize(args[1]);
+        if(args.length > 2 && args[2].equalsIgnoreCase("comma")) {
+            generator.setDelimiter(',');
+        }
+        if(args.length > 3) {
+            generator.setSeed(Long.parseLong(args[3]));
+        }
+        File file = new File(args[0]);
+        generator.generate(file);
+        System.out.println("Wrote " + generator.getTrackpointCount()
+            + " trackpoints, " + file.length() + " bytes to " + file.getPath());
+    }
+
+}
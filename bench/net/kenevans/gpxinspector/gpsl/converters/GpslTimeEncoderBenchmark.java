@@ -0,0 +1,94 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Measures the per-point cost of encoding trackpoint times, comparing the
+ * original GregorianCalendar and String.format conversion with a
+ * GpslTimeEncoder writing into a char buffer. The points are one second apart,
+ * as they are in a typical track.<br>
+ * <br>
+ * Usage: GpslTimeEncoderBenchmark [nPoints [nRounds]]
+ */
+public class GpslTimeEncoderBenchmark
+{
+    private static final double OFFSET = -5;
+
+    /** Keeps the results live so the work is not optimized away. */
+    private static long sink;
+
+    public static void main(String[] args) {
+        int nPoints = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int nRounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        XMLGregorianCalendar[] times = makeTimes(nPoints);
+
+        System.out.println("GpslTimeEncoderBenchmark: " + nPoints
+            + " points, " + nRounds + " rounds");
+        // Warm up
+        for(int i = 0; i < 3; i++) {
+            runCalendar(times);
+            runEncoder(times);
+        }
+        double calendarBest = Double.MAX_VALUE;
+        double encoderBest = Double.MAX_VALUE;
+        for(int i = 0; i < nRounds; i++) {
+            calendarBest = Math.min(calendarBest, runCalendar(times));
+            encoderBest = Math.min(encoderBest, runEncoder(times));
+        }
+        System.out.printf("Calendar and String.format: %8.1f ns/point%n",
+            calendarBest);
+        System.out.printf("GpslTimeEncoder:            %8.1f ns/point%n",
+            encoderBest);
+        System.out.printf("Speedup:                    %8.1f%n",
+            calendarBest / encoderBest);
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * Makes UTC times one second apart, starting late in the day so the date
+     * changes during the run.
+     *
+     * @param nPoints The number of times.
+     * @return The times.
+     */
+    private static XMLGregorianCalendar[] makeTimes(int nPoints) {
+        XMLGregorianCalendar[] times = new XMLGregorianCalendar[nPoints];
+        long start = GpslTimeDecoder.daysFromCivil(2011, 5, 12) * 86400L
+            + 20 * 3600L;
+        for(int i = 0; i < nPoints; i++) {
+            times[i] = GpslTimeDecoder.toXMLGregorianCalendar(start + i);
+        }
+        return times;
+    }
+
+    /**
+     * @return The time per point in ns.
+     */
+    private static double runCalendar(XMLGregorianCalendar[] times) {
+        long start = System.nanoTime();
+        long sum = 0;
+        for(XMLGregorianCalendar xgcal : times) {
+            sum += GpslTimeEncoder.format(xgcal, OFFSET).charAt(18);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += sum;
+        return (double)elapsed / times.length;
+    }
+
+    /**
+     * @return The time per point in ns.
+     */
+    private static double runEncoder(XMLGregorianCalendar[] times) {
+        GpslTimeEncoder encoder = new GpslTimeEncoder(OFFSET);
+        char[] buf = new char[GpslTimeEncoder.MAX_LENGTH];
+        long start = System.nanoTime();
+        long sum = 0;
+        for(XMLGregorianCalendar xgcal : times) {
+            sum += encoder.encode(xgcal, buf, 0) + buf[18];
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += sum;
+        return (double)elapsed / times.length;
+    }
+
+}
@@ -0,0 +1,45 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A flag that asks a parse to stop. It may be set from any thread. The parse
+ * checks it after each line and stops with a GpslCancelledException. A
+ * cancellation with a parent is also cancelled when the parent is, so one
+ * parent can stop a batch of parses whose own cancellations stop them one at
+ * a time.
+ */
+public class GpslCancellation
+{
+    private final GpslCancellation parent;
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor.
+     */
+    public GpslCancellation() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parent The parent or null for none.
+     */
+    public GpslCancellation(GpslCancellation parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Asks the parses that check this to stop.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return Whether this or its parent has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled || parent != null && parent.isCancelled();
+    }
+
+}
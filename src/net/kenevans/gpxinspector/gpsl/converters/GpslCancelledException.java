@@ -0,0 +1,21 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a parse stops because its GpslCancellation was cancelled.
+ */
+public class GpslCancelledException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * 
+     * @param message The message.
+     */
+    public GpslCancelledException(String message) {
+        super(message);
+    }
+
+}
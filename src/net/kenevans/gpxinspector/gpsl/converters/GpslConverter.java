@@ -1,28 +1,29 @@
 package net.kenevans.gpxinspector.gpsl.converters;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.math.BigDecimal;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.TimeZone;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
 import net.kenevans.core.utils.SWTUtils;
-import net.kenevans.core.utils.Utils;
 import net.kenevans.gpxtrackpointextensionsv1.GpxType;
-import net.kenevans.gpxtrackpointextensionsv1.RteType;
 import net.kenevans.gpxtrackpointextensionsv1.TrkType;
 import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
 import net.kenevans.gpxtrackpointextensionsv1.WptType;
-import net.kenevans.gpxtrackpointextensionsv1.parser.GPXParser;
 import net.kenevans.gpxinspector.converters.IGpxConverter;
+import net.kenevans.gpxinspector.gpsl.converters.GpslDiagnostic.Severity;
 
 /*
  * Created on May 12, 2011
@@ -31,12 +32,31 @@ import net.kenevans.gpxinspector.converters.IGpxConverter;
 
 public class GpslConverter implements IGpxConverter
 {
-    private static final String[] extensions = {".gpsl"};
-    private static final String GARMINTIME0 = "GarminTime0";
-    private static final String GPSLINK_ID = "!GPSLINK";
-    private static final String DELIMITER = "Delimiter";
-    private static final String GMTOFFSET = "GMTOffset";
-    private static final double M2FT = 3.280839895;
+    private static final String[] extensions = {".gpsl", ".gpsl.gz"};
+    /** The extension of files that are gzip compressed. */
+    static final String GZIP_EXTENSION = ".gz";
+    /** The size of the buffers of the gzip streams. */
+    static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    static final String GARMINTIME0 = "GarminTime0";
+    static final String GPSLINK_ID = "!GPSLINK";
+    static final String DELIMITER = "Delimiter";
+    static final String GMTOFFSET = "GMTOffset";
+    static final double M2FT = 3.280839895;
+    /** The most warnings listed by showDiagnostics. */
+    private static final int MAX_WARNINGS_SHOWN = 10;
+    /** The size of the output buffer used by save. */
+    private static final int SAVE_BUFFER_SIZE = 256 * 1024;
+
+    /** The threads that run parseAsync, which end when they are idle. */
+    private static final ExecutorService ASYNC_EXECUTOR = Executors
+        .newCachedThreadPool(new GpslParallelParser.DaemonThreadFactory(
+            "GPSL async parser"));
+
+    private GpslParseOptions parseOptions = new GpslParseOptions();
+    private GpslSaveOptions saveOptions = new GpslSaveOptions();
+    private GpslParseCache parseCache;
+    private GpslSidecar sidecar;
+    private GpslMetrics metrics = GpslMetrics.getDefault();
 
     /*
      * (non-Javadoc)
@@ -65,15 +85,7 @@ public class GpslConverter implements IGpxConverter
      */
     @Override
     public boolean isParseSupported(File file) {
-        String fileExt = "." + Utils.getExtension(file);
-        if(fileExt != null) {
-            for(String ext : extensions) {
-                if(fileExt.equalsIgnoreCase(ext)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return hasExtension(file);
     }
 
     /*
@@ -85,17 +97,35 @@ public class GpslConverter implements IGpxConverter
      */
     @Override
     public boolean isSaveSupported(File file) {
-        String fileExt = "." + Utils.getExtension(file);
-        if(fileExt != null) {
-            for(String ext : extensions) {
-                if(fileExt.equalsIgnoreCase(ext)) {
-                    return true;
-                }
+        return hasExtension(file);
+    }
+
+    /**
+     * Checks the end of the name rather than using Utils.getExtension since
+     * some of the extensions have two parts.
+     * 
+     * @param file The file.
+     * @return Whether the name ends with one of the extensions.
+     */
+    private static boolean hasExtension(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        for(String ext : extensions) {
+            if(name.endsWith(ext)) {
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * @param file The file.
+     * @return Whether the file is gzip compressed, which is determined by the
+     *         extension.
+     */
+    static boolean isCompressed(File file) {
+        return file.getName().toLowerCase(Locale.US).endsWith(GZIP_EXTENSION);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -104,255 +134,333 @@ public class GpslConverter implements IGpxConverter
      */
     @Override
     public GpxType parse(File file) throws Throwable {
-        // The radius in miles
-        long lineNum = 0;
-        boolean error = false;
-        String line = null;
-        String[] tokens = null;
-        String delimiter = "\t";
-        String name = null;
-        String offset;
-        // double fileGMTOffsetHr = 0.0;
-        boolean rteDataInProgress = false;
-        boolean trkDataInProgress = false;
-        RteType rteType = null;
-        TrkType trkType = null;
-        WptType wptType = null;
-        TrksegType trksegType = null;
-        // Use strings here as they convert to BigDecimal better
-        String latitude;
-        String longitude;
-        String altitude;
-        String symbol = null;
-        String time;
-        // String time = "";
-        boolean startSegment = false;
-
-        GpxType gpx = new GpxType();
-        // These will be overwritten when saving as .gpx
-        gpx.setCreator("GPSL Converter for GPX Inspector");
-        GPXParser.setMetaDataTime(gpx);
-
-        BufferedReader in = null;
-        in = new BufferedReader(new FileReader(file));
-
-        // Read ID
-        line = in.readLine();
-        lineNum++;
-        if(line == null) {
-            SWTUtils.errMsg("Unexpected end of file at line " + lineNum + ":\n"
-                + file.getName());
-            in.close();
-            return null;
-        }
-        if(!line.equals(GPSLINK_ID)) {
-            SWTUtils.errMsg("Invalid GPSLink file (Bad ID) at line " + lineNum
-                + ":\n" + file.getName());
-            in.close();
-            return null;
-        }
+        GpslParseResult result = parseHeadless(file);
+        showDiagnostics(result.getDiagnostics(), file);
+        return result.getGpx();
+    }
 
-        // Read timestamp
-        line = in.readLine();
-        lineNum++;
-        if(line == null) {
-            SWTUtils.errMsg("Unexpected end of file at line " + lineNum + ":\n"
-                + file.getName());
-            in.close();
-            return null;
-        }
+    /**
+     * Parses a GPSL file without showing anything to the user. Problems are
+     * collected in the diagnostics of the result instead.
+     * 
+     * @param file The file.
+     * @return The result, whose GpxType is null if the parse failed.
+     */
+    public GpslParseResult parseHeadless(File file) {
+        return parseHeadless(file, null, null);
+    }
 
-        // Delimiter
-        line = in.readLine();
-        lineNum++;
-        if(line == null) {
-            SWTUtils.errMsg("Unexpected end of file at line " + lineNum + ":\n"
-                + file.getName());
-            in.close();
-            return null;
+    /**
+     * Parses a GPSL file without showing anything to the user, telling a
+     * listener how far it has got and stopping if it is cancelled. A
+     * cancelled parse fails with an ERROR from the GpslCancelledException.
+     * 
+     * @param file The file.
+     * @param listener The listener or null for none.
+     * @param cancellation The cancellation or null for none.
+     * @return The result, whose GpxType is null if the parse failed.
+     */
+    public GpslParseResult parseHeadless(File file,
+        GpslProgressListener listener, GpslCancellation cancellation) {
+        GpslProgress progress = listener == null && cancellation == null ? null
+            : new GpslProgress(file, listener, cancellation);
+        final GpslDiagnostics diagnostics = new GpslDiagnostics();
+        GpxTypeBuilder builder = new GpxTypeBuilder() {
+            @Override
+            public void onWarning(long lineNum, String message) {
+                diagnostics.add(lineNum, Severity.WARNING, message);
+            }
+        };
+        builder.setColumnarTracks(parseOptions.isColumnarTracks());
+        GpslWaypointIndex.Policy policy = parseOptions.getDuplicatePolicy();
+        if(policy != GpslWaypointIndex.Policy.KEEP_ALL) {
+            builder.setWaypointIndex(new GpslWaypointIndex(policy,
+                parseOptions.getDuplicateLatLonQuantum(), parseOptions
+                    .getDuplicateEleQuantum()));
         }
-        tokens = line.split("=");
-        if(tokens.length < 2 || !tokens[0].equals(DELIMITER)) {
-            SWTUtils.warnMsg("No delimiter found at line + lineNum "
-                + ", assuming TAB:\n" + file.getName());
-            delimiter = "\t";
+        if(parseOptions.isSpatialIndexing()) {
+            builder.setSpatialIndex(new GpslSpatialIndex(parseOptions
+                .getSpatialIndexCellSize()));
         }
-        delimiter = tokens[1];
-        if(!delimiter.equals(",") && !delimiter.equals("\t")) {
-            SWTUtils.warnMsg("Invalid delimiter found at line + lineNum "
-                + ", assuming TAB:\n" + file.getName());
-            delimiter = "\t";
+        // The trackpoints go through the decimator, if any, to the statistics,
+        // if any, and the builder. The statistics come first so each track
+        // the builder makes can carry its statistics.
+        GpslHandler target = builder;
+        GpslStatisticsHandler statistics = null;
+        if(parseOptions.isStatistics()) {
+            statistics = new GpslStatisticsHandler();
+            builder.setStatisticsHandler(statistics);
+            target = new GpslTeeHandler(statistics, builder);
         }
-
-        // GMTOffset
-        line = in.readLine();
-        lineNum++;
-        if(line == null) {
-            SWTUtils.errMsg("Unexpected end of file at line " + lineNum + ":\n"
-                + file.getName());
-            in.close();
-            return null;
+        GpslDecimatingHandler decimator = null;
+        if(parseOptions.getDecimationTolerance() > 0
+            || parseOptions.getDecimationMinSpacing() > 0) {
+            decimator = new GpslDecimatingHandler(target, parseOptions
+                .getDecimationTolerance(), parseOptions
+                .getDecimationMinSpacing());
+            target = decimator;
         }
-        tokens = line.split("=");
-        if(tokens.length < 2 || !tokens[0].equals(GMTOFFSET)) {
-            SWTUtils.warnMsg("No " + GMTOFFSET + " found at " + lineNum
-                + ", assuming 0:\n" + file.getName());
-            offset = "0";
-        } else {
-            offset = tokens[1];
+        GpslMetrics metrics = this.metrics;
+        GpslMetrics.Counts counts = metrics == null ? null : metrics
+            .newCounts();
+        GpslParseCache cache = parseCache;
+        GpslParseCache.Key key = null;
+        if(cache != null) {
+            try {
+                key = new GpslParseCache.Key(file);
+            } catch(IOException ex) {
+                // Do not use the cache
+            }
         }
-
-        // Loop over the rest of the lines
-        while((line = in.readLine()) != null) {
-            lineNum++;
-
-            // A blank line will terminate routes and tracks in progress
-            if(line.length() == 0) {
-                if(rteDataInProgress) {
-                    rteDataInProgress = false;
-                    rteType = null;
-                }
-                if(trkDataInProgress) {
-                    trkDataInProgress = false;
-                    trkType = null;
-                    trksegType = null;
+        try {
+            // Compressed files cannot be read at random, and the lazy and
+            // parallel parses do not pass the points to a handler, so these
+            // are always read sequentially
+            boolean sequential = isCompressed(file) || decimator != null
+                || statistics != null || builder.getSpatialIndex() != null;
+            if(progress != null) progress.checkCancelled();
+            if(parseOptions.isLazyLoading() && !sequential) {
+                GpslLazyLoader loader = new GpslLazyLoader(file, builder);
+                loader.setCounts(counts);
+                if(loader.load()) {
+                    if(progress != null) progress.done();
+                    return newResult(builder, decimator, statistics,
+                        diagnostics);
                 }
             }
-            // Skip comments
-            if(line.startsWith("#")) continue;
-            // Insure there at least two characters
-            if(line.length() < 2) continue;
-            // Only handle lines that have a type identifier
-            if(!line.subSequence(1, 2).equals(delimiter)) continue;
-
-            // Branch on type
-            tokens = line.split(delimiter);
-            String startChar = line.substring(0, 1);
-            if(startChar.equals("W")) {
-                // Waypoint
-                name = tokens[1];
-                latitude = tokens[2];
-                longitude = tokens[3];
-                altitude = String.format("%.6f", Double.valueOf(tokens[4])
-                    .doubleValue() / M2FT);
-                symbol = tokens[5];
-                wptType = new WptType();
-                if(wptType == null) {
-                    SWTUtils.errMsg("Line " + lineNum
-                        + ": Cannot create route waypoint:\n" + file.getName());
-                    error = true;
-                    break;
-                }
-                wptType.setName(name);
-                wptType.setDesc(name);
-                wptType.setLat(new BigDecimal(latitude));
-                wptType.setLon(new BigDecimal(longitude));
-                wptType.setEle(new BigDecimal(altitude));
-                wptType.setSym(symbol);
-                if(rteDataInProgress) {
-                    // Route waypoint
-                    if(rteType != null) {
-                        rteType.getRtept().add(wptType);
-                    }
-                } else {
-                    // Regular waypoint
-                    // TODO Handle duplicates ?
-                    gpx.getWpt().add(wptType);
-                }
-            } else if(startChar.equals("R")) {
-                // Route
-                name = tokens[1];
-                rteType = new RteType();
-                if(rteType == null) {
-                    SWTUtils.errMsg("Line " + lineNum
-                        + ": Cannot create route:\n" + file.getName());
-                    error = true;
-                    break;
-                }
-                rteType.setName(name);
-                gpx.getRte().add(rteType);
-                rteDataInProgress = true;
-            } else if(startChar.equals("H")) {
-                // Track
-                name = tokens[1];
-                if(name == null) {
-                    SWTUtils.errMsg("Line " + lineNum
-                        + " Cannot create track:\n" + file.getName());
-                    error = true;
-                    break;
-                }
-                trkType = new TrkType();
-                trkType.setName(name);
-                trkType.setDesc(name);
-                if(trkType == null) {
-                    SWTUtils.errMsg("Line " + lineNum
-                        + ": Cannot create track:\n" + file.getName());
-                    error = true;
-                    break;
-                }
-                gpx.getTrk().add(trkType);
-                trkDataInProgress = true;
-            } else if(startChar.equals("T")) {
-                // TrackPoint
-                if(tokens.length < 6) {
-                    SWTUtils.errMsg("Line " + lineNum
-                        + ": invalid trackpoint:\n" + file.getName());
-                    error = true;
-                    break;
-                }
-                name = tokens[1];
-                latitude = tokens[2];
-                longitude = tokens[3];
-                altitude = String.format("%.6f", Double.valueOf(tokens[4])
-                    .doubleValue() / M2FT);
-                time = tokens[5];
-                symbol = "";
-                wptType = new WptType();
-                if(wptType == null) {
-                    SWTUtils.errMsg("Line " + lineNum
-                        + ": Cannot create route waypoint:\n" + file.getName());
-                    error = true;
-                    break;
-                }
-                wptType.setLat(new BigDecimal(latitude));
-                wptType.setLon(new BigDecimal(longitude));
-                wptType.setEle(new BigDecimal(altitude));
-                XMLGregorianCalendar xgcal = getXMLGregorianCalendarFromTimeStamp(
-                    time, offset);
-                if(xgcal != null) {
-                    wptType.setTime(xgcal);
-                }
-                // Decide if it a new track based on the first character
-                if(name != null && name.substring(0, 1).equalsIgnoreCase("C")) {
-                    startSegment = false;
+            GpslRecording recording = key == null ? null : cache.get(key);
+            if(recording != null) {
+                if(counts != null) counts.replay = true;
+                recording.replay(target);
+                if(progress != null) progress.done();
+                return newResult(builder, decimator, statistics,
+                    diagnostics);
+            }
+            // Record the parse for next time if it will fit in the cache. This
+            // and writing a sidecar are sequential since the parallel parse
+            // does not make the calls to a handler.
+            if(key != null && file.length() <= cache.getMemoryBudget()) {
+                recording = new GpslRecording();
+            }
+            GpslHandler handler = recording == null ? target
+                : new GpslTeeHandler(target, recording);
+            GpslSidecar sidecar = this.sidecar;
+            if(sidecar != null) {
+                if(sidecar.replay(file, handler)) {
+                    if(counts != null) counts.replay = true;
                 } else {
-                    startSegment = true;
-                }
-                if(trkDataInProgress) {
-                    if(trkType != null) {
-                        if(startSegment) {
-                            trksegType = new TrksegType();
-                            if(trksegType == null) {
-                                SWTUtils.errMsg("Line " + lineNum
-                                    + ": Cannot create track segment:\n"
-                                    + file.getName());
-                                error = true;
-                                break;
-                            }
-                            trkType.getTrkseg().add(trksegType);
-                        }
-                    } else {
-                        SWTUtils.errMsg("Line " + lineNum
-                            + " Found trackpoint without track:\n"
-                            + file.getName());
+                    GpslSidecar.Encoder encoder = sidecar.newEncoder(file);
+                    parse(file, new GpslTeeHandler(handler, encoder), counts,
+                        progress);
+                    try {
+                        encoder.write();
+                    } catch(IOException ex) {
+                        diagnostics.add(0, Severity.WARNING,
+                            "Could not write the sidecar file: "
+                                + ex.getMessage());
                     }
-                    trksegType.getTrkpt().add(wptType);
                 }
+            } else if(recording == null && parseOptions.isParallel()
+                && !sequential) {
+                GpslParallelParser parser = new GpslParallelParser(file,
+                    parseOptions.getThreads());
+                parser.setCounts(counts);
+                parser.setProgress(progress);
+                parser.parse(builder);
+            } else {
+                parse(file, handler, counts, progress);
             }
+            if(progress != null) progress.done();
+            if(recording != null) {
+                recording.trimToSize();
+                cache.put(key, recording);
+            }
+        } catch(IOException ex) {
+            diagnostics.add(ex);
+            if(counts != null) {
+                counts.failed = true;
+                if(ex instanceof GpslParseException) counts.malformedLines++;
+            }
+            return new GpslParseResult(null, diagnostics);
+        } finally {
+            if(counts != null) metrics.addParse(counts);
         }
-        if(in != null) in.close();
-        if(error) return null;
-        return gpx;
+        return newResult(builder, decimator, statistics, diagnostics);
+    }
+
+    /**
+     * Makes the result of a successful parse, adding an INFO for any duplicate
+     * waypoints that were found and for the trackpoints kept by decimation.
+     * 
+     * @param builder The builder.
+     * @param decimator The decimator or null if there is none.
+     * @param statistics The statistics handler or null if there is none.
+     * @param diagnostics The diagnostics.
+     * @return The result.
+     */
+    private static GpslParseResult newResult(GpxTypeBuilder builder,
+        GpslDecimatingHandler decimator, GpslStatisticsHandler statistics,
+        GpslDiagnostics diagnostics) {
+        GpslWaypointIndex index = builder.getWaypointIndex();
+        if(index != null && index.getDuplicateCount() > 0) {
+            diagnostics.add(0, Severity.INFO, "Dropped "
+                + index.getDuplicateCount() + " duplicate waypoints using "
+                + index.getPolicy());
+        }
+        if(decimator != null) {
+            diagnostics.add(0, Severity.INFO, String.format(
+                "Kept %d of %d trackpoints (%.1f%%)", decimator
+                    .getRetainedCount(), decimator.getTrackpointCount(),
+                100 * decimator.getRetainedRatio()));
+        }
+        GpslParseResult result = new GpslParseResult(builder.getGpx(),
+            diagnostics);
+        result.setSpatialIndex(builder.getSpatialIndex());
+        if(statistics != null) {
+            result.setStatistics(statistics.getStatistics());
+        }
+        return result;
+    }
+
+    /**
+     * Parses a GPSL file, passing the contents to the given handler as they
+     * are read rather than building a GpxType.
+     * 
+     * @param file The file.
+     * @param handler The handler.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    public void parse(File file, GpslHandler handler) throws IOException {
+        GpslMetrics metrics = this.metrics;
+        GpslMetrics.Counts counts = metrics == null ? null : metrics
+            .newCounts();
+        try {
+            parse(file, handler, counts, null);
+        } catch(IOException ex) {
+            if(counts != null) {
+                counts.failed = true;
+                if(ex instanceof GpslParseException) counts.malformedLines++;
+            }
+            throw ex;
+        } finally {
+            if(counts != null) metrics.addParse(counts);
+        }
+    }
+
+    /**
+     * Parses a GPSL file with a GpslReader.
+     * 
+     * @param file The file.
+     * @param handler The handler.
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     * @param progress The progress or null for none.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    private void parse(File file, GpslHandler handler,
+        GpslMetrics.Counts counts, GpslProgress progress) throws IOException {
+        GpslReader reader = new GpslReader(file);
+        reader.setCounts(counts);
+        reader.setProgress(progress);
+        reader.read(handler);
+    }
+
+    /**
+     * Merges several GPSL files into one GpxType with the trackpoints in time
+     * order and tracks that overlap in time merged, without showing anything
+     * to the user. The columnar tracks and duplicate waypoint options of the
+     * parse options are used, and duplicates are found across the files. See
+     * GpslMerger.
+     * 
+     * @param files The files.
+     * @return The result, whose GpxType is null if the merge failed.
+     */
+    public GpslParseResult mergeHeadless(List<File> files) {
+        GpslMerger merger = new GpslMerger(files);
+        merger.setColumnarTracks(parseOptions.isColumnarTracks());
+        GpslWaypointIndex.Policy policy = parseOptions.getDuplicatePolicy();
+        if(policy != GpslWaypointIndex.Policy.KEEP_ALL) {
+            merger.setWaypointIndex(new GpslWaypointIndex(policy,
+                parseOptions.getDuplicateLatLonQuantum(), parseOptions
+                    .getDuplicateEleQuantum()));
+        }
+        return merger.merge();
+    }
+
+    /**
+     * Converts a GPSL file directly to a GPX file, without making a GpxType
+     * and without showing anything to the user. The memory used does not
+     * depend on the size of the file. The GPX file has the same contents as
+     * if the GPSL file were parsed with the default parse options and saved
+     * as GPX. See GpslTranscoder.
+     *
+     * @param file The GPSL file.
+     * @param gpxFile The GPX file.
+     * @return The diagnostics, which have an ERROR if the conversion failed.
+     */
+    public GpslDiagnostics transcodeHeadless(File file, File gpxFile) {
+        GpslDiagnostics diagnostics = new GpslDiagnostics();
+        try {
+            new GpslTranscoder(file).transcode(gpxFile, diagnostics);
+        } catch(Exception ex) {
+            diagnostics.add(ex);
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Starts parsing a GPSL file on another thread, as parseHeadless does.
+     * The returned task can be used to wait for the result or to cancel the
+     * parse. The listener is called on the thread doing the parse.
+     * 
+     * @param file The file.
+     * @param listener The listener or null for none.
+     * @param cancellation The cancellation or null to make a new one.
+     * @return The task.
+     */
+    public GpslParseTask parseAsync(File file, GpslProgressListener listener,
+        GpslCancellation cancellation) {
+        GpslParseTask task = new GpslParseTask(this, file, listener,
+            cancellation == null ? new GpslCancellation() : cancellation);
+        ASYNC_EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Starts parsing several GPSL files, as parseHeadless does, with at most
+     * the given number parsed at the same time. Each task has its own
+     * cancellation, whose parent is the given one, so the tasks can be
+     * cancelled together or one at a time. The listener is called on the
+     * threads doing the parses, so it must be thread safe.
+     * 
+     * @param files The files.
+     * @param maxConcurrent The most files parsed at the same time or 0 for the
+     *            number of available processors.
+     * @param listener The listener or null for none.
+     * @param cancellation The cancellation for all the tasks or null for none.
+     * @return The tasks in the same order as the files.
+     */
+    public List<GpslParseTask> parseAll(List<File> files, int maxConcurrent,
+        GpslProgressListener listener, GpslCancellation cancellation) {
+        List<GpslParseTask> tasks = new ArrayList<GpslParseTask>(files.size());
+        if(files.isEmpty()) {
+            return tasks;
+        }
+        int nThreads = maxConcurrent > 0 ? maxConcurrent : Runtime
+            .getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+            nThreads, files.size()), new GpslParallelParser.DaemonThreadFactory(
+            "GPSL batch parser"));
+        for(File file : files) {
+            GpslParseTask task = new GpslParseTask(this, file, listener,
+                new GpslCancellation(cancellation));
+            tasks.add(task);
+            executor.execute(task);
+        }
+        // The threads end when the tasks are done
+        executor.shutdown();
+        return tasks;
     }
 
     /*
@@ -365,192 +473,335 @@ public class GpslConverter implements IGpxConverter
     @Override
     public void save(String creator, GpxType gpxType, File file)
         throws Throwable {
-        // Use this to avoid the possibility of mixed CF and CRLF
-        final String ls = SWTUtils.LS;
-        final String delimiter = "\t";
-        String timeStamp;
-        double offset = 0;
-        String name;
-        double latitude;
-        double longitude;
-        double altitude;
-        String symbol;
-        String time;
-        GregorianCalendar gcal;
-        XMLGregorianCalendar xgcal;
-
-        // Assume the file is not null and any asking to overwrite has been done
-        // already
-        file.createNewFile();
-        BufferedReader in = null;
-        PrintWriter out = null;
-        try {
-            in = new BufferedReader(new FileReader(file));
-            out = new PrintWriter(new FileWriter(file));
-            // Get the offset to use. Only the GMT time is stored in the
-            // GpxType. We don't know the offset at the time the file was made.
-            // Further, we do not know the time zone. Each time time zone could
-            // have two offsets, depending on whether it is DST or not. There is
-            // the further complication that the file could have tracks made
-            // both under DST and not. (That one we cannot handle.) The
-            // procedure used is to find the time of the first trackpoint in the
-            // file, determine its offset in the current time zone, and use
-            // that. If there is no trackpoint, use the offset for the current
-            // time in the current time zone. Thus will tend to work as we want
-            // (have the time in the GPSL file be the clock time at the time of
-            // the tracks) if the user stays in one time zone and does not mix
-            // tracks with and without DST.
-            xgcal = null;
-            try {
-                // Try to find the first trackpoint
-                if(gpxType.getTrk().size() > 0) {
-                    for(TrkType trk : gpxType.getTrk()) {
-                        for(TrksegType seg : trk.getTrkseg()) {
-                            for(WptType wpt : seg.getTrkpt()) {
-                                xgcal = wpt.getTime();
-                                if(xgcal == null) {
-                                    continue;
-                                }
-                            }
-                        }
-                    }
-                }
-                if(xgcal != null) {
-                    // Use the time from the first trackpoint
-                    gcal = xgcal.toGregorianCalendar();
-                    // Get the date
-                    Date date = gcal.getTime();
-                    // Make a new local GregorianCalendar with this date
-                    gcal = new GregorianCalendar();
-                    gcal.setTime(date);
+        showDiagnostics(saveHeadless(creator, gpxType, file), file);
+    }
+
+    /**
+     * Saves a GpxType as a GPSL file without showing anything to the user.
+     * 
+     * @param creator The creator, which is not used.
+     * @param gpxType The GpxType.
+     * @param file The file.
+     * @return The diagnostics, which have an ERROR if the save failed.
+     */
+    public GpslDiagnostics saveHeadless(String creator, final GpxType gpxType,
+        File file) {
+        return save(file, new SaveBody() {
+            public void write(GpslWriter writer) throws Exception {
+                double offset = getOffset(getFirstTime(gpxType));
+                if(saveOptions.isParallel()) {
+                    GpslParallelWriter parallelWriter = new GpslParallelWriter(
+                        saveOptions.getThreads(), saveOptions.getMaxPending());
+                    parallelWriter.setCounts(writer.getCounts());
+                    parallelWriter.write(writer, gpxType, offset);
                 } else {
-                    // Make a new local GregorianCalendar with the current date
-                    gcal = new GregorianCalendar();
-                    gcal.setTime(new Date());
+                    writer.write(gpxType, offset);
                 }
-                // Make a new local XMLGregorianCalendar
-                xgcal = DatatypeFactory.newInstance().newXMLGregorianCalendar(
-                    gcal);
-                // Get its offset
-                offset = xgcal.getTimezone() / 60.;
-            } catch(Throwable t) {
-                // Do nothing, use 0
             }
+        });
+    }
 
-            // Print header
-            out.print(GPSLINK_ID + ls);
-            timeStamp = Utils.timeStamp("MMM dd, yyyy hh:mm:ssa");
-            // Convert AM/PM
-            if(timeStamp.substring(21, 22).equalsIgnoreCase("P")) {
-                timeStamp = timeStamp.substring(0, 21) + "p";
-            } else {
-                timeStamp = timeStamp.substring(0, 21) + "a";
-            }
-            out.print("Saved " + timeStamp + ls);
-            out.print("Delimiter=" + delimiter + ls);
-            // This prints e.g. -5.0 instead of -5, but leave it
-            out.print("GMTOffset=" + offset + ls);
-
-            // Waypoints
-            if(gpxType.getWpt().size() > 0) {
-                out.print(ls + "Waypoints" + ls);
-                out.print(String.format("%s%s%s%s%s%s%s%s%s%s%s", "Type",
-                    delimiter, "Name", delimiter, "Latitude", delimiter,
-                    "Longitude", delimiter, "Alt", delimiter, "Symbol")
-                    + ls);
-                for(WptType wpt : gpxType.getWpt()) {
-                    name = wpt.getName();
-                    latitude = wpt.getLat().doubleValue();
-                    longitude = wpt.getLon().doubleValue();
-                    altitude = wpt.getEle().doubleValue() * M2FT;
-                    symbol = wpt.getSym();
-                    out.print(String.format("W%s%s%s%.6f%s%.6f%s%.0f%s%s",
-                        delimiter, name, delimiter, latitude, delimiter,
-                        longitude, delimiter, altitude, delimiter, symbol)
-                        + ls);
-                }
+    /**
+     * Saves a GPX file as a GPSL file without reading it into a GpxType, using
+     * a GpslExporter. The memory used does not depend on the size of the file.
+     * The output is the same as that of saveHeadless for the GpxType the GPX
+     * file would be read into, except that a point without an elevation is
+     * written with 0 rather than failing.
+     * 
+     * @param gpxFile The GPX file.
+     * @param file The GPSL file.
+     * @return The diagnostics, which have an ERROR if the save failed.
+     */
+    public GpslDiagnostics saveStreaming(File gpxFile, File file) {
+        final GpslExporter exporter = new GpslExporter(gpxFile);
+        return save(file, new SaveBody() {
+            public void write(GpslWriter writer) throws Exception {
+                exporter.export(writer);
             }
+        });
+    }
 
-            // Routes
-            if(gpxType.getRte().size() > 0) {
-                out.print(ls + "Routes" + ls);
-                out.print(String.format("%s%s%s%s%s%s%s%s%s%s%s", "Type",
-                    delimiter, "Name", delimiter, "Latitude", delimiter,
-                    "Longitude", delimiter, "Alt", delimiter, "Symbol")
-                    + ls);
-                for(RteType rte : gpxType.getRte()) {
-                    name = rte.getName();
-                    out.print(String.format("R%s%s", delimiter, name) + ls);
-                    for(WptType wpt : rte.getRtept()) {
-                        name = wpt.getName();
-                        latitude = wpt.getLat().doubleValue();
-                        longitude = wpt.getLon().doubleValue();
-                        altitude = wpt.getEle().doubleValue() * M2FT;
-                        symbol = wpt.getSym();
-                        out.print(String.format("W%s%s%s%.6f%s%.6f%s%.0f%s%s",
-                            delimiter, name, delimiter, latitude, delimiter,
-                            longitude, delimiter, altitude, delimiter, symbol)
-                            + ls);
-                    }
-                }
-            }
+    /**
+     * Opens a GPSL file, has a SaveBody write it, and keeps the metrics, the
+     * parse cache, and the sidecars up to date. The contents are written to a
+     * temporary file in the same directory, which then replaces the file, so
+     * a failed save leaves the file as it was, and a GpxType lazily loaded
+     * from the file can still read it while it is being written.
+     * 
+     * @param file The file.
+     * @param body What writes the contents.
+     * @return The diagnostics, which have an ERROR if the save failed.
+     */
+    private GpslDiagnostics save(File file, SaveBody body) {
+        GpslDiagnostics diagnostics = new GpslDiagnostics();
+        // Use this to avoid the possibility of mixed CF and CRLF
+        final String ls = SWTUtils.LS;
+        GpslMetrics metrics = this.metrics;
+        GpslMetrics.Counts counts = metrics == null ? null : metrics
+            .newCounts();
+        long start = 0;
 
-            // Tracks
-            boolean first;
-            if(gpxType.getTrk().size() > 0) {
-                out.print(ls + "Tracks" + ls);
-                out.print(String.format("%s%s%s%s%s%s%s%s%s%s%s", "Type",
-                    delimiter, "Name", delimiter, "Latitude", delimiter,
-                    "Longitude", delimiter, "Alt", delimiter, "Time")
-                    + ls);
-                for(TrkType trk : gpxType.getTrk()) {
-                    name = trk.getName();
-                    out.print(String.format("H%s%s", delimiter, name) + ls);
-                    for(TrksegType seg : trk.getTrkseg()) {
-                        first = true;
-                        for(WptType wpt : seg.getTrkpt()) {
-                            if(first) {
-                                first = false;
-                                name = "Start";
-                            } else {
-                                name = "Cont";
-                            }
-                            latitude = wpt.getLat().doubleValue();
-                            longitude = wpt.getLon().doubleValue();
-                            altitude = wpt.getEle().doubleValue() * M2FT;
-                            symbol = wpt.getSym();
-                            xgcal = wpt.getTime();
-                            if(xgcal == null) {
-                                time = GARMINTIME0;
-                            } else {
-                                time = getTimeFromXMLGregorianCalendar(xgcal,
-                                    offset);
-                            }
-                            out.print(String.format(
-                                "T%s%s%s%.6f%s%.6f%s%.0f%s%s", delimiter, name,
-                                delimiter, latitude, delimiter, longitude,
-                                delimiter, altitude, delimiter, time)
-                                + ls);
-                        }
+        Writer out = null;
+        File temp = null;
+        boolean keepTemp = false;
+        try {
+            // Assume the file is not null and any asking to overwrite has been
+            // done already
+            temp = File.createTempFile("gpsl", ".tmp", file.getAbsoluteFile()
+                .getParentFile());
+            OutputStream stream = new FileOutputStream(temp);
+            if(isCompressed(file)) {
+                // Favor speed since GPSL compresses well anyway
+                stream = new GZIPOutputStream(stream, GZIP_BUFFER_SIZE) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
                     }
-                }
+                };
+            }
+            out = new OutputStreamWriter(new BufferedOutputStream(stream,
+                SAVE_BUFFER_SIZE));
+            GpslWriter writer = new GpslWriter(out, ls, '\t');
+            writer.setCounts(counts);
+            if(saveOptions.isPerTrackOffsets()) {
+                writer.setOffsetResolver(GpslOffsetResolver.getDefault());
+            }
+            if(counts != null) start = System.nanoTime();
+            body.write(writer);
+            writer.flush();
+            out.close();
+            out = null;
+            if(!replace(temp, file)) {
+                // The temporary file is now the only copy
+                keepTemp = true;
+                throw new IOException("Could not rename " + temp.getPath()
+                    + " to " + file.getPath() + ", which was deleted");
             }
         } catch(Exception ex) {
-            ex.printStackTrace();
+            diagnostics.add(ex);
         } finally {
             try {
-                if(in != null) in.close();
                 if(out != null) out.close();
             } catch(IOException ex) {
-                ex.printStackTrace();
-                return;
+                diagnostics.add(ex);
+            }
+            // After a successful rename there is nothing left to delete
+            if(temp != null && !keepTemp) {
+                temp.delete();
+            }
+            if(counts != null) {
+                if(start != 0) counts.bodyNanos = System.nanoTime() - start;
+                counts.bytes = file.length();
+                counts.failed = diagnostics.hasErrors();
+                metrics.addSave(counts);
+            }
+            if(parseCache != null) {
+                parseCache.invalidate(file);
+            }
+            if(sidecar != null) {
+                sidecar.invalidate(file);
+            }
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Replaces a file with another one.
+     * 
+     * @param temp The file that takes its place.
+     * @param file The file.
+     * @return False if the file was deleted but the other one could not take
+     *         its place, so the other one must be kept.
+     * @throws IOException if the file cannot be replaced and is left as it
+     *             was.
+     */
+    private static boolean replace(File temp, File file) throws IOException {
+        if(temp.renameTo(file)) {
+            return true;
+        }
+        // Renaming does not replace an existing file on all platforms
+        if(!file.delete()) {
+            throw new IOException("Could not replace " + file.getPath());
+        }
+        return temp.renameTo(file);
+    }
+
+    /**
+     * Finds the time of the first trackpoint that has one.
+     * 
+     * @param gpxType The GpxType.
+     * @return The time or null if no trackpoint has one.
+     */
+    static XMLGregorianCalendar getFirstTime(GpxType gpxType) {
+        for(TrkType trk : gpxType.getTrk()) {
+            for(TrksegType seg : trk.getTrkseg()) {
+                List<WptType> trkpts = seg.getTrkpt();
+                if(trkpts instanceof GpslTrackpointList
+                    && !((GpslTrackpointList)trkpts).isMaterialized()) {
+                    // This avoids making the WptType objects
+                    GpslTrackpointList points = (GpslTrackpointList)trkpts;
+                    for(int i = 0; i < points.size(); i++) {
+                        if(points.getEpochSeconds(i)
+                            != GpslTimeDecoder.NO_TIME) {
+                            return points.getTime(i);
+                        }
+                    }
+                    continue;
+                }
+                for(WptType wpt : trkpts) {
+                    if(wpt.getTime() != null) {
+                        return wpt.getTime();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the offset to use when saving. Only the GMT time is stored in the
+     * GpxType. We don't know the offset at the time the file was made.
+     * Further, we do not know the time zone. Each time time zone could have
+     * two offsets, depending on whether it is DST or not. There is the further
+     * complication that the file could have tracks made both under DST and
+     * not. (That one is handled by GpslSaveOptions.setPerTrackOffsets, which
+     * uses this only for the header.) The procedure used is to find the time
+     * of the first trackpoint in the file that has one, determine its offset
+     * in the current time zone, and use that. If no trackpoint has a time,
+     * use the offset for the current time in the current time zone. Thus will
+     * tend to work as we want (have the time in the GPSL file be the clock
+     * time at the time of the tracks) if the user stays in one time zone and
+     * does not mix tracks with and without DST. The offset is found by a
+     * GpslOffsetResolver for the current time zone, which keeps the
+     * transitions of the zone between saves.
+     * 
+     * @param xgcal The time of the first trackpoint that has one or null if
+     *            there is none.
+     * @return The offset in hours or 0 if it cannot be determined.
+     */
+    static double getOffset(XMLGregorianCalendar xgcal) {
+        try {
+            return GpslOffsetResolver.getDefault().getOffset(xgcal);
+        } catch(Throwable t) {
+            // Do nothing, use 0
+            return 0;
+        }
+    }
+
+    /**
+     * Shows the diagnostics from a headless parse or save to the user. Each
+     * ERROR is shown separately, and the rest are combined into one message.
+     * 
+     * @param diagnostics The diagnostics.
+     * @param file The file they are for.
+     */
+    public static void showDiagnostics(GpslDiagnostics diagnostics, File file) {
+        StringBuilder warnings = new StringBuilder();
+        int nWarnings = 0;
+        for(GpslDiagnostic diagnostic : diagnostics.getList()) {
+            if(diagnostic.getSeverity() == Severity.ERROR) {
+                SWTUtils.errMsg(diagnostic.getMessage() + ":\n"
+                    + file.getName());
+            } else if(diagnostic.getSeverity() == Severity.WARNING) {
+                if(nWarnings++ < MAX_WARNINGS_SHOWN) {
+                    warnings.append(diagnostic.getMessage() + "\n");
+                }
             }
         }
+        if(nWarnings > MAX_WARNINGS_SHOWN) {
+            warnings.append("(" + (nWarnings - MAX_WARNINGS_SHOWN)
+                + " more warnings)\n");
+        }
+        if(nWarnings > 0) {
+            SWTUtils.warnMsg(warnings.toString().trim() + ":\n"
+                + file.getName());
+        }
+    }
+
+    /**
+     * @return The options used by parse(File).
+     */
+    public GpslParseOptions getParseOptions() {
+        return parseOptions;
+    }
+
+    /**
+     * @param parseOptions The options used by parse(File).
+     */
+    public void setParseOptions(GpslParseOptions parseOptions) {
+        this.parseOptions = parseOptions;
+    }
+
+    /**
+     * @return The options used by save.
+     */
+    public GpslSaveOptions getSaveOptions() {
+        return saveOptions;
+    }
+
+    /**
+     * @param saveOptions The options used by save.
+     */
+    public void setSaveOptions(GpslSaveOptions saveOptions) {
+        this.saveOptions = saveOptions;
+    }
+
+    /**
+     * @return The cache used by parse(File) or null if there is none, which
+     *         is the default.
+     */
+    public GpslParseCache getParseCache() {
+        return parseCache;
+    }
+
+    /**
+     * Sets the cache used by parse(File). A file that fits in the cache is
+     * parsed sequentially the first time, even if parallel parsing is on, so
+     * that the parse can be recorded.
+     * 
+     * @param parseCache The cache or null to not use one.
+     */
+    public void setParseCache(GpslParseCache parseCache) {
+        this.parseCache = parseCache;
+    }
+
+    /**
+     * @return The binary sidecar files used by parse(File) or null if they
+     *         are not used, which is the default.
+     */
+    public GpslSidecar getSidecar() {
+        return sidecar;
+    }
+
+    /**
+     * @param sidecar The binary sidecar files used by parse(File) or null to
+     *            not use them. A valid sidecar is read instead of the GPSL
+     *            file, and otherwise one is written after the GPSL file is
+     *            parsed. The cache, if any, is checked first.
+     */
+    public void setSidecar(GpslSidecar sidecar) {
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * @return The metrics that parses and saves are counted in or null if
+     *         there are none. By default this is GpslMetrics.getDefault().
+     */
+    public GpslMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics The metrics that parses and saves are counted in or null
+     *            to not count them.
+     */
+    public void setMetrics(GpslMetrics metrics) {
+        this.metrics = metrics;
     }
 
     /**
      * Converts a GPSL file time stamp and offset to an XMLGregorianCalendar
-     * time.
+     * time. When converting many time stamps with the same offset, use a
+     * GpslTimeDecoder instead.
      * 
      * @param time
      * @param offset The String offset representing hours.
@@ -558,43 +809,13 @@ public class GpslConverter implements IGpxConverter
      */
     public static XMLGregorianCalendar getXMLGregorianCalendarFromTimeStamp(
         String time, String offset) {
-        if(time == null || time.equalsIgnoreCase(GARMINTIME0)
-            || time.length() != 19) {
-            return null;
-        }
-        // Parse the time
-        try {
-            int month = Integer.parseInt(time.substring(0, 2));
-            int date = Integer.parseInt(time.substring(3, 5));
-            int year = Integer.parseInt(time.substring(6, 10));
-            int hourOfDay = Integer.parseInt(time.substring(11, 13));
-            int minute = Integer.parseInt(time.substring(14, 16));
-            int second = Integer.parseInt(time.substring(17, 19));
-
-            // Make a GregorianCalendar with the time
-            GregorianCalendar gcal = new GregorianCalendar(
-                TimeZone.getTimeZone("GMT"));
-            gcal.set(year, month - 1, date, hourOfDay, minute, second);
-            // The time in the GPSL file is local time corresponding to the
-            // offset at the top. We need to convert it to UTC time. Convert in
-            // minutes to allow fractional offsets used in some time zones.
-            try {
-                long minOffset = Math.round(-60. * Double.parseDouble(offset));
-                gcal.add(GregorianCalendar.MINUTE, (int)minOffset);
-            } catch(NumberFormatException ex) {
-                // Do nothing
-            }
-            XMLGregorianCalendar xgcal = DatatypeFactory.newInstance()
-                .newXMLGregorianCalendar(gcal);
-            return xgcal;
-        } catch(Throwable t) {
-            return null;
-        }
+        return new GpslTimeDecoder(offset).decode(time);
     }
 
     /**
      * Converts a XMLGregorianCalendar and an offset to a GPSL trackpoint time
-     * string.
+     * string. When converting many times with the same offset, use a
+     * GpslTimeEncoder instead.
      * 
      * @param xgcal The XMLGregorianCalendar.
      * @param offset The double offset in hours.
@@ -602,20 +823,15 @@ public class GpslConverter implements IGpxConverter
      */
     public static String getTimeFromXMLGregorianCalendar(
         XMLGregorianCalendar xgcal, double offset) {
-        GregorianCalendar gcal = xgcal.toGregorianCalendar(
-            TimeZone.getTimeZone("GMT"), null, null);
-        gcal.add(GregorianCalendar.MINUTE, (int)Math.round(60. * offset));
-        // Don't use SimpleDateFormat("MM/dd/yyyy HH:mm:ss") It will format with
-        // the current time zone, Use the values for MONTH, etc. from the gcal.
-        // (Can't use the ones from the xgcal because they can't be
-        // incremented.)
-        String time = String.format("%02d/%02d/%04d %02d:%02d:%02d",
-            gcal.get(GregorianCalendar.MONTH) + 1,
-            gcal.get(GregorianCalendar.DAY_OF_MONTH),
-            gcal.get(GregorianCalendar.YEAR),
-            gcal.get(GregorianCalendar.HOUR_OF_DAY),
-            gcal.get(GregorianCalendar.MINUTE),
-            gcal.get(GregorianCalendar.SECOND));
-        return time;
+        return new GpslTimeEncoder(offset).encode(xgcal);
     }
+
+    /**
+     * Writes the contents of a file being saved.
+     */
+    private interface SaveBody
+    {
+        void write(GpslWriter writer) throws Exception;
+    }
+
 }
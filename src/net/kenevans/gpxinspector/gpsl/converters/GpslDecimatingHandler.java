@@ -0,0 +1,227 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A GpslHandler that simplifies the track segments as they stream through,
+ * passing everything else on to another handler unchanged. It is a radial
+ * distance filter with an optional minimum time spacing: a trackpoint is
+ * passed on only if it is at least the tolerance away from the last one
+ * passed on and at least the minimum spacing after it. The first and last
+ * trackpoints of each segment are always passed on. Only the last dropped
+ * point is held, as primitives, so the dropped points never become WptType
+ * objects and the memory does not depend on the length of the segment.<br>
+ * <br>
+ * The distance uses an equirectangular approximation, which is accurate for
+ * the short distances involved. The elevation is not used. The time spacing
+ * is not applied to points without a time.
+ */
+public class GpslDecimatingHandler implements GpslHandler
+{
+    private final GpslHandler handler;
+    private final double tolerance;
+    private final long minSpacing;
+    /** The square of the tolerance in degrees of latitude. */
+    private final double toleranceSquared;
+
+    // The last point passed on
+    private boolean hasKept;
+    private double keptLat;
+    private double keptLon;
+    private long keptTime;
+    /** The cosine of the latitude of the last point passed on. */
+    private double keptCos;
+
+    // The last point dropped, which is passed on if it ends the segment
+    private boolean hasPending;
+    private double pendingLat;
+    private double pendingLon;
+    private double pendingEle;
+    private long pendingTime;
+    private int pendingLatScale;
+    private int pendingLonScale;
+
+    // The scales of the coordinates received and of those passed on, which
+    // differ while a point with the received ones is pending
+    private int latScale = GpslNumbers.DEFAULT_SCALE;
+    private int lonScale = GpslNumbers.DEFAULT_SCALE;
+    private int passedLatScale = GpslNumbers.DEFAULT_SCALE;
+    private int passedLonScale = GpslNumbers.DEFAULT_SCALE;
+
+    private long nTrackpoints;
+    private long nRetained;
+
+    /**
+     * Constructor.
+     *
+     * @param handler The handler to pass the calls on to.
+     * @param tolerance The tolerance in meters or 0 to not use one.
+     * @param minSpacing The minimum time spacing in seconds or 0 to not use
+     *            one.
+     */
+    public GpslDecimatingHandler(GpslHandler handler, double tolerance,
+        long minSpacing) {
+        this.handler = handler;
+        this.tolerance = tolerance;
+        this.minSpacing = minSpacing;
+        double degrees = tolerance / GpslNumbers.METERS_PER_DEGREE;
+        toleranceSquared = degrees * degrees;
+    }
+
+    @Override
+    public void onHeader(char delimiter, String offset) {
+        handler.onHeader(delimiter, offset);
+    }
+
+    @Override
+    public void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        passScales(latScale, lonScale);
+        handler.onWaypoint(name, lat, lon, ele, symbol);
+    }
+
+    @Override
+    public void onRouteStart(String name) {
+        handler.onRouteStart(name);
+    }
+
+    @Override
+    public void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        passScales(latScale, lonScale);
+        handler.onRoutepoint(name, lat, lon, ele, symbol);
+    }
+
+    @Override
+    public void onRouteEnd() {
+        handler.onRouteEnd();
+    }
+
+    @Override
+    public void onTrackStart(String name) {
+        endSegment();
+        handler.onTrackStart(name);
+    }
+
+    @Override
+    public void onSegmentStart() {
+        endSegment();
+        handler.onSegmentStart();
+    }
+
+    @Override
+    public void onTrackpoint(double lat, double lon, double ele, long time) {
+        nTrackpoints++;
+        if(!hasKept || isFarEnough(lat, lon) && isLateEnough(time)) {
+            hasPending = false;
+            keep(lat, lon, ele, time, latScale, lonScale);
+            return;
+        }
+        hasPending = true;
+        pendingLat = lat;
+        pendingLon = lon;
+        pendingEle = ele;
+        pendingTime = time;
+        pendingLatScale = latScale;
+        pendingLonScale = lonScale;
+    }
+
+    @Override
+    public void onCoordinateScales(int latScale, int lonScale) {
+        // Passed on with the next point that is passed on
+        this.latScale = latScale;
+        this.lonScale = lonScale;
+    }
+
+    @Override
+    public void onTrackEnd() {
+        endSegment();
+        handler.onTrackEnd();
+    }
+
+    @Override
+    public void onWarning(long lineNum, String message) {
+        handler.onWarning(lineNum, message);
+    }
+
+    @Override
+    public void onEnd() {
+        endSegment();
+        handler.onEnd();
+    }
+
+    /**
+     * Passes on the last dropped point, if any, and starts over.
+     */
+    private void endSegment() {
+        if(hasPending) {
+            hasPending = false;
+            keep(pendingLat, pendingLon, pendingEle, pendingTime,
+                pendingLatScale, pendingLonScale);
+        }
+        hasKept = false;
+    }
+
+    private void keep(double lat, double lon, double ele, long time,
+        int latScale, int lonScale) {
+        nRetained++;
+        passScales(latScale, lonScale);
+        if(!hasKept || lat != keptLat) {
+            keptCos = Math.cos(Math.toRadians(lat));
+        }
+        hasKept = true;
+        keptLat = lat;
+        keptLon = lon;
+        keptTime = time;
+        handler.onTrackpoint(lat, lon, ele, time);
+    }
+
+    /**
+     * Calls onCoordinateScales if the scales of a point being passed on
+     * differ from those of the last one.
+     */
+    private void passScales(int latScale, int lonScale) {
+        if(latScale != passedLatScale || lonScale != passedLonScale) {
+            passedLatScale = latScale;
+            passedLonScale = lonScale;
+            handler.onCoordinateScales(latScale, lonScale);
+        }
+    }
+
+    private boolean isFarEnough(double lat, double lon) {
+        if(tolerance <= 0) {
+            return true;
+        }
+        return GpslNumbers.getDistanceSquared(keptLat, keptLon, keptCos, lat,
+            lon) >= toleranceSquared;
+    }
+
+    private boolean isLateEnough(long time) {
+        if(minSpacing <= 0 || time == GpslTimeDecoder.NO_TIME
+            || keptTime == GpslTimeDecoder.NO_TIME) {
+            return true;
+        }
+        return time - keptTime >= minSpacing;
+    }
+
+    /**
+     * @return The number of trackpoints received.
+     */
+    public long getTrackpointCount() {
+        return nTrackpoints;
+    }
+
+    /**
+     * @return The number of trackpoints passed on.
+     */
+    public long getRetainedCount() {
+        return nRetained;
+    }
+
+    /**
+     * @return The number of trackpoints passed on divided by the number
+     *         received, or 1 if none were received.
+     */
+    public double getRetainedRatio() {
+        return nTrackpoints == 0 ? 1 : (double)nRetained / nTrackpoints;
+    }
+
+}
@@ -0,0 +1,59 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A problem found while parsing or saving a GPSL file.
+ */
+public class GpslDiagnostic
+{
+    /**
+     * The severity of a GpslDiagnostic. An ERROR means the operation failed.
+     */
+    public static enum Severity {
+        INFO, WARNING, ERROR
+    }
+
+    private final long lineNum;
+    private final Severity severity;
+    private final String message;
+
+    /**
+     * Constructor.
+     * 
+     * @param lineNum The line number or 0 if there is none.
+     * @param severity The severity.
+     * @param message The message.
+     */
+    public GpslDiagnostic(long lineNum, Severity severity, String message) {
+        this.lineNum = lineNum;
+        this.severity = severity;
+        this.message = message;
+    }
+
+    /**
+     * @return The line number or 0 if there is none.
+     */
+    public long getLineNumber() {
+        return lineNum;
+    }
+
+    /**
+     * @return The severity.
+     */
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * @return The message.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return severity + (lineNum > 0 ? " [" + lineNum + "]: " : ": ")
+            + message;
+    }
+
+}
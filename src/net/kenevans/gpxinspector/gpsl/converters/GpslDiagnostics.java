@@ -0,0 +1,79 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.kenevans.gpxinspector.gpsl.converters.GpslDiagnostic.Severity;
+
+/**
+ * The GpslDiagnostic's collected while parsing or saving a GPSL file. Nothing
+ * is shown to the user. Use GpslConverter.showDiagnostics for that.
+ */
+public class GpslDiagnostics
+{
+    private final List<GpslDiagnostic> list = new ArrayList<GpslDiagnostic>();
+    private int nErrors;
+    private int nWarnings;
+
+    /**
+     * Adds a diagnostic.
+     * 
+     * @param lineNum The line number or 0 if there is none.
+     * @param severity The severity.
+     * @param message The message.
+     */
+    public synchronized void add(long lineNum, Severity severity,
+        String message) {
+        list.add(new GpslDiagnostic(lineNum, severity, message));
+        if(severity == Severity.ERROR) {
+            nErrors++;
+        } else if(severity == Severity.WARNING) {
+            nWarnings++;
+        }
+    }
+
+    /**
+     * Adds an ERROR for an exception.
+     * 
+     * @param ex The exception.
+     */
+    public void add(Throwable ex) {
+        if(ex instanceof GpslParseException) {
+            add(((GpslParseException)ex).getLineNumber(), Severity.ERROR,
+                ex.getMessage());
+        } else {
+            add(0, Severity.ERROR, ex.toString());
+        }
+    }
+
+    /**
+     * @return An unmodifiable list of the diagnostics in the order they were
+     *         added.
+     */
+    public synchronized List<GpslDiagnostic> getList() {
+        return Collections.unmodifiableList(new ArrayList<GpslDiagnostic>(list));
+    }
+
+    /**
+     * @return If there are any ERROR diagnostics.
+     */
+    public synchronized boolean hasErrors() {
+        return nErrors > 0;
+    }
+
+    /**
+     * @return The number of ERROR diagnostics.
+     */
+    public synchronized int getErrorCount() {
+        return nErrors;
+    }
+
+    /**
+     * @return The number of WARNING diagnostics.
+     */
+    public synchronized int getWarningCount() {
+        return nWarnings;
+    }
+
+}
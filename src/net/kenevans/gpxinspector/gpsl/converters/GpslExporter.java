@@ -0,0 +1,600 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Exports a GPX file to GPSL without making a GpxType. The GPX file is read
+ * with a StAX XMLStreamReader, and each waypoint, route point, and trackpoint
+ * is written with a GpslWriter as soon as it has been read, so the memory
+ * used does not depend on the size of the file.<br>
+ * <br>
+ * The output is the same as that of GpslConverter.saveHeadless for the
+ * GpxType the file would be read into: the same header, the Waypoints, Routes,
+ * and Tracks sections in that order, Start for the first trackpoint of each
+ * segment and Cont for the rest, and the offset from the first trackpoint
+ * that has a time. Metadata and extensions are skipped, as they are by the
+ * save. A point without an elevation is written with 0.<br>
+ * <br>
+ * The file is read twice, first to find the time for the offset and to check
+ * that the waypoints, routes, and tracks are in the order of the schema, then
+ * to write them. If they are not in order, the second read is done once for
+ * each section instead. If the GpslWriter has a GpslOffsetResolver, the first
+ * read also finds the time of the first trackpoint of each track for its
+ * offset comment.
+ */
+public class GpslExporter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // The sections, which are also their order in the file
+    private static final int WAYPOINTS = 0;
+    private static final int ROUTES = 1;
+    private static final int TRACKS = 2;
+    private static final int NONE = -1;
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private final File gpxFile;
+    private final XMLInputFactory factory;
+    private DatatypeFactory datatypeFactory;
+    // The state of the current read
+    private XMLStreamReader reader;
+    private String namespace;
+    private final Point point = new Point();
+    /** The time of each track for its offset comment or null for none. */
+    private List<Long> trackTimes;
+    private int nTracks;
+
+    /**
+     * Constructor.
+     *
+     * @param gpxFile The GPX file.
+     */
+    public GpslExporter(File gpxFile) {
+        this.gpxFile = gpxFile;
+        factory = XMLInputFactory.newInstance();
+        // GPX files do not need a DTD, and this avoids reading external files
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+            Boolean.FALSE);
+    }
+
+    /**
+     * Writes the GPSL header and sections for the GPX file. An exporter is
+     * used by one thread at a time.
+     *
+     * @param writer The GpslWriter. It is not flushed.
+     * @throws XMLStreamException if the GPX file is invalid.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public void export(GpslWriter writer) throws IOException,
+        XMLStreamException {
+        Scan scan = new Scan();
+        if(writer.getOffsetResolver() != null) {
+            scan.trackTimes = new ArrayList<Long>();
+        }
+        read(null, NONE, scan);
+        trackTimes = scan.trackTimes;
+        XMLGregorianCalendar firstTime = null;
+        if(scan.firstTime != null) {
+            firstTime = parseDateTime(scan.firstTime);
+        }
+        writer.writeHeader(GpslConverter.getOffset(firstTime));
+        if(scan.inOrder) {
+            read(writer, NONE, null);
+        } else {
+            for(int section = WAYPOINTS; section <= TRACKS; section++) {
+                if(scan.found[section]) {
+                    read(writer, section, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the file once, either scanning it or writing one or all of the
+     * sections.
+     *
+     * @param writer The GpslWriter or null when scanning.
+     * @param only The section to write or NONE for all of them.
+     * @param scan Where to put what is found when scanning or null.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void read(GpslWriter writer, int only, Scan scan)
+        throws IOException, XMLStreamException {
+        InputStream in = null;
+        nTracks = 0;
+        try {
+            in = new BufferedInputStream(new FileInputStream(gpxFile),
+                BUFFER_SIZE);
+            reader = factory.createXMLStreamReader(in);
+            reader.nextTag();
+            namespace = getNamespace();
+            if(!"gpx".equals(reader.getLocalName())) {
+                throw new XMLStreamException("Not a GPX file",
+                    reader.getLocation());
+            }
+            // The section that has been written, so its header is not
+            // written again
+            int written = NONE;
+            int last = NONE;
+            while(nextChild()) {
+                int section = getSection();
+                if(section == NONE) {
+                    skip();
+                    continue;
+                }
+                if(scan != null) {
+                    scan.found[section] = true;
+                    if(section < last) {
+                        scan.inOrder = false;
+                    }
+                    last = Math.max(last, section);
+                    if(section == TRACKS && (scan.firstTime == null
+                        || scan.trackTimes != null)) {
+                        String time = findTime();
+                        if(scan.firstTime == null) {
+                            scan.firstTime = time;
+                        }
+                        if(scan.trackTimes != null) {
+                            scan.trackTimes.add(getInstant(time));
+                        }
+                    } else {
+                        skip();
+                    }
+                    continue;
+                }
+                if(only != NONE && section != only) {
+                    skip();
+                    continue;
+                }
+                if(section != written) {
+                    switch(section) {
+                    case WAYPOINTS:
+                        writer.writeSectionHeader("Waypoints", "Symbol");
+                        break;
+                    case ROUTES:
+                        writer.writeSectionHeader("Routes", "Symbol");
+                        break;
+                    case TRACKS:
+                        writer.writeSectionHeader("Tracks", "Time");
+                        break;
+                    }
+                    written = section;
+                }
+                switch(section) {
+                case WAYPOINTS:
+                    readPoint();
+                    writeWaypoint(writer);
+                    break;
+                case ROUTES:
+                    writeRoute(writer);
+                    break;
+                case TRACKS:
+                    writeTrack(writer);
+                    break;
+                }
+            }
+        } finally {
+            if(reader != null) {
+                reader.close();
+                reader = null;
+            }
+            if(in != null) in.close();
+        }
+    }
+
+    /**
+     * @return The section of the current child of the gpx element or NONE if
+     *         it is not a wpt, rte, or trk.
+     */
+    private int getSection() {
+        if(!isGpx()) {
+            return NONE;
+        }
+        String name = reader.getLocalName();
+        if(name.equals("wpt")) {
+            return WAYPOINTS;
+        } else if(name.equals("rte")) {
+            return ROUTES;
+        } else if(name.equals("trk")) {
+            return TRACKS;
+        }
+        return NONE;
+    }
+
+    /**
+     * Reads a trk element, stopping at the first trackpoint with a time.
+     *
+     * @return The time or null if no trackpoint has one.
+     * @throws XMLStreamException
+     */
+    private String findTime() throws XMLStreamException {
+        while(nextChild()) {
+            if(!is("trkseg")) {
+                skip();
+                continue;
+            }
+            while(nextChild()) {
+                if(!is("trkpt")) {
+                    skip();
+                    continue;
+                }
+                readPoint();
+                if(point.time != null) {
+                    skip();
+                    skip();
+                    return point.time;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the instant of a time, allowing for its timezone, as is done for
+     * the offset of a GpxType.
+     *
+     * @param time The time or null.
+     * @return The UTC time in seconds since the epoch or
+     *         GpslTimeDecoder.NO_TIME if the time is null.
+     * @throws XMLStreamException if the time is invalid.
+     */
+    private long getInstant(String time) throws XMLStreamException {
+        if(time == null) {
+            return GpslTimeDecoder.NO_TIME;
+        }
+        return GpslTimeDecoder.floorDiv(parseDateTime(time)
+            .toGregorianCalendar().getTimeInMillis(), 1000);
+    }
+
+    /**
+     * Writes the R line and the route points of an rte element. The name
+     * comes before the points in the schema.
+     *
+     * @param writer The GpslWriter.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void writeRoute(GpslWriter writer) throws IOException,
+        XMLStreamException {
+        String name = null;
+        boolean started = false;
+        while(nextChild()) {
+            if(is("name") && !started) {
+                name = reader.getElementText();
+            } else if(is("rtept")) {
+                if(!started) {
+                    writer.writeRoute(name);
+                    started = true;
+                }
+                readPoint();
+                writeWaypoint(writer);
+            } else {
+                skip();
+            }
+        }
+        if(!started) {
+            writer.writeRoute(name);
+        }
+    }
+
+    /**
+     * Writes the H line and the trackpoints of a trk element. The name comes
+     * before the segments in the schema.
+     *
+     * @param writer The GpslWriter.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void writeTrack(GpslWriter writer) throws IOException,
+        XMLStreamException {
+        String name = null;
+        boolean started = false;
+        if(trackTimes != null) {
+            writer.writeTrackOffset(trackTimes.get(nTracks++));
+        }
+        while(nextChild()) {
+            if(is("name") && !started) {
+                name = reader.getElementText();
+            } else if(is("trkseg")) {
+                if(!started) {
+                    writer.writeTrackStart(name);
+                    started = true;
+                }
+                boolean first = true;
+                while(nextChild()) {
+                    if(is("trkpt")) {
+                        readPoint();
+                        writeTrackpoint(writer, first);
+                        first = false;
+                    } else {
+                        skip();
+                    }
+                }
+            } else {
+                skip();
+            }
+        }
+        if(!started) {
+            writer.writeTrackStart(name);
+        }
+    }
+
+    private void writeWaypoint(GpslWriter writer) throws IOException {
+        writer.writeWaypoint(point.name, point.lat, point.lon, point.ele,
+            point.symbol);
+    }
+
+    private void writeTrackpoint(GpslWriter writer, boolean first)
+        throws IOException, XMLStreamException {
+        if(point.time == null) {
+            writer.writeTrackpoint(first, point.lat, point.lon, point.ele,
+                GpslTimeDecoder.NO_TIME);
+            return;
+        }
+        long seconds = toEpochSeconds(point.time);
+        if(seconds != GpslTimeDecoder.NO_TIME) {
+            writer.writeTrackpoint(first, point.lat, point.lon, point.ele,
+                seconds);
+        } else {
+            writer.writeTrackpoint(first, point.lat, point.lon, point.ele,
+                parseDateTime(point.time));
+        }
+    }
+
+    /**
+     * Reads the attributes and children of a wpt, rtept, or trkpt element
+     * into the Point.
+     *
+     * @throws XMLStreamException
+     */
+    private void readPoint() throws XMLStreamException {
+        point.lat = parseDouble(reader.getAttributeValue(null, "lat"), "lat");
+        point.lon = parseDouble(reader.getAttributeValue(null, "lon"), "lon");
+        point.ele = 0;
+        point.time = null;
+        point.name = null;
+        point.symbol = null;
+        while(nextChild()) {
+            if(!isGpx()) {
+                skip();
+                continue;
+            }
+            String name = reader.getLocalName();
+            if(name.equals("ele")) {
+                point.ele = parseDouble(reader.getElementText(), "ele");
+            } else if(name.equals("time")) {
+                point.time = reader.getElementText();
+            } else if(name.equals("name")) {
+                point.name = reader.getElementText();
+            } else if(name.equals("sym")) {
+                point.symbol = reader.getElementText();
+            } else {
+                skip();
+            }
+        }
+    }
+
+    private double parseDouble(String text, String name)
+        throws XMLStreamException {
+        if(text == null) {
+            throw new XMLStreamException("Missing " + name,
+                reader.getLocation());
+        }
+        try {
+            // Adding 0 makes -0 into 0, as it is in the BigDecimal of a
+            // GpxType
+            return Double.parseDouble(text.trim()) + 0.0;
+        } catch(NumberFormatException ex) {
+            throw new XMLStreamException("Invalid " + name + ": " + text,
+                reader.getLocation());
+        }
+    }
+
+    /**
+     * Parses an xsd:dateTime the way it is parsed into a GpxType.
+     *
+     * @param text The text.
+     * @return The XMLGregorianCalendar.
+     * @throws XMLStreamException if it is invalid.
+     */
+    private XMLGregorianCalendar parseDateTime(String text)
+        throws XMLStreamException {
+        try {
+            if(datatypeFactory == null) {
+                datatypeFactory = DatatypeFactory.newInstance();
+            }
+            return datatypeFactory.newXMLGregorianCalendar(text.trim());
+        } catch(DatatypeConfigurationException ex) {
+            throw new XMLStreamException(ex);
+        } catch(IllegalArgumentException ex) {
+            throw new XMLStreamException("Invalid time: " + text,
+                reader == null ? null : reader.getLocation());
+        }
+    }
+
+    /**
+     * Converts the common form of an xsd:dateTime,
+     * yyyy-mm-ddThh:mm:ss[.s+][Z|(+|-)hh:mm], to the seconds
+     * GpslTimeEncoder.toEpochSeconds would give for its XMLGregorianCalendar:
+     * the fields are taken as GMT, and the fractional seconds are dropped.
+     * Anything else, including days after the 28th, which need the check
+     * against the month, is left to parseDateTime.
+     *
+     * @param text The text.
+     * @return The seconds or GpslTimeDecoder.NO_TIME if it is not in the
+     *         common form.
+     */
+    static long toEpochSeconds(String text) {
+        int start = 0;
+        int end = text.length();
+        while(start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while(end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if(end - start < 19 || text.charAt(start + 4) != '-'
+            || text.charAt(start + 7) != '-'
+            || text.charAt(start + 10) != 'T'
+            || text.charAt(start + 13) != ':'
+            || text.charAt(start + 16) != ':') {
+            return GpslTimeDecoder.NO_TIME;
+        }
+        int year = digits(text, start, 4);
+        int month = digits(text, start + 5, 2);
+        int day = digits(text, start + 8, 2);
+        int hour = digits(text, start + 11, 2);
+        int minute = digits(text, start + 14, 2);
+        int second = digits(text, start + 17, 2);
+        if(year < 1 || month < 1 || month > 12 || day < 1 || day > 28
+            || hour < 0 || hour > 23 || minute < 0 || minute > 59
+            || second < 0 || second > 59) {
+            return GpslTimeDecoder.NO_TIME;
+        }
+        int pos = start + 19;
+        if(pos < end && text.charAt(pos) == '.') {
+            int fractionStart = ++pos;
+            while(pos < end && isDigit(text.charAt(pos))) {
+                pos++;
+            }
+            if(pos == fractionStart) {
+                return GpslTimeDecoder.NO_TIME;
+            }
+        }
+        if(pos < end) {
+            char c = text.charAt(pos);
+            if(c == 'Z') {
+                pos++;
+            } else if((c == '+' || c == '-') && end - pos == 6
+                && text.charAt(pos + 3) == ':') {
+                int tzHour = digits(text, pos + 1, 2);
+                int tzMinute = digits(text, pos + 4, 2);
+                if(tzHour < 0 || tzMinute < 0 || tzMinute > 59 || tzHour > 14
+                    || tzHour == 14 && tzMinute != 0) {
+                    return GpslTimeDecoder.NO_TIME;
+                }
+                pos += 6;
+            }
+        }
+        if(pos != end) {
+            return GpslTimeDecoder.NO_TIME;
+        }
+        return GpslTimeDecoder.daysFromCivil(year, month, day)
+            * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+    }
+
+    /**
+     * @return The value of n decimal digits or -1 if they are not all digits.
+     */
+    private static int digits(String text, int pos, int n) {
+        int value = 0;
+        for(int i = pos; i < pos + n; i++) {
+            char c = text.charAt(i);
+            if(!isDigit(c)) {
+                return -1;
+            }
+            value = 10 * value + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Moves to the next child of the current element.
+     *
+     * @return True if at the start of a child or false if at the end of the
+     *         current element.
+     * @throws XMLStreamException
+     */
+    private boolean nextChild() throws XMLStreamException {
+        while(true) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Skips to the end of the current element.
+     *
+     * @throws XMLStreamException
+     */
+    private void skip() throws XMLStreamException {
+        int depth = 1;
+        while(depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return Whether the current element is in the namespace of the gpx
+     *         element.
+     */
+    private boolean isGpx() {
+        return namespace.equals(getNamespace());
+    }
+
+    /**
+     * @return The namespace of the current element, "" if it has none.
+     */
+    private String getNamespace() {
+        String ns = reader.getNamespaceURI();
+        return ns == null ? "" : ns;
+    }
+
+    private boolean is(String name) {
+        return isGpx() && name.equals(reader.getLocalName());
+    }
+
+    /**
+     * The fields of the point being read.
+     */
+    private static class Point
+    {
+        double lat;
+        double lon;
+        double ele;
+        String time;
+        String name;
+        String symbol;
+    }
+
+    /**
+     * What the first read finds.
+     */
+    private static class Scan
+    {
+        final boolean[] found = new boolean[TRACKS + 1];
+        boolean inOrder = true;
+        String firstTime;
+        /** The time of each track if they are wanted or null. */
+        List<Long> trackTimes;
+    }
+
+}
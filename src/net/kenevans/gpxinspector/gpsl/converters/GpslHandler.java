@@ -0,0 +1,116 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * Receives the contents of a GPSL file from a GpslReader as they are read.
+ * Nothing is kept by the reader, so a handler that does not store the values
+ * uses the same amount of memory regardless of the size of the file.<br>
+ * <br>
+ * Elevations are in meters and times are UTC seconds since the epoch, or
+ * GpslTimeDecoder.NO_TIME if the trackpoint has no time. Latitudes and
+ * longitudes are doubles, and their number of decimal places in the file is
+ * passed separately to onCoordinateScales when it changes, for handlers that
+ * need the exact decimals.
+ * 
+ * @see GpslHandlerAdapter
+ */
+public interface GpslHandler
+{
+    /**
+     * Called after the header has been read.
+     * 
+     * @param delimiter The delimiter used in the file.
+     * @param offset The GMTOffset as it is in the file.
+     */
+    void onHeader(char delimiter, String offset);
+
+    /**
+     * Called for a waypoint that is not part of a route.
+     * 
+     * @param name The name.
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @param ele The elevation in meters.
+     * @param symbol The symbol.
+     */
+    void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol);
+
+    /**
+     * Called when a route starts.
+     * 
+     * @param name The name.
+     */
+    void onRouteStart(String name);
+
+    /**
+     * Called for a waypoint in the current route.
+     * 
+     * @param name The name.
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @param ele The elevation in meters.
+     * @param symbol The symbol.
+     */
+    void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol);
+
+    /**
+     * Called when the current route ends.
+     */
+    void onRouteEnd();
+
+    /**
+     * Called when a track starts.
+     * 
+     * @param name The name.
+     */
+    void onTrackStart(String name);
+
+    /**
+     * Called when a segment starts in the current track.
+     */
+    void onSegmentStart();
+
+    /**
+     * Called for a trackpoint in the current segment.
+     * 
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     */
+    void onTrackpoint(double lat, double lon, double ele, long time);
+
+    /**
+     * Called before a waypoint, route point, or trackpoint whose latitude or
+     * longitude has a different scale, that is, number of decimal places in
+     * the file, from that of the point before. The scales are 6, as GPSLink
+     * writes them, until this is called. A scale of -1 means the text was not
+     * a plain decimal of at most 15 digits, and the shortest decimal that
+     * gives the double should be used.
+     * 
+     * @param latScale The scale of the latitudes.
+     * @param lonScale The scale of the longitudes.
+     */
+    void onCoordinateScales(int latScale, int lonScale);
+
+    /**
+     * Called when the current track ends.
+     */
+    void onTrackEnd();
+
+    /**
+     * Called for a problem that does not stop the reading.
+     * 
+     * @param lineNum The line number.
+     * @param message The message.
+     */
+    void onWarning(long lineNum, String message);
+
+    /**
+     * Called when the end of the file has been reached.
+     */
+    void onEnd();
+
+}
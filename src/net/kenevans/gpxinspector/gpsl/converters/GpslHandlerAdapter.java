@@ -0,0 +1,59 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A GpslHandler that does nothing. Extend it and override only the methods of
+ * interest.
+ */
+public class GpslHandlerAdapter implements GpslHandler
+{
+    @Override
+    public void onHeader(char delimiter, String offset) {
+    }
+
+    @Override
+    public void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol) {
+    }
+
+    @Override
+    public void onRouteStart(String name) {
+    }
+
+    @Override
+    public void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol) {
+    }
+
+    @Override
+    public void onRouteEnd() {
+    }
+
+    @Override
+    public void onTrackStart(String name) {
+    }
+
+    @Override
+    public void onSegmentStart() {
+    }
+
+    @Override
+    public void onTrackpoint(double lat, double lon, double ele, long time) {
+    }
+
+    @Override
+    public void onCoordinateScales(int latScale, int lonScale) {
+    }
+
+    @Override
+    public void onTrackEnd() {
+    }
+
+    @Override
+    public void onWarning(long lineNum, String message) {
+    }
+
+    @Override
+    public void onEnd() {
+    }
+
+}
@@ -0,0 +1,74 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A List whose elements are loaded the first time anything, including the
+ * size, is asked of it. After that it behaves like an ArrayList. If loading
+ * fails, the exception is thrown to the caller, and loading is tried again
+ * the next time. It is used for the fields of the lazy GpxType classes, so
+ * that JAXB, which uses the fields directly, also causes them to be loaded.
+ * 
+ * @param <E> The element type.
+ */
+abstract class GpslLazyList<E> extends AbstractList<E> implements
+    RandomAccess
+{
+    private ArrayList<E> items;
+
+    /**
+     * Loads the elements.
+     * 
+     * @param list The list to add them to.
+     */
+    abstract void load(List<E> list);
+
+    private synchronized ArrayList<E> items() {
+        if(items == null) {
+            ArrayList<E> list = new ArrayList<E>();
+            load(list);
+            list.trimToSize();
+            items = list;
+        }
+        return items;
+    }
+
+    /**
+     * @return Whether the elements have been loaded.
+     */
+    synchronized boolean isLoaded() {
+        return items != null;
+    }
+
+    @Override
+    public int size() {
+        return items().size();
+    }
+
+    @Override
+    public E get(int index) {
+        return items().get(index);
+    }
+
+    @Override
+    public E set(int index, E element) {
+        return items().set(index, element);
+    }
+
+    @Override
+    public void add(int index, E element) {
+        items().add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E removed = items().remove(index);
+        modCount++;
+        return removed;
+    }
+
+}
@@ -0,0 +1,429 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Parses a GPSL file lazily. A first pass classifies the lines without
+ * decoding their fields and records the byte range, first line, name, and
+ * number of points of each route and track, applying the same rules as
+ * GpslReader. The waypoints are then read, and the routes and tracks are
+ * added as GpslLazyRteType and GpslLazyTrkType objects that read their points
+ * from the file when they are first asked for.<br>
+ * <br>
+ * This only works if the lines of each route and track are together. If other
+ * records are mixed in, nothing is added to the builder and load returns false
+ * so the file can be parsed normally. Since the points are not decoded until
+ * they are needed, an invalid route point or trackpoint, or a change to the
+ * file, is found only when its route or track is read. The list being read
+ * then throws an IllegalStateException, and it tries again the next time it
+ * is asked.<br>
+ * <br>
+ * Each track is read with the offset in effect at its first trackpoint, which
+ * is the one in the header or in the last offset comment before it.
+ */
+class GpslLazyLoader
+{
+    private final File file;
+    private final GpxTypeBuilder builder;
+    private long length;
+    private long lastModified;
+    private char delimiter;
+    private GpslTimeDecoder timeDecoder;
+    private GpslMetrics.Counts counts;
+
+    /**
+     * Constructor.
+     *
+     * @param file The file.
+     * @param builder The builder that gets the header, warnings, and
+     *            waypoints and whose GpxType gets the routes and tracks.
+     */
+    GpslLazyLoader(File file, GpxTypeBuilder builder) {
+        this.file = file;
+        this.builder = builder;
+    }
+
+    /**
+     * Indexes the file and, if possible, fills in the GpxType of the builder.
+     *
+     * @return Whether the GpxType was filled in. If not, nothing has been
+     *         passed to the builder.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    boolean load() throws IOException {
+        length = file.length();
+        lastModified = file.lastModified();
+        // Keep the header and warnings until it is known the index can be
+        // used
+        GpslRecording warnings = new GpslRecording();
+        Index index = new Index();
+        // Count the index separately since it is not counted if the file is
+        // parsed normally instead
+        GpslMetrics.Counts indexCounts = counts == null ? null
+            : new GpslMetrics.Counts();
+        boolean fallBack = false;
+        FileInputStream in = null;
+        GpslTokenizer tokenizer = null;
+        long start = counts == null ? 0 : System.nanoTime();
+        try {
+            in = new FileInputStream(file);
+            tokenizer = new GpslTokenizer(in.getChannel());
+            tokenizer.setCounts(indexCounts);
+            tokenizer.readHeader(warnings);
+            warnings.onHeader(tokenizer.getDelimiter(), tokenizer.getOffset());
+            delimiter = tokenizer.getDelimiter();
+            timeDecoder = tokenizer.getTimeDecoder();
+            if(indexCounts != null) {
+                long now = System.nanoTime();
+                indexCounts.headerNanos += now - start;
+                start = now;
+            }
+            if(!index.build(tokenizer, timeDecoder, warnings)) {
+                fallBack = true;
+                return false;
+            }
+        } finally {
+            if(in != null) in.close();
+            if(indexCounts != null && tokenizer != null && !fallBack) {
+                // Only the index is counted, not the lazy reads
+                indexCounts.bodyNanos += System.nanoTime() - start;
+                indexCounts.bytes += tokenizer.getBytesRead();
+                indexCounts.lines += tokenizer.getLineNumber();
+                indexCounts.skippedLines += index.skippedLines;
+                counts.add(indexCounts);
+            }
+        }
+
+        warnings.replay(builder);
+        // Read the waypoints, which are not lazy
+        GpslTokenizer.Sink sink = new GpslTokenizer.Sink() {
+            public void blankLine() {
+            }
+
+            public void waypoint(String name, double lat, double lon,
+                double ele, String symbol, int latScale, int lonScale) {
+                builder.onCoordinateScales(latScale, lonScale);
+                builder.onWaypoint(name, lat, lon, ele, symbol);
+            }
+
+            public void route(String name) {
+            }
+
+            public void track(String name) {
+            }
+
+            public void trackpoint(boolean startSegment, double lat,
+                double lon, double ele, long time, int latScale,
+                int lonScale) {
+            }
+        };
+        for(Block block : index.waypoints) {
+            read(block, sink);
+        }
+
+        GpxType gpx = builder.getGpx();
+        for(Block block : index.routes) {
+            gpx.getRte().add(new GpslLazyRteType(this, block));
+        }
+        for(Block block : index.tracks) {
+            gpx.getTrk().add(new GpslLazyTrkType(this, block));
+        }
+        builder.onEnd();
+        return true;
+    }
+
+    /**
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     */
+    void setCounts(GpslMetrics.Counts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * Reads the points of a route.
+     *
+     * @param block The index entry for the route.
+     * @param list The list to add them to.
+     * @throws IllegalStateException if they cannot be read.
+     */
+    void loadRoute(Block block, final List<WptType> list) {
+        readLazy(block, new GpslTokenizer.Sink() {
+            public void blankLine() {
+            }
+
+            public void waypoint(String name, double lat, double lon,
+                double ele, String symbol, int latScale, int lonScale) {
+                list.add(GpxTypeBuilder.newWaypoint(name, lat, lon, ele,
+                    symbol, latScale, lonScale));
+            }
+
+            public void route(String name) {
+            }
+
+            public void track(String name) {
+            }
+
+            public void trackpoint(boolean startSegment, double lat,
+                double lon, double ele, long time, int latScale,
+                int lonScale) {
+            }
+        });
+    }
+
+    /**
+     * Reads the segments of a track.
+     *
+     * @param block The index entry for the track.
+     * @param list The list to add them to.
+     * @throws IllegalStateException if they cannot be read.
+     */
+    void loadTrack(Block block, final List<TrksegType> list) {
+        readLazy(block, new GpslTokenizer.Sink() {
+            private TrksegType trksegType;
+
+            public void blankLine() {
+            }
+
+            public void waypoint(String name, double lat, double lon,
+                double ele, String symbol, int latScale, int lonScale) {
+            }
+
+            public void route(String name) {
+            }
+
+            public void track(String name) {
+            }
+
+            public void trackpoint(boolean startSegment, double lat,
+                double lon, double ele, long time, int latScale,
+                int lonScale) {
+                if(startSegment || trksegType == null) {
+                    trksegType = builder.newSegment();
+                    list.add(trksegType);
+                }
+                if(trksegType instanceof GpslTrksegType) {
+                    ((GpslTrksegType)trksegType).getTrackpoints().add(lat,
+                        lon, ele, time, latScale, lonScale);
+                } else {
+                    trksegType.getTrkpt().add(
+                        GpxTypeBuilder.newTrackpoint(lat, lon, ele, time,
+                            latScale, lonScale));
+                }
+            }
+        });
+        for(TrksegType trksegType : list) {
+            if(trksegType instanceof GpslTrksegType) {
+                ((GpslTrksegType)trksegType).getTrackpoints().trimToSize();
+            }
+        }
+    }
+
+    /**
+     * Reads the lines of a route or track.
+     *
+     * @param block The index entry.
+     * @param sink The sink for the records.
+     * @throws IllegalStateException if they cannot be read.
+     */
+    private void readLazy(Block block, GpslTokenizer.Sink sink) {
+        if(block.start == block.end) {
+            return;
+        }
+        try {
+            if(file.length() != length || file.lastModified() != lastModified) {
+                throw new IOException("The file has changed since it was "
+                    + "opened, so " + block.name + " cannot be read");
+            }
+            read(block, sink);
+        } catch(IOException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads the lines in a block and passes them to a sink.
+     *
+     * @param block The index entry.
+     * @param sink The sink.
+     * @throws GpslParseException if a line is invalid.
+     * @throws IOException
+     */
+    private void read(Block block, GpslTokenizer.Sink sink)
+        throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            GpslTokenizer tokenizer = new GpslTokenizer(in.getChannel(),
+                block.start, block.end, delimiter,
+                block.timeDecoder != null ? block.timeDecoder : timeDecoder);
+            while(tokenizer.next(sink)) {
+                // The sink does the work
+            }
+        } catch(GpslParseException ex) {
+            throw ex.relocate(block.firstLine - 1);
+        } finally {
+            if(in != null) in.close();
+        }
+    }
+
+    /**
+     * An entry in the index: a range of lines that are together in the file.
+     */
+    static class Block
+    {
+        final String name;
+        /** The position of the first point. */
+        long start;
+        /** The position after the last point. */
+        long end;
+        /** The line number of the first point. */
+        long firstLine;
+        int nPoints;
+        /** Whether another record has been found after the points. */
+        boolean interrupted;
+        /**
+         * The decoder for the offset in effect at the first point or null to
+         * use the one for the header.
+         */
+        GpslTimeDecoder timeDecoder;
+
+        Block(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Adds a point.
+         *
+         * @param lineStart The position of the line.
+         * @param lineEnd The position after the line.
+         * @param lineNum The line number.
+         * @return False if the point is not next to the others.
+         */
+        boolean add(long lineStart, long lineEnd, long lineNum) {
+            if(nPoints == 0) {
+                start = lineStart;
+                firstLine = lineNum;
+            } else if(interrupted) {
+                return false;
+            }
+            end = lineEnd;
+            nPoints++;
+            return true;
+        }
+    }
+
+    /**
+     * Builds the index by classifying the lines of the body and following the
+     * routes and tracks in progress.
+     */
+    private static class Index
+    {
+        private final List<Block> waypoints = new ArrayList<Block>();
+        private final List<Block> routes = new ArrayList<Block>();
+        private final List<Block> tracks = new ArrayList<Block>();
+        private Block waypointBlock;
+        private Block route;
+        private Block track;
+        /** The number of trackpoints without a track. */
+        private long skippedLines;
+
+        /**
+         * @param tokenizer The tokenizer, positioned after the header.
+         * @param timeDecoder The decoder for the offset in the header.
+         * @param handler The handler for warnings.
+         * @return False if the lines of a route or track are not together.
+         * @throws IOException
+         */
+        boolean build(GpslTokenizer tokenizer, GpslTimeDecoder timeDecoder,
+            GpslHandler handler) throws IOException {
+            while(true) {
+                int type = tokenizer.nextLineType();
+                if(type == GpslTokenizer.LINE_END) {
+                    return true;
+                }
+                long lineStart = tokenizer.getLinePosition();
+                switch(type) {
+                case GpslTokenizer.LINE_BLANK:
+                    // A blank line will terminate routes and tracks in
+                    // progress
+                    route = null;
+                    track = null;
+                    break;
+                case GpslTokenizer.LINE_COMMENT:
+                    String offset = tokenizer.getCommentOffset();
+                    if(offset != null) {
+                        timeDecoder = new GpslTimeDecoder(offset);
+                    }
+                    break;
+                case GpslTokenizer.LINE_W:
+                    if(route != null) {
+                        if(!route.add(lineStart, tokenizer.getPosition(),
+                            tokenizer.getLineNumber())) {
+                            return false;
+                        }
+                    } else {
+                        // Waypoints that are together are read together
+                        if(waypointBlock == null
+                            || waypointBlock.end != lineStart) {
+                            waypointBlock = new Block(null);
+                            waypoints.add(waypointBlock);
+                        }
+                        waypointBlock.add(lineStart, tokenizer.getPosition(),
+                            tokenizer.getLineNumber());
+                    }
+                    interrupt(track);
+                    break;
+                case GpslTokenizer.LINE_R:
+                    route = new Block(tokenizer.getLineName());
+                    routes.add(route);
+                    interrupt(track);
+                    break;
+                case GpslTokenizer.LINE_H:
+                    track = new Block(tokenizer.getLineName());
+                    tracks.add(track);
+                    interrupt(route);
+                    break;
+                case GpslTokenizer.LINE_T:
+                    if(track != null) {
+                        if(track.nPoints == 0) {
+                            track.timeDecoder = timeDecoder;
+                            if(!tokenizer.isLineSegmentStart()) {
+                                long lineNum = tokenizer.getLineNumber();
+                                handler.onWarning(lineNum, "Line " + lineNum
+                                    + " Found continued trackpoint without"
+                                    + " segment");
+                            }
+                        }
+                        if(!track.add(lineStart, tokenizer.getPosition(),
+                            tokenizer.getLineNumber())) {
+                            return false;
+                        }
+                    } else {
+                        long lineNum = tokenizer.getLineNumber();
+                        handler.onWarning(lineNum, "Line " + lineNum
+                            + " Found trackpoint without track");
+                        skippedLines++;
+                    }
+                    interrupt(route);
+                    break;
+                }
+            }
+        }
+
+        private void interrupt(Block block) {
+            if(block != null && block.nPoints > 0) {
+                block.interrupted = true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.List;
+
+import net.kenevans.gpxtrackpointextensionsv1.RteType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * A RteType made by a lazy parse. The name is known from the index, and the
+ * route points are read from the file the first time they are asked for.
+ */
+public class GpslLazyRteType extends RteType
+{
+    private final GpslLazyLoader.Block block;
+    private final GpslLazyList<WptType> items;
+
+    /**
+     * Constructor.
+     * 
+     * @param loader The loader that made the index.
+     * @param block The index entry for the route.
+     */
+    GpslLazyRteType(final GpslLazyLoader loader,
+        final GpslLazyLoader.Block block) {
+        this.block = block;
+        setName(block.name);
+        items = new GpslLazyList<WptType>() {
+            @Override
+            void load(List<WptType> list) {
+                loader.loadRoute(block, list);
+            }
+        };
+        rtept = items;
+    }
+
+    /**
+     * @return Whether the route points have been read.
+     */
+    public boolean isLoaded() {
+        return items.isLoaded();
+    }
+
+    /**
+     * @return The number of route points found by the index.
+     */
+    public int getPointCount() {
+        return block.nPoints;
+    }
+
+}
@@ -0,0 +1,51 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.List;
+
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+
+/**
+ * A TrkType made by a lazy parse. The name is known from the index, and the
+ * segments are read from the file the first time they are asked for.
+ */
+public class GpslLazyTrkType extends TrkType
+{
+    private final GpslLazyLoader.Block block;
+    private final GpslLazyList<TrksegType> items;
+
+    /**
+     * Constructor.
+     * 
+     * @param loader The loader that made the index.
+     * @param block The index entry for the track.
+     */
+    GpslLazyTrkType(final GpslLazyLoader loader,
+        final GpslLazyLoader.Block block) {
+        this.block = block;
+        setName(block.name);
+        setDesc(block.name);
+        items = new GpslLazyList<TrksegType>() {
+            @Override
+            void load(List<TrksegType> list) {
+                loader.loadTrack(block, list);
+            }
+        };
+        trkseg = items;
+    }
+
+    /**
+     * @return Whether the segments have been read.
+     */
+    public boolean isLoaded() {
+        return items.isLoaded();
+    }
+
+    /**
+     * @return The number of trackpoints found by the index.
+     */
+    public int getPointCount() {
+        return block.nPoints;
+    }
+
+}
@@ -0,0 +1,441 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.kenevans.gpxinspector.gpsl.converters.GpslDiagnostic.Severity;
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.RteType;
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Merges several GPSL files into one GpxType with the trackpoints in time
+ * order. All the files are open at once and are read a line at a time, so
+ * only the read buffer of each file is in memory besides the GpxType being
+ * built. A heap holds the next trackpoint of each file, and the earliest is
+ * added to the GpxType each time. The times are UTC, converted using the
+ * GMTOffset of the file they came from.<br>
+ * <br>
+ * Tracks of different files that overlap in time are merged into one track,
+ * named after the first of them, and their points are interleaved in time
+ * order. A segment of the result goes on while any segment of the files that
+ * is in it has more points, so overlapping segments are merged the same way,
+ * and a new segment starts only when all of them have ended. A track that
+ * overlaps no other one is kept as it is. A trackpoint that is the same as
+ * the last one added, from another file, is dropped, since logs downloaded at
+ * different times often repeat the same points.<br>
+ * <br>
+ * A trackpoint without a time keeps its place after the one before it in its
+ * file. Each file is assumed to be in time order; one that is not is still
+ * merged, but its trackpoints are not reordered. The waypoints are added in
+ * file order through the GpslWaypointIndex, if any, so duplicates in
+ * different files can be merged, and the routes are added in file order.
+ */
+public class GpslMerger
+{
+    private final List<File> files;
+    private boolean columnarTracks;
+    private GpslWaypointIndex waypointIndex;
+
+    /**
+     * Constructor.
+     *
+     * @param files The files.
+     */
+    public GpslMerger(List<File> files) {
+        this.files = new ArrayList<File>(files);
+    }
+
+    /**
+     * Merges the files. If any file cannot be read, the merge fails.
+     *
+     * @return The result, whose GpxType is null if the merge failed.
+     */
+    public GpslParseResult merge() {
+        GpslDiagnostics diagnostics = new GpslDiagnostics();
+        GpxTypeBuilder builder = new GpxTypeBuilder();
+        builder.setColumnarTracks(columnarTracks);
+        builder.setWaypointIndex(waypointIndex);
+        Tracks tracks = new Tracks(builder);
+        List<Source> sources = new ArrayList<Source>(files.size());
+        PriorityQueue<Source> heap = new PriorityQueue<Source>(Math.max(1,
+            files.size()), new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                if(a.key != b.key) {
+                    return a.key < b.key ? -1 : 1;
+                }
+                return a.number - b.number;
+            }
+        });
+        Source source = null;
+        try {
+            for(File file : files) {
+                source = new Source(sources.size(), file, builder, tracks,
+                    diagnostics);
+                sources.add(source);
+                source.open();
+                if(source.advance()) {
+                    heap.add(source);
+                }
+            }
+            while(!heap.isEmpty()) {
+                source = heap.poll();
+                source.addTrackpoint();
+                if(source.advance()) {
+                    heap.add(source);
+                }
+            }
+            source = null;
+            tracks.endSegment();
+            GpxType gpx = builder.getGpx();
+            for(Source src : sources) {
+                for(WptType wpt : src.waypoints) {
+                    builder.addWaypoint(wpt);
+                }
+                gpx.getRte().addAll(src.routes);
+            }
+            builder.onEnd();
+        } catch(IOException ex) {
+            String name = source == null ? "" : source.file.getName() + ": ";
+            if(ex instanceof GpslParseException) {
+                diagnostics.add(((GpslParseException)ex).getLineNumber(),
+                    Severity.ERROR, name + ex.getMessage());
+            } else {
+                diagnostics.add(0, Severity.ERROR, name + ex.toString());
+            }
+            return new GpslParseResult(null, diagnostics);
+        } finally {
+            for(Source src : sources) {
+                try {
+                    src.reader.close();
+                } catch(IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+        GpslWaypointIndex index = builder.getWaypointIndex();
+        if(index != null && index.getDuplicateCount() > 0) {
+            diagnostics.add(0, Severity.INFO, "Dropped "
+                + index.getDuplicateCount() + " duplicate waypoints using "
+                + index.getPolicy());
+        }
+        return new GpslParseResult(builder.getGpx(), diagnostics);
+    }
+
+    /**
+     * @return Whether the trackpoints are stored in columns.
+     */
+    public boolean isColumnarTracks() {
+        return columnarTracks;
+    }
+
+    /**
+     * @param columnarTracks Whether the trackpoints are stored in columns, as
+     *            for GpxTypeBuilder.
+     */
+    public void setColumnarTracks(boolean columnarTracks) {
+        this.columnarTracks = columnarTracks;
+    }
+
+    /**
+     * @return The index used to merge duplicate waypoints or null if there is
+     *         none.
+     */
+    public GpslWaypointIndex getWaypointIndex() {
+        return waypointIndex;
+    }
+
+    /**
+     * @param waypointIndex The index used to merge duplicate waypoints or null
+     *            to keep all of them.
+     */
+    public void setWaypointIndex(GpslWaypointIndex waypointIndex) {
+        this.waypointIndex = waypointIndex;
+    }
+
+    /**
+     * The tracks of the result. It keeps the track and segment that are being
+     * added to and how many tracks and segments of the files are in them and
+     * have not ended.
+     */
+    private static class Tracks
+    {
+        private final GpxTypeBuilder builder;
+        private TrkType track;
+        private TrksegType segment;
+        private int openTracks;
+        private int openSegments;
+
+        // The last trackpoint added and the file it came from
+        private Source lastSource;
+        private double lastLat;
+        private double lastLon;
+        private double lastEle;
+        private long lastTime;
+
+        Tracks(GpxTypeBuilder builder) {
+            this.builder = builder;
+        }
+
+        /**
+         * Adds a track of a file, which joins the current track if any track
+         * in it has not ended.
+         *
+         * @param name The name of the track.
+         */
+        void startTrack(String name) {
+            if(openTracks == 0) {
+                endSegment();
+                track = GpxTypeBuilder.newTrack(name);
+                builder.getGpx().getTrk().add(track);
+            }
+            openTracks++;
+        }
+
+        /**
+         * Adds a segment of a file, which joins the current segment if any
+         * segment in it has not ended.
+         */
+        void startSegment() {
+            if(openSegments == 0) {
+                endSegment();
+                segment = builder.newSegment();
+                track.getTrkseg().add(segment);
+            }
+            openSegments++;
+        }
+
+        /**
+         * Adds a trackpoint to the current segment unless it is the same as
+         * the last one from another file.
+         */
+        void addTrackpoint(Source source, double lat, double lon,
+            double ele, long time, int latScale, int lonScale) {
+            if(lastSource != null && lastSource != source && time == lastTime
+                && lat == lastLat && lon == lastLon && ele == lastEle) {
+                return;
+            }
+            lastSource = source;
+            lastLat = lat;
+            lastLon = lon;
+            lastEle = ele;
+            lastTime = time;
+            if(segment instanceof GpslTrksegType) {
+                ((GpslTrksegType)segment).getTrackpoints().add(lat, lon, ele,
+                    time, latScale, lonScale);
+            } else {
+                segment.getTrkpt().add(
+                    GpxTypeBuilder.newTrackpoint(lat, lon, ele, time,
+                        latScale, lonScale));
+            }
+        }
+
+        void segmentEnded() {
+            openSegments--;
+        }
+
+        void trackEnded() {
+            openTracks--;
+        }
+
+        /**
+         * Adds a track of a file that has no trackpoints as a track of its
+         * own.
+         *
+         * @param name The name of the track.
+         */
+        void addEmptyTrack(String name) {
+            builder.getGpx().getTrk().add(GpxTypeBuilder.newTrack(name));
+        }
+
+        /**
+         * Trims the trackpoints of the current segment if they are columnar.
+         */
+        void endSegment() {
+            if(segment instanceof GpslTrksegType) {
+                ((GpslTrksegType)segment).getTrackpoints().trimToSize();
+            }
+            segment = null;
+        }
+    }
+
+    /**
+     * One of the files being merged. Its reader is advanced a line at a time
+     * until it has a trackpoint. The waypoints and routes it passes on the
+     * way are kept to be added at the end. Since the reader is advanced right
+     * after a trackpoint is added, the end of the track or segment of that
+     * trackpoint is found before any later trackpoint of another file is
+     * added.
+     */
+    private static class Source extends GpslHandlerAdapter
+    {
+        final int number;
+        final File file;
+        final GpslReader reader;
+        private final Tracks tracks;
+        private final GpslDiagnostics diagnostics;
+        final List<WptType> waypoints = new ArrayList<WptType>();
+        final List<RteType> routes = new ArrayList<RteType>();
+        private RteType route;
+        /** The scales of the coordinates of the file. */
+        private int latScale = GpslNumbers.DEFAULT_SCALE;
+        private int lonScale = GpslNumbers.DEFAULT_SCALE;
+
+        // The current track and segment of the file
+        private String trackName;
+        /** Whether the track has been added to the result. */
+        private boolean inTrack;
+        /** Whether the segment has been added to the result. */
+        private boolean inSegment;
+
+        // The next trackpoint
+        private boolean hasTrackpoint;
+        private double lat;
+        private double lon;
+        private double ele;
+        private long time;
+        private int pointLatScale;
+        private int pointLonScale;
+        /** The time used to order the trackpoint. */
+        long key = Long.MIN_VALUE;
+
+        Source(int number, File file, GpxTypeBuilder builder, Tracks tracks,
+            GpslDiagnostics diagnostics) {
+            this.number = number;
+            this.file = file;
+            this.reader = new GpslReader(file);
+            this.tracks = tracks;
+            this.diagnostics = diagnostics;
+        }
+
+        void open() throws IOException {
+            reader.open(this);
+        }
+
+        /**
+         * Reads until there is a trackpoint or the end of the file.
+         *
+         * @return If there is a trackpoint.
+         * @throws IOException
+         */
+        boolean advance() throws IOException {
+            hasTrackpoint = false;
+            while(!hasTrackpoint && reader.next()) {
+                // The handler methods do the work
+            }
+            return hasTrackpoint;
+        }
+
+        /**
+         * Adds the trackpoint to the result.
+         */
+        void addTrackpoint() {
+            if(!inTrack) {
+                inTrack = true;
+                tracks.startTrack(trackName);
+            }
+            if(!inSegment) {
+                inSegment = true;
+                tracks.startSegment();
+            }
+            tracks.addTrackpoint(this, lat, lon, ele, time, pointLatScale,
+                pointLonScale);
+        }
+
+        private void endTrack() {
+            endSegment();
+            if(inTrack) {
+                inTrack = false;
+                tracks.trackEnded();
+            } else if(trackName != null) {
+                // Keep a track without trackpoints
+                tracks.addEmptyTrack(trackName);
+            }
+            trackName = null;
+        }
+
+        private void endSegment() {
+            if(inSegment) {
+                inSegment = false;
+                tracks.segmentEnded();
+            }
+        }
+
+        @Override
+        public void onWaypoint(String name, double lat, double lon,
+            double ele, String symbol) {
+            waypoints.add(GpxTypeBuilder.newWaypoint(name, lat, lon, ele,
+                symbol, latScale, lonScale));
+        }
+
+        @Override
+        public void onRouteStart(String name) {
+            route = GpxTypeBuilder.newRoute(name);
+            routes.add(route);
+        }
+
+        @Override
+        public void onRoutepoint(String name, double lat, double lon,
+            double ele, String symbol) {
+            route.getRtept().add(
+                GpxTypeBuilder.newWaypoint(name, lat, lon, ele, symbol,
+                    latScale, lonScale));
+        }
+
+        @Override
+        public void onRouteEnd() {
+            route = null;
+        }
+
+        @Override
+        public void onTrackStart(String name) {
+            endTrack();
+            trackName = name;
+        }
+
+        @Override
+        public void onSegmentStart() {
+            endSegment();
+        }
+
+        @Override
+        public void onTrackpoint(double lat, double lon, double ele,
+            long time) {
+            hasTrackpoint = true;
+            this.lat = lat;
+            this.lon = lon;
+            this.ele = ele;
+            this.time = time;
+            pointLatScale = latScale;
+            pointLonScale = lonScale;
+            if(time != GpslTimeDecoder.NO_TIME) {
+                key = time;
+            }
+        }
+
+        @Override
+        public void onCoordinateScales(int latScale, int lonScale) {
+            this.latScale = latScale;
+            this.lonScale = lonScale;
+        }
+
+        @Override
+        public void onTrackEnd() {
+            endTrack();
+        }
+
+        @Override
+        public void onWarning(long lineNum, String message) {
+            diagnostics.add(lineNum, Severity.WARNING, file.getName() + ": "
+                + message);
+        }
+    }
+
+}
@@ -0,0 +1,370 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Totals of what GpslConverter parses and saves: the bytes and lines by record
+ * type, the skipped, comment, and malformed lines, and the time spent in the
+ * header, the body, and converting times. They can be read with the methods
+ * here or through JMX, where the default instance is registered as
+ * OBJECT_NAME.<br>
+ * <br>
+ * Each parse or save counts into its own Counts, which is only made when the
+ * metrics are enabled, and adds it to the totals when it is done, so the cost
+ * when disabled is one check per call and a null check per line. The time
+ * conversions are timed for one in TIME_SAMPLE_INTERVAL of them, and the time
+ * is scaled up. The metrics are disabled by default. They can be enabled
+ * through JMX, with setEnabled, or by setting the system property
+ * ENABLED_PROPERTY to true.
+ */
+public class GpslMetrics implements GpslMetricsMBean
+{
+    /** The JMX name of the default instance. */
+    public static final String OBJECT_NAME =
+        "net.kenevans.gpxinspector:type=GpslMetrics";
+    /** The system property that enables the default instance. */
+    public static final String ENABLED_PROPERTY =
+        "net.kenevans.gpxinspector.gpsl.metrics";
+    /** One in this many time conversions is timed. */
+    static final int TIME_SAMPLE_INTERVAL = 64;
+
+    // Indexes of the totals
+    private static final int COUNT = 0;
+    private static final int FAILURES = 1;
+    private static final int REPLAYS = 2;
+    private static final int BYTES = 3;
+    private static final int LINES = 4;
+    private static final int SKIPPED_LINES = 5;
+    private static final int MALFORMED_LINES = 6;
+    private static final int HEADER_NANOS = 7;
+    private static final int BODY_NANOS = 8;
+    private static final int TIME_NANOS = 9;
+    /** The start of the lines by GpslTokenizer line type. */
+    private static final int LINE_TYPES = 10;
+    private static final int N_TOTALS = LINE_TYPES + GpslTokenizer.LINE_T + 1;
+
+    private static GpslMetrics defaultMetrics;
+
+    private volatile boolean enabled;
+    private final AtomicLongArray parseTotals = new AtomicLongArray(N_TOTALS);
+    private final AtomicLongArray saveTotals = new AtomicLongArray(N_TOTALS);
+
+    /**
+     * Gets the instance used by GpslConverter by default, registering it with
+     * the platform MBeanServer the first time. It is still returned if it
+     * cannot be registered, for example because another copy of this class is
+     * registered already.
+     *
+     * @return The default instance.
+     */
+    public static synchronized GpslMetrics getDefault() {
+        if(defaultMetrics == null) {
+            defaultMetrics = new GpslMetrics();
+            defaultMetrics.setEnabled(Boolean.getBoolean(ENABLED_PROPERTY));
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    defaultMetrics, new ObjectName(OBJECT_NAME));
+            } catch(JMException ex) {
+                // Use it without JMX
+            }
+        }
+        return defaultMetrics;
+    }
+
+    /**
+     * Makes a Counts for a parse or save if the metrics are enabled.
+     *
+     * @return The Counts or null if not enabled.
+     */
+    Counts newCounts() {
+        return enabled ? new Counts() : null;
+    }
+
+    /**
+     * Adds the counts of a parse to the totals.
+     *
+     * @param counts The counts, which may be null.
+     */
+    void addParse(Counts counts) {
+        add(parseTotals, counts);
+    }
+
+    /**
+     * Adds the counts of a save to the totals.
+     *
+     * @param counts The counts, which may be null.
+     */
+    void addSave(Counts counts) {
+        add(saveTotals, counts);
+    }
+
+    private static void add(AtomicLongArray totals, Counts counts) {
+        if(counts == null) {
+            return;
+        }
+        totals.incrementAndGet(COUNT);
+        if(counts.failed) totals.incrementAndGet(FAILURES);
+        if(counts.replay) totals.incrementAndGet(REPLAYS);
+        totals.addAndGet(BYTES, counts.bytes);
+        totals.addAndGet(LINES, counts.lines);
+        totals.addAndGet(SKIPPED_LINES, counts.skippedLines);
+        totals.addAndGet(MALFORMED_LINES, counts.malformedLines);
+        totals.addAndGet(HEADER_NANOS, counts.headerNanos);
+        totals.addAndGet(BODY_NANOS, counts.bodyNanos);
+        totals.addAndGet(TIME_NANOS, counts.timeNanos);
+        for(int i = 0; i < counts.lineTypes.length; i++) {
+            totals.addAndGet(LINE_TYPES + i, counts.lineTypes[i]);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void reset() {
+        for(int i = 0; i < N_TOTALS; i++) {
+            parseTotals.set(i, 0);
+            saveTotals.set(i, 0);
+        }
+    }
+
+    private static double millis(AtomicLongArray totals, int index) {
+        return totals.get(index) / 1e6;
+    }
+
+    private static double linesPerSecond(AtomicLongArray totals) {
+        long nanos = totals.get(HEADER_NANOS) + totals.get(BODY_NANOS);
+        return nanos == 0 ? 0 : 1e9 * totals.get(LINES) / nanos;
+    }
+
+    // Parse
+
+    @Override
+    public long getParseCount() {
+        return parseTotals.get(COUNT);
+    }
+
+    @Override
+    public long getParseFailures() {
+        return parseTotals.get(FAILURES);
+    }
+
+    @Override
+    public long getParseReplays() {
+        return parseTotals.get(REPLAYS);
+    }
+
+    @Override
+    public long getParseBytes() {
+        return parseTotals.get(BYTES);
+    }
+
+    @Override
+    public long getParseLines() {
+        return parseTotals.get(LINES);
+    }
+
+    @Override
+    public long getParseWaypointLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_W);
+    }
+
+    @Override
+    public long getParseRouteLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_R);
+    }
+
+    @Override
+    public long getParseTrackLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_H);
+    }
+
+    @Override
+    public long getParseTrackpointLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_T);
+    }
+
+    @Override
+    public long getParseBlankLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_BLANK);
+    }
+
+    @Override
+    public long getParseCommentLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_COMMENT);
+    }
+
+    @Override
+    public long getParseSkippedLines() {
+        return parseTotals.get(LINE_TYPES + GpslTokenizer.LINE_OTHER)
+            + parseTotals.get(SKIPPED_LINES);
+    }
+
+    @Override
+    public long getParseMalformedLines() {
+        return parseTotals.get(MALFORMED_LINES);
+    }
+
+    @Override
+    public double getParseHeaderMillis() {
+        return millis(parseTotals, HEADER_NANOS);
+    }
+
+    @Override
+    public double getParseBodyMillis() {
+        return millis(parseTotals, BODY_NANOS);
+    }
+
+    @Override
+    public double getParseTimeConversionMillis() {
+        return millis(parseTotals, TIME_NANOS);
+    }
+
+    @Override
+    public double getParseLinesPerSecond() {
+        return linesPerSecond(parseTotals);
+    }
+
+    // Save
+
+    @Override
+    public long getSaveCount() {
+        return saveTotals.get(COUNT);
+    }
+
+    @Override
+    public long getSaveFailures() {
+        return saveTotals.get(FAILURES);
+    }
+
+    @Override
+    public long getSaveBytes() {
+        return saveTotals.get(BYTES);
+    }
+
+    @Override
+    public long getSaveLines() {
+        return saveTotals.get(LINES);
+    }
+
+    @Override
+    public long getSaveWaypointLines() {
+        return saveTotals.get(LINE_TYPES + GpslTokenizer.LINE_W);
+    }
+
+    @Override
+    public long getSaveRouteLines() {
+        return saveTotals.get(LINE_TYPES + GpslTokenizer.LINE_R);
+    }
+
+    @Override
+    public long getSaveTrackLines() {
+        return saveTotals.get(LINE_TYPES + GpslTokenizer.LINE_H);
+    }
+
+    @Override
+    public long getSaveTrackpointLines() {
+        return saveTotals.get(LINE_TYPES + GpslTokenizer.LINE_T);
+    }
+
+    @Override
+    public double getSaveHeaderMillis() {
+        return millis(saveTotals, HEADER_NANOS);
+    }
+
+    @Override
+    public double getSaveWriteMillis() {
+        return millis(saveTotals, BODY_NANOS);
+    }
+
+    @Override
+    public double getSaveTimeConversionMillis() {
+        return millis(saveTotals, TIME_NANOS);
+    }
+
+    @Override
+    public double getSaveLinesPerSecond() {
+        // The header time is part of the write time
+        long nanos = saveTotals.get(BODY_NANOS);
+        return nanos == 0 ? 0 : 1e9 * saveTotals.get(LINES) / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "GpslMetrics [enabled=" + enabled + ", parses=" + getParseCount()
+            + ", parseLines=" + getParseLines() + ", parseLinesPerSecond="
+            + Math.round(getParseLinesPerSecond()) + ", saves="
+            + getSaveCount() + ", saveLines=" + getSaveLines()
+            + ", saveLinesPerSecond=" + Math.round(getSaveLinesPerSecond())
+            + "]";
+    }
+
+    /**
+     * The counts for one parse or save. It is used by one thread at a time.
+     */
+    static class Counts
+    {
+        boolean failed;
+        boolean replay;
+        long bytes;
+        long lines;
+        /** The lines by GpslTokenizer line type. */
+        final long[] lineTypes = new long[GpslTokenizer.LINE_T + 1];
+        /** Skipped lines that are not counted as LINE_OTHER. */
+        long skippedLines;
+        long malformedLines;
+        long headerNanos;
+        long bodyNanos;
+        /** The estimated time converting times. */
+        long timeNanos;
+        /** The number of time conversions, used for the sampling. */
+        long nTimes;
+
+        /**
+         * @return Whether the next time conversion should be timed.
+         */
+        boolean sampleTime() {
+            return nTimes++ % TIME_SAMPLE_INTERVAL == 0;
+        }
+
+        /**
+         * Adds the time of a sampled time conversion.
+         *
+         * @param nanos The time.
+         */
+        void addTimeSample(long nanos) {
+            timeNanos += TIME_SAMPLE_INTERVAL * nanos;
+        }
+
+        /**
+         * Adds the counts of part of a parse or save.
+         *
+         * @param part The Counts for the part.
+         */
+        void add(Counts part) {
+            bytes += part.bytes;
+            lines += part.lines;
+            for(int i = 0; i < lineTypes.length; i++) {
+                lineTypes[i] += part.lineTypes[i];
+            }
+            skippedLines += part.skippedLines;
+            malformedLines += part.malformedLines;
+            headerNanos += part.headerNanos;
+            bodyNanos += part.bodyNanos;
+            timeNanos += part.timeNanos;
+            nTimes += part.nTimes;
+        }
+    }
+
+}
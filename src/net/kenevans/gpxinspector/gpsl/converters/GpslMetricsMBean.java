@@ -0,0 +1,106 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * The JMX management interface of GpslMetrics. The counts are totals since
+ * the metrics were enabled or last reset. Waypoint lines include route
+ * points, which are also W lines.
+ */
+public interface GpslMetricsMBean
+{
+    /**
+     * @return Whether parses and saves are being measured.
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled Whether parses and saves are measured.
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Sets all the totals to zero.
+     */
+    void reset();
+
+    // Parse
+
+    long getParseCount();
+
+    long getParseFailures();
+
+    /**
+     * @return The number of parses served from the cache or a sidecar without
+     *         reading the text.
+     */
+    long getParseReplays();
+
+    long getParseBytes();
+
+    long getParseLines();
+
+    long getParseWaypointLines();
+
+    long getParseRouteLines();
+
+    long getParseTrackLines();
+
+    long getParseTrackpointLines();
+
+    long getParseBlankLines();
+
+    long getParseCommentLines();
+
+    /**
+     * @return The number of lines that are not records, such as the section
+     *         and column names, plus trackpoints without a track.
+     */
+    long getParseSkippedLines();
+
+    long getParseMalformedLines();
+
+    double getParseHeaderMillis();
+
+    double getParseBodyMillis();
+
+    /**
+     * @return The estimated time spent converting time stamps, which is part
+     *         of the body time.
+     */
+    double getParseTimeConversionMillis();
+
+    double getParseLinesPerSecond();
+
+    // Save
+
+    long getSaveCount();
+
+    long getSaveFailures();
+
+    long getSaveBytes();
+
+    long getSaveLines();
+
+    long getSaveWaypointLines();
+
+    long getSaveRouteLines();
+
+    long getSaveTrackLines();
+
+    long getSaveTrackpointLines();
+
+    double getSaveHeaderMillis();
+
+    /**
+     * @return The time spent writing, including the header.
+     */
+    double getSaveWriteMillis();
+
+    /**
+     * @return The estimated time spent converting times to time stamps, which
+     *         is part of the write time.
+     */
+    double getSaveTimeConversionMillis();
+
+    double getSaveLinesPerSecond();
+
+}
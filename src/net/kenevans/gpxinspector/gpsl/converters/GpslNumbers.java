@@ -0,0 +1,216 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+
+/**
+ * Number conversions used when reading and writing GPSL files. These give the
+ * same results as String.format("%.6f", ...) without going through a
+ * Formatter.<br>
+ * <br>
+ * A latitude or longitude keeps the decimal it had in the file, as new
+ * BigDecimal of the text would give. It is passed around as the double and
+ * its scale, the number of decimal places, from which the decimal is made
+ * again. A double holds at most 15 decimal digits, so the scale is
+ * UNKNOWN_SCALE if the text had more digits or a scale outside 0 to 15, and
+ * then the shortest decimal that gives the double is used. GPSLink writes 6
+ * decimal places, which are always kept.<br>
+ * <br>
+ * The size of the earth and the approximate distance used to compare
+ * nearby points are here as well.
+ */
+class GpslNumbers
+{
+    /** The scale of the latitudes and longitudes GPSLink writes. */
+    static final int DEFAULT_SCALE = 6;
+    /** The scale of a value whose decimal cannot be made again exactly. */
+    static final int UNKNOWN_SCALE = -1;
+    /** The largest scale that is kept. */
+    static final int MAX_SCALE = 15;
+    /** Scaled values smaller than this are exact and round correctly. */
+    private static final double MAX_UNSCALED = 1e15;
+    /** Powers of ten up to MAX_SCALE. */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4,
+        1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    /** Values with a larger magnitude always use the Formatter. */
+    private static final double FAST_LIMIT = 1e7;
+    /** How close the scaled fraction can be to 1/2 and still be rounded fast. */
+    private static final double TIE_MARGIN = .01;
+
+    /** The mean radius of the earth in meters. */
+    static final double EARTH_RADIUS = 6371008.8;
+    /** The length of a degree of latitude in meters. */
+    static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    private GpslNumbers() {
+    }
+
+    /**
+     * Rounds a value to 6 decimal places the way %.6f does, giving a
+     * BigDecimal with a scale of 6.
+     * 
+     * @param value The value.
+     * @return The BigDecimal.
+     * @throws NumberFormatException if the value is NaN or infinite.
+     */
+    static BigDecimal toBigDecimal6(double value) {
+        long scaled = round(value, 1e6);
+        if(scaled != Long.MIN_VALUE) {
+            return BigDecimal.valueOf(scaled, 6);
+        }
+        return new BigDecimal(String.format(Locale.US, "%.6f", value));
+    }
+
+    /**
+     * Gets the BigDecimal with a given scale for a value. For a value parsed
+     * from a decimal with that scale, this is the same as new BigDecimal of
+     * the decimal. A scale of DEFAULT_SCALE rounds the way %.6f does, as
+     * toBigDecimal6.
+     * 
+     * @param value The value.
+     * @param scale The scale or UNKNOWN_SCALE.
+     * @return The BigDecimal.
+     * @throws NumberFormatException if the value is NaN or infinite.
+     */
+    static BigDecimal toBigDecimal(double value, int scale) {
+        if(scale == DEFAULT_SCALE) {
+            return toBigDecimal6(value);
+        }
+        long unscaled = unscaled(value, scale);
+        if(unscaled != Long.MIN_VALUE) {
+            return BigDecimal.valueOf(unscaled, scale);
+        }
+        return BigDecimal.valueOf(value);
+    }
+
+    /**
+     * Rounds a value to a given scale, giving the double nearest to the
+     * result. This is the same as toBigDecimal(value, scale).doubleValue().
+     * 
+     * @param value The value.
+     * @param scale The scale or UNKNOWN_SCALE.
+     * @return The rounded value.
+     * @throws NumberFormatException if the value is NaN or infinite.
+     */
+    static double round(double value, int scale) {
+        if(scale == DEFAULT_SCALE) {
+            return round6(value);
+        }
+        long unscaled = unscaled(value, scale);
+        if(unscaled != Long.MIN_VALUE) {
+            // Both are exact, and the division is correctly rounded
+            return unscaled / POWERS_OF_TEN[scale];
+        }
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new NumberFormatException("Infinite or NaN");
+        }
+        return value;
+    }
+
+    /**
+     * Gets the scale to keep for a number parsed from text.
+     * 
+     * @param text The text.
+     * @return The scale or UNKNOWN_SCALE if the text is not a decimal with at
+     *         most MAX_SCALE digits and a scale between 0 and MAX_SCALE.
+     */
+    static int getScale(String text) {
+        BigDecimal decimal;
+        try {
+            decimal = new BigDecimal(text);
+        } catch(NumberFormatException ex) {
+            return UNKNOWN_SCALE;
+        }
+        int scale = decimal.scale();
+        if(decimal.precision() > MAX_SCALE || scale < 0 || scale > MAX_SCALE) {
+            return UNKNOWN_SCALE;
+        }
+        return scale;
+    }
+
+    /**
+     * Gets the unscaled value of a value with a given scale.
+     * 
+     * @param value The value.
+     * @param scale The scale.
+     * @return The unscaled value or Long.MIN_VALUE if the scale is not
+     *         between 0 and MAX_SCALE or the unscaled value is too large.
+     */
+    private static long unscaled(double value, int scale) {
+        if(scale < 0 || scale > MAX_SCALE) {
+            return Long.MIN_VALUE;
+        }
+        double scaled = value * POWERS_OF_TEN[scale];
+        if(!(scaled > -MAX_UNSCALED && scaled < MAX_UNSCALED)) {
+            return Long.MIN_VALUE;
+        }
+        return Math.round(scaled);
+    }
+
+    /**
+     * Rounds a value to 6 decimal places the way %.6f does, giving the double
+     * nearest to the result. This is the same as toBigDecimal6(value)
+     * .doubleValue().
+     * 
+     * @param value The value.
+     * @return The rounded value.
+     * @throws NumberFormatException if the value is NaN or infinite.
+     */
+    static double round6(double value) {
+        long scaled = round(value, 1e6);
+        if(scaled != Long.MIN_VALUE) {
+            // Both are exact, and the division is correctly rounded
+            return scaled / 1e6;
+        }
+        return toBigDecimal6(value).doubleValue();
+    }
+
+    /**
+     * Rounds value * factor to a long, provided the result is the same as
+     * that of a Formatter, which rounds half up using the shortest decimal
+     * representation of the value.
+     * 
+     * @param value The value.
+     * @param factor The power of ten to scale by.
+     * @return The rounded value or Long.MIN_VALUE if the value is too large, is
+     *         not finite, or is too close to a tie to decide.
+     */
+    static long round(double value, double factor) {
+        if(!(value > -FAST_LIMIT && value < FAST_LIMIT)) {
+            return Long.MIN_VALUE;
+        }
+        double scaled = value * factor;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if(Math.abs(fraction - .5) < TIE_MARGIN) {
+            return Long.MIN_VALUE;
+        }
+        return fraction < .5 ? (long)floor : (long)floor + 1;
+    }
+
+    /**
+     * Gets the square of the distance between two points in degrees of
+     * latitude, treating the earth as flat near the first point. The
+     * difference in longitude is taken the short way across the
+     * antimeridian.
+     * 
+     * @param lat0 The latitude of the first point.
+     * @param lon0 The longitude of the first point.
+     * @param cos0 The cosine of the latitude of the first point.
+     * @param lat The latitude of the other point.
+     * @param lon The longitude of the other point.
+     * @return The square of the distance.
+     */
+    static double getDistanceSquared(double lat0, double lon0, double cos0,
+        double lat, double lon) {
+        double dLat = lat - lat0;
+        double dLon = Math.abs(lon - lon0);
+        if(dLon > 180) {
+            dLon = 360 - dLon;
+        }
+        dLon *= cos0;
+        return dLat * dLat + dLon * dLon;
+    }
+
+}
@@ -0,0 +1,266 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Finds the GMTOffset to use in a GPSL file for a time, that is, the offset
+ * of a time zone, including any DST, at that time. The offsets are those an
+ * XMLGregorianCalendar made from a GregorianCalendar in the zone would have,
+ * in whole minutes, so the results are the same as those of the original
+ * conversion through a DatatypeFactory.<br>
+ * <br>
+ * The transitions of the zone are found once, a decade at a time as times in
+ * it are asked for, and kept in a table, so each offset is found with a
+ * binary search. A transition is found by sampling the offset every few hours
+ * and then searching between the samples where it changed, so a pair of
+ * transitions closer together than that would be missed. Times before
+ * MIN_YEAR or from MAX_YEAR on are not put in the table and are resolved by
+ * the TimeZone directly. A resolver is thread safe.
+ */
+public class GpslOffsetResolver
+{
+    /** The first year kept in the table. */
+    public static final int MIN_YEAR = 1800;
+    /** The year after the last one kept in the table. */
+    public static final int MAX_YEAR = 2200;
+    /** The number of years added to the table at a time. */
+    private static final int YEARS_PER_BLOCK = 10;
+    private static final int SECONDS_PER_DAY = 86400;
+    /** The interval at which the offset is sampled to find transitions. */
+    private static final long SAMPLE_SECONDS = 6 * 3600;
+    private static final long MIN_TIME = GpslTimeDecoder.daysFromCivil(
+        MIN_YEAR, 1, 1) * SECONDS_PER_DAY;
+    private static final long MAX_TIME = GpslTimeDecoder.daysFromCivil(
+        MAX_YEAR, 1, 1) * SECONDS_PER_DAY;
+
+    /** The resolver for the default time zone or null if none is made yet. */
+    private static volatile GpslOffsetResolver defaultResolver;
+
+    private final TimeZone zone;
+    /** The current table, which is replaced rather than changed. */
+    private volatile Table table;
+
+    /**
+     * Constructor.
+     *
+     * @param zone The time zone.
+     */
+    public GpslOffsetResolver(TimeZone zone) {
+        this.zone = (TimeZone)zone.clone();
+    }
+
+    /**
+     * Gets a resolver for the default time zone. The same resolver, with the
+     * transitions already found, is returned until the default time zone
+     * changes.
+     *
+     * @return The resolver.
+     */
+    public static GpslOffsetResolver getDefault() {
+        TimeZone zone = TimeZone.getDefault();
+        GpslOffsetResolver resolver = defaultResolver;
+        if(resolver == null || !resolver.zone.getID().equals(zone.getID())
+            || !resolver.zone.hasSameRules(zone)) {
+            resolver = new GpslOffsetResolver(zone);
+            defaultResolver = resolver;
+        }
+        return resolver;
+    }
+
+    /**
+     * Gets the offset at a time.
+     *
+     * @param seconds The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME for the current time.
+     * @return The offset in hours.
+     */
+    public double getOffset(long seconds) {
+        if(seconds == GpslTimeDecoder.NO_TIME) {
+            seconds = GpslTimeDecoder.floorDiv(System.currentTimeMillis(),
+                1000);
+        }
+        return getOffsetMinutes(seconds) / 60.;
+    }
+
+    /**
+     * Gets the offset at the time of an XMLGregorianCalendar.
+     *
+     * @param xgcal The XMLGregorianCalendar or null for the current time.
+     * @return The offset in hours.
+     */
+    public double getOffset(XMLGregorianCalendar xgcal) {
+        if(xgcal == null) {
+            return getOffset(GpslTimeDecoder.NO_TIME);
+        }
+        return getOffset(GpslTimeDecoder.floorDiv(xgcal.toGregorianCalendar()
+            .getTimeInMillis(), 1000));
+    }
+
+    /**
+     * @return A copy of the time zone.
+     */
+    public TimeZone getTimeZone() {
+        return (TimeZone)zone.clone();
+    }
+
+    /**
+     * Gets the offset at a time in minutes, using the table if the time is in
+     * its range.
+     *
+     * @param seconds The UTC time in seconds since the epoch.
+     * @return The offset in minutes.
+     */
+    private int getOffsetMinutes(long seconds) {
+        if(seconds < MIN_TIME || seconds >= MAX_TIME) {
+            return zoneOffsetMinutes(seconds);
+        }
+        Table t = table;
+        if(t == null || seconds < t.start || seconds >= t.end) {
+            t = extend(seconds);
+        }
+        int i = Arrays.binarySearch(t.times, 0, t.size, seconds);
+        // Use the last transition at or before the time
+        if(i < 0) {
+            i = -i - 2;
+        }
+        return t.minutes[i];
+    }
+
+    /**
+     * Makes a new table that includes the given time.
+     *
+     * @param seconds The time, which is in the range of the table.
+     * @return The table.
+     */
+    private synchronized Table extend(long seconds) {
+        Table t = table;
+        if(t != null && seconds >= t.start && seconds < t.end) {
+            // Another thread has extended it
+            return t;
+        }
+        long start = blockStart(seconds);
+        long end = blockStart(seconds + (long)YEARS_PER_BLOCK * 366
+            * SECONDS_PER_DAY);
+        end = Math.min(end, MAX_TIME);
+        if(t != null) {
+            // Keep the table contiguous
+            start = Math.min(start, t.start);
+            end = Math.max(end, t.end);
+        }
+        Table newTable = new Table(start, end);
+        if(t == null) {
+            newTable.scan(start, end);
+        } else {
+            // Only the new parts are sampled
+            newTable.scan(start, t.start);
+            for(int i = 0; i < t.size; i++) {
+                newTable.add(t.times[i], t.minutes[i]);
+            }
+            newTable.scan(t.end, end);
+        }
+        table = newTable;
+        return newTable;
+    }
+
+    /**
+     * Gets the start of the block of years that contains a time.
+     *
+     * @param seconds The time, which should be in the range of the table.
+     * @return The start of the block in seconds.
+     */
+    private static long blockStart(long seconds) {
+        long days = GpslTimeDecoder.floorDiv(seconds, SECONDS_PER_DAY);
+        long year = GpslTimeDecoder.civilFromDays(days) / 10000;
+        year = MIN_YEAR + (year - MIN_YEAR) / YEARS_PER_BLOCK
+            * YEARS_PER_BLOCK;
+        return GpslTimeDecoder.daysFromCivil(year, 1, 1) * SECONDS_PER_DAY;
+    }
+
+    /**
+     * Gets the offset of the zone at a time in minutes, truncated as for an
+     * XMLGregorianCalendar.
+     *
+     * @param seconds The UTC time in seconds since the epoch.
+     * @return The offset in minutes.
+     */
+    private int zoneOffsetMinutes(long seconds) {
+        return zone.getOffset(seconds * 1000) / 60000;
+    }
+
+    /**
+     * The transitions in a range of times. Each entry gives the offset from
+     * its time until the time of the next one. The first entry is at the
+     * start of the range.
+     */
+    private class Table
+    {
+        final long start;
+        final long end;
+        long[] times = new long[16];
+        int[] minutes = new int[16];
+        int size;
+
+        Table(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Adds an entry unless the offset is the same as that of the last
+         * one.
+         */
+        void add(long time, int offset) {
+            if(size > 0 && minutes[size - 1] == offset) {
+                return;
+            }
+            if(size == times.length) {
+                times = Arrays.copyOf(times, 2 * size);
+                minutes = Arrays.copyOf(minutes, 2 * size);
+            }
+            times[size] = time;
+            minutes[size++] = offset;
+        }
+
+        /**
+         * Finds the transitions from one time up to another and adds them.
+         */
+        void scan(long from, long to) {
+            if(from >= to) {
+                return;
+            }
+            int offset = zoneOffsetMinutes(from);
+            add(from, offset);
+            long time = from;
+            while(time < to) {
+                long next = Math.min(time + SAMPLE_SECONDS, to);
+                if(zoneOffsetMinutes(next) == offset) {
+                    time = next;
+                    continue;
+                }
+                // The first change is after low and at or before high
+                long low = time;
+                long high = next;
+                while(high - low > 1) {
+                    long mid = low + (high - low) / 2;
+                    if(zoneOffsetMinutes(mid) == offset) {
+                        low = mid;
+                    } else {
+                        high = mid;
+                    }
+                }
+                if(high >= to) {
+                    // It starts the next range
+                    break;
+                }
+                offset = zoneOffsetMinutes(high);
+                add(high, offset);
+                // Continue from there in case there is another before next
+                time = high;
+            }
+        }
+    }
+
+}
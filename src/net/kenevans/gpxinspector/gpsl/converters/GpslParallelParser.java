@@ -0,0 +1,661 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.RteType;
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Parses a large GPSL file on several threads. The body after the header is
+ * split into chunks of about the same size that start at the beginning of a
+ * line, preferably a blank line or an H or R line, but within a track if
+ * there is none nearby. Each chunk is tokenized, and its waypoints, routes,
+ * tracks, and trackpoints are made, on a worker thread. The chunks are then
+ * stitched together in file order on the calling thread by applying the same
+ * rules as GpslReader, which carry the routes, tracks, and segments in
+ * progress from one chunk to the next, so the result is the same as for a
+ * sequential parse. The chunks are read from the file as they are tokenized,
+ * so there is no limit on their size.<br>
+ * <br>
+ * Each chunk is tokenized with the offset in the header. An offset comment
+ * right before an H line is kept in the same chunk as the line. If a chunk
+ * has trackpoint times before any offset comment of its own and an earlier
+ * chunk changed the offset, it is tokenized again on the calling thread with
+ * the right offset. For files written by GpslWriter, which puts an offset
+ * comment before each track that has a time when it writes any, this only
+ * happens for a chunk that starts within a track whose offset differs from
+ * the one in the header.<br>
+ * <br>
+ * The workers are in a fixed thread pool rather than a ForkJoinPool, which is
+ * not available in the JavaSE-1.6 execution environment.
+ */
+class GpslParallelParser
+{
+    /** Files smaller than twice this are parsed sequentially. */
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    /**
+     * How far past the first line start of a chunk to look for a blank line
+     * or an H or R line to start it at instead.
+     */
+    private static final int RECORD_SEARCH_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+    /** The size of the reads used to find the chunk boundaries. */
+    private static final int SCAN_SIZE = 64 * 1024;
+
+    // Operations recorded by a chunk
+    private static final byte OP_BLANK = 0;
+    private static final byte OP_WPT = 1;
+    private static final byte OP_RTE = 2;
+    private static final byte OP_TRK = 3;
+    private static final byte OP_TRKPT = 4;
+    private static final byte OP_TRKPT_START = 5;
+
+    private final File file;
+    private final int nThreads;
+    private GpslMetrics.Counts counts;
+    private GpslProgress progress;
+
+    /**
+     * Constructor.
+     *
+     * @param file The GPSL file.
+     * @param threads The number of threads or 0 for the number of available
+     *            processors.
+     */
+    GpslParallelParser(File file, int threads) {
+        this.file = file;
+        this.nThreads = threads > 0 ? threads : Runtime.getRuntime()
+            .availableProcessors();
+    }
+
+    /**
+     * Parses the file into the GpxType of the given builder. The builder gets
+     * the header and warnings as it would from a GpslReader, but not the
+     * individual items.
+     *
+     * @param builder The GpxTypeBuilder.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    void parse(GpxTypeBuilder builder) throws IOException {
+        if(nThreads < 2 || file.length() < 2 * MIN_CHUNK_SIZE) {
+            GpslReader reader = new GpslReader(file);
+            reader.setCounts(counts);
+            reader.setProgress(progress);
+            reader.read(builder);
+            return;
+        }
+        FileInputStream in = null;
+        ExecutorService executor = null;
+        long start = counts == null ? 0 : System.nanoTime();
+        long bytesRead = 0;
+        long lineNum = 0;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            GpslTokenizer header = new GpslTokenizer(channel);
+            header.readHeader(builder);
+            builder.onHeader(header.getDelimiter(), header.getOffset());
+            long bodyStart = header.getPosition();
+            bytesRead = bodyStart;
+            lineNum = header.getLineNumber();
+            if(counts != null) {
+                long now = System.nanoTime();
+                counts.headerNanos += now - start;
+                start = now;
+            }
+            long[] bounds = findChunks(channel, bodyStart,
+                header.getDelimiter());
+
+            executor = Executors.newFixedThreadPool(nThreads,
+                new DaemonThreadFactory("GPSL parser"));
+            List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+            for(int i = 0; i < bounds.length - 1; i++) {
+                futures.add(executor.submit(new ChunkTask(channel, bounds[i],
+                    bounds[i + 1], header.getDelimiter(), header
+                        .getTimeDecoder(), builder.isColumnarTracks(),
+                    counts != null)));
+            }
+
+            // Stitch the chunks in order as they become available
+            Stitcher stitcher = new Stitcher(builder, counts);
+            // The offset in effect at the start of the next chunk
+            GpslTimeDecoder timeDecoder = header.getTimeDecoder();
+            for(int i = 0; i < futures.size(); i++) {
+                if(progress != null) progress.checkCancelled();
+                Chunk chunk = getChunk(futures.get(i));
+                futures.set(i, null);
+                if(chunk.timesBeforeOffset
+                    && !timeDecoder.hasSameOffset(header.getTimeDecoder())) {
+                    chunk = new ChunkTask(channel, bounds[i], bounds[i + 1],
+                        header.getDelimiter(), timeDecoder, builder
+                            .isColumnarTracks(), counts != null).call();
+                }
+                if(chunk.offsetComment) {
+                    timeDecoder = chunk.timeDecoder;
+                }
+                // Add the records before any error so the warnings are the
+                // same as for a sequential parse
+                stitcher.add(chunk, lineNum);
+                long linesBefore = lineNum;
+                lineNum += chunk.nLines;
+                bytesRead += chunk.bytesRead;
+                if(chunk.counts != null) {
+                    counts.add(chunk.counts);
+                }
+                if(chunk.error != null) {
+                    throw chunk.error.relocate(linesBefore);
+                }
+                if(progress != null) progress.update(bytesRead);
+            }
+            stitcher.endSegment();
+            builder.onEnd();
+        } finally {
+            if(executor != null) executor.shutdownNow();
+            if(in != null) in.close();
+            if(counts != null) {
+                counts.bodyNanos += System.nanoTime() - start;
+                counts.bytes += bytesRead;
+                counts.lines += lineNum;
+            }
+        }
+    }
+
+    /**
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     */
+    void setCounts(GpslMetrics.Counts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * @param progress The progress to update and check for cancellation for
+     *            each chunk or null for none.
+     */
+    void setProgress(GpslProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Finds the chunk boundaries.
+     *
+     * @param channel
+     * @param bodyStart
+     * @param delimiter
+     * @return The start of each chunk followed by the end of the file.
+     * @throws IOException
+     */
+    private long[] findChunks(FileChannel channel, long bodyStart,
+        char delimiter) throws IOException {
+        long size = channel.size();
+        long chunkSize = (size - bodyStart) / (nThreads * CHUNKS_PER_THREAD);
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE,
+            chunkSize));
+        List<Long> starts = new ArrayList<Long>();
+        starts.add(bodyStart);
+        byte[] scan = new byte[SCAN_SIZE];
+        long next = bodyStart + chunkSize;
+        while(next < size) {
+            long start = findChunkStart(channel, next, size, scan,
+                (byte)delimiter);
+            if(start >= size) {
+                break;
+            }
+            starts.add(start);
+            next = start + chunkSize;
+        }
+        long[] bounds = new long[starts.size() + 1];
+        for(int i = 0; i < starts.size(); i++) {
+            bounds[i] = starts.get(i);
+        }
+        bounds[starts.size()] = size;
+        return bounds;
+    }
+
+    /**
+     * Finds where a chunk that is to start after the given position starts.
+     * This is the start of the first line that is blank or is an H or R
+     * record, if there is one within RECORD_SEARCH_SIZE of the first line
+     * start, and otherwise the first line start. Starting at a record keeps
+     * tracks together when they are small. If the line before an H line is a
+     * comment, which may set the offset for the track, the chunk starts there
+     * instead.
+     *
+     * @param channel
+     * @param from
+     * @param size
+     * @param scan A buffer to use.
+     * @param delimiter
+     * @return The position or size if there is none.
+     * @throws IOException
+     */
+    // The state machine falls through on purpose where commented
+    @SuppressWarnings("fallthrough")
+    private static long findChunkStart(FileChannel channel, long from,
+        long size, byte[] scan, byte delimiter) throws IOException {
+        // States
+        final int inLine = 0;
+        final int afterCR = 1;
+        final int lineStart = 2;
+        final int afterType = 3;
+        int state = inLine;
+        long candidate = -1;
+        long firstLine = -1;
+        // The start of the current and previous lines if they are comments
+        long comment = -1;
+        long previousComment = -1;
+        long position = from;
+        while(position < size) {
+            ByteBuffer bb = ByteBuffer.wrap(scan);
+            int nRead = channel.read(bb, position);
+            if(nRead < 0) {
+                break;
+            }
+            for(int i = 0; i < nRead; i++) {
+                byte c = scan[i];
+                switch(state) {
+                case afterCR:
+                    state = lineStart;
+                    if(c == '\n') {
+                        continue;
+                    }
+                    // Fall through to process the first byte of the line
+                case lineStart:
+                    if(firstLine < 0) {
+                        firstLine = position + i;
+                    } else if(position + i - firstLine > RECORD_SEARCH_SIZE) {
+                        return firstLine;
+                    }
+                    if(c == '\n' || c == '\r') {
+                        // Blank line
+                        return position + i;
+                    }
+                    previousComment = comment;
+                    comment = c == '#' ? position + i : -1;
+                    if(c == 'H' || c == 'R') {
+                        candidate = position + i;
+                        state = afterType;
+                    } else {
+                        state = inLine;
+                    }
+                    continue;
+                case afterType:
+                    if(c == delimiter) {
+                        return previousComment >= 0 ? previousComment
+                            : candidate;
+                    }
+                    state = inLine;
+                    // Fall through to process this byte as part of the line
+                default:
+                    if(c == '\n') {
+                        state = lineStart;
+                    } else if(c == '\r') {
+                        state = afterCR;
+                    }
+                }
+            }
+            position += nRead;
+        }
+        return firstLine >= 0 ? firstLine : size;
+    }
+
+    /**
+     * Gets the chunk from a Future, unwrapping any exception.
+     *
+     * @param future
+     * @return The chunk.
+     * @throws IOException
+     */
+    private static Chunk getChunk(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause.toString());
+        }
+    }
+
+    /**
+     * Reads and tokenizes one chunk.
+     */
+    private static class ChunkTask implements Callable<Chunk>
+    {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final char delimiter;
+        private final GpslTimeDecoder timeDecoder;
+        private final boolean columnar;
+        private final boolean counted;
+
+        ChunkTask(FileChannel channel, long start, long end, char delimiter,
+            GpslTimeDecoder timeDecoder, boolean columnar, boolean counted) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.delimiter = delimiter;
+            this.timeDecoder = timeDecoder;
+            this.columnar = columnar;
+            this.counted = counted;
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            GpslTokenizer tokenizer = new GpslTokenizer(channel, start, end,
+                delimiter, timeDecoder);
+            Chunk chunk = new Chunk(tokenizer, columnar);
+            if(counted) {
+                chunk.counts = new GpslMetrics.Counts();
+                tokenizer.setCounts(chunk.counts);
+            }
+            try {
+                while(tokenizer.next(chunk)) {
+                    // The chunk does the work
+                }
+            } catch(GpslParseException ex) {
+                chunk.error = ex;
+            }
+            chunk.nLines = tokenizer.getLineNumber();
+            chunk.bytesRead = tokenizer.getBytesRead();
+            chunk.offsetComment = tokenizer.hasOffsetComment();
+            chunk.timeDecoder = tokenizer.getTimeDecoder();
+            return chunk;
+        }
+    }
+
+    /**
+     * The records in a chunk, with the objects already made. For columnar
+     * tracks the trackpoints are kept as primitives instead.
+     */
+    private static class Chunk implements GpslTokenizer.Sink
+    {
+        private final GpslTokenizer tokenizer;
+        private final boolean columnar;
+        /** The latitude, longitude, and elevation of columnar trackpoints. */
+        private double[] coords;
+        private long[] times;
+        /**
+         * The scales of the latitude and longitude of columnar trackpoints, or
+         * null if they are all the default.
+         */
+        private byte[] scales;
+        private int nPoints;
+        private byte[] ops = new byte[1024];
+        private Object[] items = new Object[1024];
+        /** The line numbers within the chunk. */
+        private int[] lines = new int[1024];
+        private int size;
+        private long nLines;
+        private long bytesRead;
+        /** Whether there is a time before any offset comment. */
+        private boolean timesBeforeOffset;
+        /** Whether there is an offset comment. */
+        private boolean offsetComment;
+        /** The decoder for the offset at the end of the chunk. */
+        private GpslTimeDecoder timeDecoder;
+        private GpslParseException error;
+        /** The counts for GpslMetrics or null if they are not being kept. */
+        private GpslMetrics.Counts counts;
+
+        Chunk(GpslTokenizer tokenizer, boolean columnar) {
+            this.tokenizer = tokenizer;
+            this.columnar = columnar;
+            if(columnar) {
+                coords = new double[3 * 1024];
+                times = new long[1024];
+            }
+        }
+
+        private void add(byte op, Object item) {
+            if(size == ops.length) {
+                byte[] newOps = new byte[2 * size];
+                System.arraycopy(ops, 0, newOps, 0, size);
+                ops = newOps;
+                Object[] newItems = new Object[2 * size];
+                System.arraycopy(items, 0, newItems, 0, size);
+                items = newItems;
+                int[] newLines = new int[2 * size];
+                System.arraycopy(lines, 0, newLines, 0, size);
+                lines = newLines;
+            }
+            ops[size] = op;
+            lines[size] = (int)tokenizer.getLineNumber();
+            items[size++] = item;
+        }
+
+        @Override
+        public void blankLine() {
+            add(OP_BLANK, null);
+        }
+
+        @Override
+        public void waypoint(String name, double lat, double lon, double ele,
+            String symbol, int latScale, int lonScale) {
+            add(OP_WPT, GpxTypeBuilder.newWaypoint(name, lat, lon, ele,
+                symbol, latScale, lonScale));
+        }
+
+        @Override
+        public void route(String name) {
+            add(OP_RTE, GpxTypeBuilder.newRoute(name));
+        }
+
+        @Override
+        public void track(String name) {
+            add(OP_TRK, GpxTypeBuilder.newTrack(name));
+        }
+
+        @Override
+        public void trackpoint(boolean startSegment, double lat, double lon,
+            double ele, long time, int latScale, int lonScale) {
+            byte op = startSegment ? OP_TRKPT_START : OP_TRKPT;
+            if(time != GpslTimeDecoder.NO_TIME
+                && !tokenizer.hasOffsetComment()) {
+                timesBeforeOffset = true;
+            }
+            if(!columnar) {
+                add(op, GpxTypeBuilder.newTrackpoint(lat, lon, ele, time,
+                    latScale, lonScale));
+                return;
+            }
+            if(nPoints == times.length) {
+                double[] newCoords = new double[6 * nPoints];
+                System.arraycopy(coords, 0, newCoords, 0, 3 * nPoints);
+                coords = newCoords;
+                long[] newTimes = new long[2 * nPoints];
+                System.arraycopy(times, 0, newTimes, 0, nPoints);
+                times = newTimes;
+                if(scales != null) {
+                    byte[] newScales = new byte[4 * nPoints];
+                    System.arraycopy(scales, 0, newScales, 0, 2 * nPoints);
+                    scales = newScales;
+                }
+            }
+            if(scales == null && (latScale != GpslNumbers.DEFAULT_SCALE
+                || lonScale != GpslNumbers.DEFAULT_SCALE)) {
+                scales = new byte[2 * times.length];
+                Arrays.fill(scales, 0, 2 * nPoints,
+                    (byte)GpslNumbers.DEFAULT_SCALE);
+            }
+            if(scales != null) {
+                scales[2 * nPoints] = (byte)latScale;
+                scales[2 * nPoints + 1] = (byte)lonScale;
+            }
+            coords[3 * nPoints] = lat;
+            coords[3 * nPoints + 1] = lon;
+            coords[3 * nPoints + 2] = ele;
+            times[nPoints++] = time;
+            add(op, null);
+        }
+
+        /**
+         * @param point The index of a columnar trackpoint.
+         * @param coord 0 for the latitude or 1 for the longitude.
+         * @return The scale.
+         */
+        int getScale(int point, int coord) {
+            return scales == null ? GpslNumbers.DEFAULT_SCALE
+                : scales[2 * point + coord];
+        }
+    }
+
+    /**
+     * Adds the chunks to the GpxType, keeping track of the routes and tracks
+     * in progress across chunks as GpslReader does.
+     */
+    private static class Stitcher
+    {
+        private final GpxTypeBuilder builder;
+        private final GpxType gpx;
+        private RteType rteType;
+        private TrkType trkType;
+        private TrksegType trksegType;
+        /** The trackpoints of the current segment when they are columnar. */
+        private GpslTrackpointList trackpoints;
+        private final GpslMetrics.Counts counts;
+
+        Stitcher(GpxTypeBuilder builder, GpslMetrics.Counts counts) {
+            this.builder = builder;
+            this.gpx = builder.getGpx();
+            this.counts = counts;
+        }
+
+        void add(Chunk chunk, long linesBefore) {
+            // The index of the next columnar trackpoint
+            int point = 0;
+            for(int i = 0; i < chunk.size; i++) {
+                Object item = chunk.items[i];
+                switch(chunk.ops[i]) {
+                case OP_BLANK:
+                    // A blank line will terminate routes and tracks in
+                    // progress
+                    rteType = null;
+                    endSegment();
+                    trkType = null;
+                    trksegType = null;
+                    break;
+                case OP_WPT:
+                    if(rteType != null) {
+                        rteType.getRtept().add((WptType)item);
+                    } else {
+                        builder.addWaypoint((WptType)item);
+                    }
+                    break;
+                case OP_RTE:
+                    rteType = (RteType)item;
+                    gpx.getRte().add(rteType);
+                    break;
+                case OP_TRK:
+                    endSegment();
+                    trkType = (TrkType)item;
+                    trksegType = null;
+                    gpx.getTrk().add(trkType);
+                    break;
+                case OP_TRKPT:
+                case OP_TRKPT_START:
+                    if(trkType == null) {
+                        long lineNum = linesBefore + chunk.lines[i];
+                        builder.onWarning(lineNum, "Line " + lineNum
+                            + " Found trackpoint without track");
+                        if(counts != null) counts.skippedLines++;
+                        if(chunk.columnar) {
+                            point++;
+                        }
+                        break;
+                    }
+                    if(chunk.ops[i] != OP_TRKPT_START && trksegType == null) {
+                        long lineNum = linesBefore + chunk.lines[i];
+                        builder.onWarning(lineNum, "Line " + lineNum
+                            + " Found continued trackpoint without segment");
+                    }
+                    if(chunk.ops[i] == OP_TRKPT_START || trksegType == null) {
+                        endSegment();
+                        trksegType = builder.newSegment();
+                        if(trksegType instanceof GpslTrksegType) {
+                            trackpoints = ((GpslTrksegType)trksegType)
+                                .getTrackpoints();
+                        }
+                        trkType.getTrkseg().add(trksegType);
+                    }
+                    if(chunk.columnar) {
+                        trackpoints.add(chunk.coords[3 * point],
+                            chunk.coords[3 * point + 1],
+                            chunk.coords[3 * point + 2], chunk.times[point],
+                            chunk.getScale(point, 0),
+                            chunk.getScale(point, 1));
+                        point++;
+                    } else {
+                        trksegType.getTrkpt().add((WptType)item);
+                    }
+                    break;
+                }
+                chunk.items[i] = null;
+            }
+        }
+
+        /**
+         * Trims the trackpoints of the current segment if they are columnar.
+         */
+        void endSegment() {
+            if(trackpoints != null) {
+                trackpoints.trimToSize();
+                trackpoints = null;
+            }
+        }
+    }
+
+    /**
+     * Makes daemon threads so an abandoned parse or save does not keep the VM
+     * alive.
+     */
+    static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private int count;
+
+        /**
+         * @param name The start of the thread names, which are followed by a
+         *            number.
+         */
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + " " + ++count);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.RteType;
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Writes a GpxType on several threads. The waypoints, routes, and tracks are
+ * divided into batches, each of which is one route or track or consecutive
+ * ones with at least BATCH_POINTS points in all. Each batch is formatted into
+ * its own buffer by a GpslWriter on a worker thread, and the buffers are
+ * written in order on the calling thread, so the output is the same as for
+ * GpslWriter.write. Only a limited number of batches are submitted ahead of
+ * the one being written, which bounds the memory used.
+ */
+class GpslParallelWriter
+{
+    /** Consecutive items are formatted together until they have this many. */
+    private static final int BATCH_POINTS = 8 * 1024;
+
+    // The sections
+    private static final int WAYPOINTS = 0;
+    private static final int ROUTES = 1;
+    private static final int TRACKS = 2;
+
+    private final int nThreads;
+    private final int maxPending;
+    private GpslMetrics.Counts counts;
+
+    /**
+     * Constructor.
+     *
+     * @param threads The number of threads or 0 for the number of available
+     *            processors.
+     * @param maxPending The most batches submitted but not yet written or 0
+     *            for twice the number of threads.
+     */
+    GpslParallelWriter(int threads, int maxPending) {
+        this.nThreads = threads > 0 ? threads : Runtime.getRuntime()
+            .availableProcessors();
+        this.maxPending = maxPending > 0 ? maxPending : 2 * nThreads;
+    }
+
+    /**
+     * Writes a complete file for the given GpxType.
+     *
+     * @param writer The GpslWriter for the file. It is not flushed.
+     * @param gpxType The GpxType.
+     * @param offset The offset in hours used for the trackpoint times.
+     * @throws IOException
+     */
+    void write(GpslWriter writer, GpxType gpxType, double offset)
+        throws IOException {
+        List<Batch> batches = makeBatches(gpxType);
+        if(nThreads < 2 || batches.size() < 2) {
+            writer.write(gpxType, offset);
+            return;
+        }
+        writer.writeHeader(offset);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads,
+            new GpslParallelParser.DaemonThreadFactory("GPSL writer"));
+        try {
+            List<Future<Part>> futures = new ArrayList<Future<Part>>(
+                batches.size());
+            int nSubmitted = 0;
+            for(int i = 0; i < batches.size(); i++) {
+                while(nSubmitted < batches.size()
+                    && nSubmitted - i < maxPending) {
+                    futures.add(executor.submit(new BatchTask(writer, gpxType,
+                        batches.get(nSubmitted++), counts != null)));
+                }
+                Part part = getPart(futures.get(i));
+                futures.set(i, null);
+                Batch batch = batches.get(i);
+                if(batch.from == 0) {
+                    switch(batch.section) {
+                    case WAYPOINTS:
+                        writer.writeSectionHeader("Waypoints", "Symbol");
+                        break;
+                    case ROUTES:
+                        writer.writeSectionHeader("Routes", "Symbol");
+                        break;
+                    case TRACKS:
+                        writer.writeSectionHeader("Tracks", "Time");
+                        break;
+                    }
+                }
+                writer.writeFormatted(part.chars);
+                if(part.counts != null) {
+                    counts.add(part.counts);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     */
+    void setCounts(GpslMetrics.Counts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * Divides the waypoints, routes, and tracks into batches.
+     *
+     * @param gpxType The GpxType.
+     * @return The batches in the order they are written.
+     */
+    private static List<Batch> makeBatches(GpxType gpxType) {
+        List<Batch> batches = new ArrayList<Batch>();
+        int n = gpxType.getWpt().size();
+        for(int from = 0; from < n; from += BATCH_POINTS) {
+            batches.add(new Batch(WAYPOINTS, from, Math.min(n, from
+                + BATCH_POINTS)));
+        }
+        List<RteType> rtes = gpxType.getRte();
+        int from = 0;
+        long nPoints = 0;
+        for(int i = 0; i < rtes.size(); i++) {
+            // Count the R line too
+            nPoints += getPointCount(rtes.get(i)) + 1;
+            if(nPoints >= BATCH_POINTS || i == rtes.size() - 1) {
+                batches.add(new Batch(ROUTES, from, i + 1));
+                from = i + 1;
+                nPoints = 0;
+            }
+        }
+        List<TrkType> trks = gpxType.getTrk();
+        from = 0;
+        nPoints = 0;
+        for(int i = 0; i < trks.size(); i++) {
+            nPoints += getPointCount(trks.get(i)) + 1;
+            if(nPoints >= BATCH_POINTS || i == trks.size() - 1) {
+                batches.add(new Batch(TRACKS, from, i + 1));
+                from = i + 1;
+                nPoints = 0;
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Gets the number of points in a route without loading a lazy one.
+     */
+    private static int getPointCount(RteType rte) {
+        if(rte instanceof GpslLazyRteType
+            && !((GpslLazyRteType)rte).isLoaded()) {
+            return ((GpslLazyRteType)rte).getPointCount();
+        }
+        return rte.getRtept().size();
+    }
+
+    /**
+     * Gets the number of points in a track without loading a lazy one.
+     */
+    private static int getPointCount(TrkType trk) {
+        if(trk instanceof GpslLazyTrkType
+            && !((GpslLazyTrkType)trk).isLoaded()) {
+            return ((GpslLazyTrkType)trk).getPointCount();
+        }
+        int nPoints = 0;
+        for(TrksegType seg : trk.getTrkseg()) {
+            nPoints += seg.getTrkpt().size();
+        }
+        return nPoints;
+    }
+
+    /**
+     * Gets the result of a BatchTask, rethrowing what it threw.
+     *
+     * @param future The Future of the task.
+     * @return The Part.
+     * @throws IOException
+     */
+    private static Part getPart(Future<Part> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause.toString());
+        }
+    }
+
+    /**
+     * A range of the waypoints, routes, or tracks.
+     */
+    private static class Batch
+    {
+        final int section;
+        final int from;
+        final int to;
+
+        Batch(int section, int from, int to) {
+            this.section = section;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * A formatted batch.
+     */
+    private static class Part
+    {
+        final CharArrayWriter chars = new CharArrayWriter(64 * 1024);
+        GpslMetrics.Counts counts;
+    }
+
+    /**
+     * Formats one batch.
+     */
+    private static class BatchTask implements Callable<Part>
+    {
+        private final GpslWriter writer;
+        private final GpxType gpxType;
+        private final Batch batch;
+        private final boolean counted;
+
+        BatchTask(GpslWriter writer, GpxType gpxType, Batch batch,
+            boolean counted) {
+            this.writer = writer;
+            this.gpxType = gpxType;
+            this.batch = batch;
+            this.counted = counted;
+        }
+
+        @Override
+        public Part call() throws IOException {
+            Part part = new Part();
+            GpslWriter partWriter = writer.newPartWriter(part.chars);
+            if(counted) {
+                part.counts = new GpslMetrics.Counts();
+                partWriter.setCounts(part.counts);
+            }
+            for(int i = batch.from; i < batch.to; i++) {
+                switch(batch.section) {
+                case WAYPOINTS:
+                    partWriter.writeWaypoint(gpxType.getWpt().get(i));
+                    break;
+                case ROUTES:
+                    RteType rte = gpxType.getRte().get(i);
+                    partWriter.writeRoute(rte.getName());
+                    for(WptType wpt : rte.getRtept()) {
+                        partWriter.writeWaypoint(wpt);
+                    }
+                    break;
+                case TRACKS:
+                    partWriter.writeTrack(gpxType.getTrk().get(i));
+                    break;
+                }
+            }
+            partWriter.flush();
+            return part;
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of parsed GPSL files. Each entry is a GpslRecording of the parse,
+ * which can be replayed to make a new GpxType without reading the file, so
+ * the GpxType objects given out are never shared. Entries are keyed on the
+ * canonical path and are only used if the length and last-modified time of
+ * the file are the same as when it was parsed. The least recently used
+ * entries are evicted to keep the estimated memory within a budget.<br>
+ * <br>
+ * The methods are synchronized, so one cache can be shared.
+ */
+public class GpslParseCache
+{
+    /** The default memory budget in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    /** The entries in access order, least recently used first. */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, .75f, true);
+    private long memoryBudget;
+    private long memorySize;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Constructor that uses the DEFAULT_MEMORY_BUDGET.
+     */
+    public GpslParseCache() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param memoryBudget The most memory to use in bytes.
+     */
+    public GpslParseCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Gets the recording for a file if it is cached and the file has not
+     * changed. This counts as a hit or a miss.
+     *
+     * @param key The key for the file as it is now.
+     * @return The recording or null.
+     */
+    public synchronized GpslRecording get(Key key) {
+        Entry entry = entries.get(key.path);
+        if(entry == null) {
+            misses++;
+            return null;
+        }
+        if(entry.length != key.length
+            || entry.lastModified != key.lastModified) {
+            // The file has changed
+            remove(key.path);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.recording;
+    }
+
+    /**
+     * Adds the recording for a file, evicting the least recently used entries
+     * if necessary. It is not added if the file has changed since the key was
+     * made or if it is larger than the budget.
+     *
+     * @param key The key made before the file was parsed.
+     * @param recording The recording, which should have been trimmed.
+     */
+    public synchronized void put(Key key, GpslRecording recording) {
+        remove(key.path);
+        long size = recording.getMemorySize();
+        if(size > memoryBudget || !key.isCurrent()) {
+            return;
+        }
+        entries.put(key.path, new Entry(key, recording, size));
+        memorySize += size;
+        evict();
+    }
+
+    /**
+     * Removes the entry for a file, if any. This should be called when the
+     * file is written.
+     *
+     * @param file The file.
+     */
+    public void invalidate(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch(IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        synchronized(this) {
+            remove(path);
+        }
+    }
+
+    /**
+     * Removes all the entries. The counters are not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        memorySize = 0;
+    }
+
+    private void remove(String path) {
+        Entry entry = entries.remove(path);
+        if(entry != null) {
+            memorySize -= entry.size;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the memory is within the
+     * budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet()
+            .iterator();
+        while(memorySize > memoryBudget && iter.hasNext()) {
+            memorySize -= iter.next().getValue().size;
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return The number of times get found a current entry.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of times get did not find a current entry.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries evicted to stay within the budget.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The estimated memory used by the entries in bytes.
+     */
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * @return The most memory to use in bytes.
+     */
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the most memory to use, evicting entries if necessary.
+     *
+     * @param memoryBudget The budget in bytes.
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GpslParseCache [entries=" + entries.size() + ", memorySize="
+            + memorySize + ", memoryBudget=" + memoryBudget + ", hits="
+            + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * Identifies a file and its state when the key is made.
+     */
+    public static class Key
+    {
+        private final File file;
+        private final String path;
+        private final long length;
+        private final long lastModified;
+
+        /**
+         * Constructor.
+         *
+         * @param file The file.
+         * @throws IOException if the canonical path cannot be found.
+         */
+        public Key(File file) throws IOException {
+            this.file = file;
+            this.path = file.getCanonicalPath();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * @return Whether the file still has the same length and
+         *         last-modified time.
+         */
+        public boolean isCurrent() {
+            return file.length() == length
+                && file.lastModified() == lastModified;
+        }
+
+        /**
+         * @return The canonical path.
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * A cached recording and the state of the file it was made from.
+     */
+    private static class Entry
+    {
+        private final long length;
+        private final long lastModified;
+        private final GpslRecording recording;
+        private final long size;
+
+        Entry(Key key, GpslRecording recording, long size) {
+            this.length = key.length;
+            this.lastModified = key.lastModified;
+            this.recording = recording;
+            this.size = size;
+        }
+    }
+
+}
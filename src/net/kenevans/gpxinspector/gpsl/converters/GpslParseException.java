@@ -0,0 +1,48 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a GPSL file cannot be read because of its contents.
+ */
+public class GpslParseException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+    private final long lineNum;
+
+    /**
+     * Constructor.
+     * 
+     * @param message The message.
+     * @param lineNum The line number where the problem was found.
+     */
+    public GpslParseException(String message, long lineNum) {
+        super(message);
+        this.lineNum = lineNum;
+    }
+
+    /**
+     * @return The line number where the problem was found.
+     */
+    public long getLineNumber() {
+        return lineNum;
+    }
+
+    /**
+     * Converts an exception from a part of a file, whose line numbers start
+     * at the start of the part, to one with the line number in the file.
+     * 
+     * @param linesBefore The number of lines before the part.
+     * @return The new exception.
+     */
+    GpslParseException relocate(long linesBefore) {
+        long fileLineNum = linesBefore + lineNum;
+        String message = getMessage();
+        String prefix = "Line " + lineNum;
+        if(message.startsWith(prefix)) {
+            message = "Line " + fileLineNum + message.substring(prefix.length());
+        }
+        return new GpslParseException(message, fileLineNum);
+    }
+
+}
@@ -0,0 +1,233 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * Options that control how GpslConverter parses a file. The defaults give the
+ * standard sequential parse.
+ */
+public class GpslParseOptions
+{
+    private boolean parallel = false;
+    private int threads = 0;
+    private boolean columnarTracks = false;
+    private boolean lazyLoading = false;
+    private GpslWaypointIndex.Policy duplicatePolicy =
+        GpslWaypointIndex.Policy.KEEP_ALL;
+    private double duplicateLatLonQuantum =
+        GpslWaypointIndex.DEFAULT_LAT_LON_QUANTUM;
+    private double duplicateEleQuantum = GpslWaypointIndex.DEFAULT_ELE_QUANTUM;
+    private double decimationTolerance = 0;
+    private long decimationMinSpacing = 0;
+    private boolean spatialIndexing = false;
+    private boolean statistics = false;
+    private double spatialIndexCellSize = GpslSpatialIndex.DEFAULT_CELL_SIZE;
+
+    /**
+     * @return Whether large files are parsed in chunks on several threads.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel Whether large files are parsed in chunks on several
+     *            threads. The result is the same as for a sequential parse.
+     *            Compressed files are always parsed sequentially.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return The number of threads to use for a parallel parse. 0 means the
+     *         number of available processors.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of threads to use for a parallel parse. 0
+     *            means the number of available processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return Whether the trackpoints are stored in primitive columns.
+     */
+    public boolean isColumnarTracks() {
+        return columnarTracks;
+    }
+
+    /**
+     * @param columnarTracks Whether the trackpoints are stored in primitive
+     *            columns, with the WptType objects made only when something
+     *            asks for them. This uses much less memory for large files
+     *            whose trackpoints are not all looked at.
+     */
+    public void setColumnarTracks(boolean columnarTracks) {
+        this.columnarTracks = columnarTracks;
+    }
+
+    /**
+     * @return Whether the points of routes and tracks are read when they are
+     *         first asked for.
+     */
+    public boolean isLazyLoading() {
+        return lazyLoading;
+    }
+
+    /**
+     * @param lazyLoading Whether the file is indexed and the points of routes
+     *            and tracks are read when they are first asked for. Problems
+     *            with them are then found only at that time, and the list
+     *            being asked throws an IllegalStateException. Files whose
+     *            routes or tracks are not contiguous, and compressed files,
+     *            are parsed normally.
+     *            This takes precedence over the cache and parallel options.
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+
+    /**
+     * @return What is done with duplicate waypoints.
+     */
+    public GpslWaypointIndex.Policy getDuplicatePolicy() {
+        return duplicatePolicy;
+    }
+
+    /**
+     * @param duplicatePolicy What is done with waypoints that have the same
+     *            name and quantized position as an earlier one. The number
+     *            found is reported as an INFO in the diagnostics. Route points
+     *            are not affected.
+     */
+    public void setDuplicatePolicy(GpslWaypointIndex.Policy duplicatePolicy) {
+        this.duplicatePolicy = duplicatePolicy;
+    }
+
+    /**
+     * @return The latitude and longitude quantum in degrees used to find
+     *         duplicate waypoints.
+     */
+    public double getDuplicateLatLonQuantum() {
+        return duplicateLatLonQuantum;
+    }
+
+    /**
+     * @param duplicateLatLonQuantum The latitude and longitude quantum in
+     *            degrees used to find duplicate waypoints.
+     */
+    public void setDuplicateLatLonQuantum(double duplicateLatLonQuantum) {
+        this.duplicateLatLonQuantum = duplicateLatLonQuantum;
+    }
+
+    /**
+     * @return The elevation quantum in meters used to find duplicate
+     *         waypoints.
+     */
+    public double getDuplicateEleQuantum() {
+        return duplicateEleQuantum;
+    }
+
+    /**
+     * @param duplicateEleQuantum The elevation quantum in meters used to find
+     *            duplicate waypoints.
+     */
+    public void setDuplicateEleQuantum(double duplicateEleQuantum) {
+        this.duplicateEleQuantum = duplicateEleQuantum;
+    }
+
+    /**
+     * @return The distance in meters within which trackpoints are dropped or 0
+     *         if they are not dropped for distance.
+     */
+    public double getDecimationTolerance() {
+        return decimationTolerance;
+    }
+
+    /**
+     * @param decimationTolerance The distance in meters within which a
+     *            trackpoint is dropped if it is from the last one kept, or 0
+     *            to not drop trackpoints for distance. See
+     *            GpslDecimatingHandler. The fraction kept is reported as an
+     *            INFO in the diagnostics. Decimated files are always parsed
+     *            sequentially.
+     */
+    public void setDecimationTolerance(double decimationTolerance) {
+        this.decimationTolerance = decimationTolerance;
+    }
+
+    /**
+     * @return The time in seconds within which trackpoints are dropped or 0
+     *         if they are not dropped for time.
+     */
+    public long getDecimationMinSpacing() {
+        return decimationMinSpacing;
+    }
+
+    /**
+     * @param decimationMinSpacing The time in seconds within which a
+     *            trackpoint is dropped if it is after the last one kept, or 0
+     *            to not drop trackpoints for time. If there is also a
+     *            tolerance, a trackpoint is kept only if it is far enough and
+     *            late enough.
+     */
+    public void setDecimationMinSpacing(long decimationMinSpacing) {
+        this.decimationMinSpacing = decimationMinSpacing;
+    }
+
+    /**
+     * @return Whether statistics of the file, tracks, and segments are
+     *         accumulated.
+     */
+    public boolean isStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @param statistics Whether GpslStatistics of the file, tracks, and
+     *            segments are accumulated as the trackpoints are parsed. They
+     *            are returned in the GpslParseResult and are for the
+     *            trackpoints kept after any decimation. Files are always
+     *            parsed sequentially when accumulating statistics.
+     */
+    public void setStatistics(boolean statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return Whether a spatial index of the points is built.
+     */
+    public boolean isSpatialIndexing() {
+        return spatialIndexing;
+    }
+
+    /**
+     * @param spatialIndexing Whether a GpslSpatialIndex of the waypoints,
+     *            route points, and trackpoints is built as they are parsed.
+     *            It is returned in the GpslParseResult. Files are always
+     *            parsed sequentially when indexing.
+     */
+    public void setSpatialIndexing(boolean spatialIndexing) {
+        this.spatialIndexing = spatialIndexing;
+    }
+
+    /**
+     * @return The cell size in degrees of the spatial index.
+     */
+    public double getSpatialIndexCellSize() {
+        return spatialIndexCellSize;
+    }
+
+    /**
+     * @param spatialIndexCellSize The cell size in degrees of the spatial
+     *            index.
+     */
+    public void setSpatialIndexCellSize(double spatialIndexCellSize) {
+        this.spatialIndexCellSize = spatialIndexCellSize;
+    }
+
+}
@@ -0,0 +1,81 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+
+/**
+ * The result of GpslConverter.parseHeadless: the GpxType, if the parse
+ * succeeded, and the diagnostics.
+ */
+public class GpslParseResult
+{
+    private final GpxType gpx;
+    private final GpslDiagnostics diagnostics;
+    private GpslSpatialIndex spatialIndex;
+    private GpslStatistics statistics;
+
+    /**
+     * Constructor.
+     * 
+     * @param gpx The GpxType or null if the parse failed.
+     * @param diagnostics The diagnostics.
+     */
+    public GpslParseResult(GpxType gpx, GpslDiagnostics diagnostics) {
+        this.gpx = gpx;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * @return The GpxType or null if the parse failed.
+     */
+    public GpxType getGpx() {
+        return gpx;
+    }
+
+    /**
+     * @return The diagnostics.
+     */
+    public GpslDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return The spatial index of the points of the GpxType or null if none
+     *         was built.
+     */
+    public GpslSpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * @param spatialIndex The spatial index of the points of the GpxType or
+     *            null if none was built.
+     */
+    public void setSpatialIndex(GpslSpatialIndex spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    /**
+     * @return The statistics of the file, whose parts are those of the tracks
+     *         of the GpxType, or null if they were not accumulated. When they
+     *         were, each track is a GpslStatisticsTrkType carrying its own.
+     */
+    public GpslStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @param statistics The statistics of the file or null if they were not
+     *            accumulated.
+     */
+    public void setStatistics(GpslStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return If the parse succeeded.
+     */
+    public boolean isOk() {
+        return gpx != null;
+    }
+
+}
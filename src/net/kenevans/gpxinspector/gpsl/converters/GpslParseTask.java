@@ -0,0 +1,69 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A parse started by GpslConverter.parseAsync or parseAll. Cancelling the
+ * task also cancels its GpslCancellation, so a parse in progress stops at the
+ * next line. A parse that stops because its cancellation was cancelled some
+ * other way ends the task as cancelled too, so get throws a
+ * CancellationException in both cases rather than returning a failed result.
+ */
+public class GpslParseTask extends FutureTask<GpslParseResult>
+{
+    private final File file;
+    private final GpslCancellation cancellation;
+
+    /**
+     * Constructor.
+     *
+     * @param converter The converter that does the parse.
+     * @param file The file.
+     * @param listener The listener or null for none.
+     * @param cancellation The cancellation.
+     */
+    GpslParseTask(final GpslConverter converter, final File file,
+        final GpslProgressListener listener,
+        final GpslCancellation cancellation) {
+        super(new Callable<GpslParseResult>() {
+            @Override
+            public GpslParseResult call() {
+                return converter.parseHeadless(file, listener, cancellation);
+            }
+        });
+        this.file = file;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        cancellation.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void set(GpslParseResult result) {
+        if(!result.isOk() && cancellation.isCancelled()) {
+            super.cancel(false);
+        } else {
+            super.set(result);
+        }
+    }
+
+    /**
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The cancellation.
+     */
+    public GpslCancellation getCancellation() {
+        return cancellation;
+    }
+
+}
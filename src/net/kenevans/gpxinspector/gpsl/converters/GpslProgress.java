@@ -0,0 +1,62 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+
+/**
+ * The GpslProgressListener and GpslCancellation of one parse, either of which
+ * may be null.
+ */
+class GpslProgress
+{
+    /** The least number of bytes read between calls to the listener. */
+    static final long INTERVAL = 256 * 1024;
+
+    private final File file;
+    private final GpslProgressListener listener;
+    private final GpslCancellation cancellation;
+    private final long totalBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param file The file being parsed.
+     * @param listener The listener or null for none.
+     * @param cancellation The cancellation or null for none.
+     */
+    GpslProgress(File file, GpslProgressListener listener,
+        GpslCancellation cancellation) {
+        this.file = file;
+        this.listener = listener;
+        this.cancellation = cancellation;
+        this.totalBytes = file.length();
+    }
+
+    /**
+     * @throws GpslCancelledException if the parse has been cancelled.
+     */
+    void checkCancelled() throws GpslCancelledException {
+        if(cancellation != null && cancellation.isCancelled()) {
+            throw new GpslCancelledException("Cancelled parsing "
+                + file.getName());
+        }
+    }
+
+    /**
+     * Tells the listener, if any, how far the parse has got.
+     *
+     * @param bytesRead The number of bytes of the file read.
+     */
+    void update(long bytesRead) {
+        if(listener != null) {
+            listener.progress(file, bytesRead, totalBytes);
+        }
+    }
+
+    /**
+     * Tells the listener, if any, that all the file has been read.
+     */
+    void done() {
+        update(totalBytes);
+    }
+
+}
@@ -0,0 +1,21 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+
+/**
+ * Told how far a parse has got. It is called on the thread doing the parse,
+ * so it should return quickly and do any user interface updates
+ * asynchronously.
+ */
+public interface GpslProgressListener
+{
+    /**
+     * Called as the file is read.
+     *
+     * @param file The file being parsed.
+     * @param bytesRead The number of bytes of the file read so far. For a
+     *            compressed file these are compressed bytes.
+     * @param totalBytes The length of the file.
+     */
+    void progress(File file, long bytesRead, long totalBytes);
+}
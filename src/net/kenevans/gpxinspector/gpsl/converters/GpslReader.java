@@ -0,0 +1,350 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a GPSL file and passes its contents to a GpslHandler as it goes,
+ * without building a GpxType. The rules are those of GPSLink: a blank line
+ * ends any route or track in progress, W lines are route points when a route
+ * is in progress, and a trackpoint whose name starts with C continues the
+ * current segment.<br>
+ * <br>
+ * An H line always ends the segment in progress. A trackpoint whose name
+ * starts with C right after an H line starts a new segment in the new track,
+ * with a warning. The original parse added it to the open segment of the
+ * previous track, or failed if a blank line had ended it.<br>
+ * <br>
+ * The file is read from its FileChannel in large blocks and tokenized at the
+ * byte level by a GpslTokenizer. A file whose name ends in .gz is
+ * decompressed as it is read. If there is a GpslProgress, its cancellation is
+ * checked after each line.<br>
+ * <br>
+ * Instead of reading the whole file with read, a file can be opened and read
+ * a line at a time with next, which lets one thread read several files in
+ * step.
+ */
+public class GpslReader
+{
+    private final File file;
+    private GpslTokenizer tokenizer;
+    private GpslTokenizer.Sink sink;
+    private GpslHandler handler;
+    /** The input opened by open or null if it is not open. */
+    private InputStream openIn;
+    private boolean rteDataInProgress;
+    private boolean trkDataInProgress;
+    private boolean segDataInProgress;
+    /** The scales of the coordinates last passed to the handler. */
+    private int latScale;
+    private int lonScale;
+    private GpslMetrics.Counts counts;
+    private GpslProgress progress;
+
+    /**
+     * Constructor.
+     *
+     * @param file The GPSL file.
+     */
+    public GpslReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the file, calling the handler for each item.
+     *
+     * @param handler The handler.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    public void read(GpslHandler handler) throws IOException {
+        InputStream in = null;
+        try {
+            FileInputStream fileIn = new FileInputStream(file);
+            in = fileIn;
+            if(GpslConverter.isCompressed(file)) {
+                in = new GZIPInputStream(fileIn,
+                    GpslConverter.GZIP_BUFFER_SIZE);
+                read(Channels.newChannel(in), handler, fileIn.getChannel());
+            } else {
+                read(fileIn.getChannel(), handler, null);
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+    }
+
+    /**
+     * Reads GPSL data from a channel, calling the handler for each item. The
+     * channel is not closed.
+     *
+     * @param channel The channel.
+     * @param handler The handler.
+     * @param compressedChannel The channel of the compressed file, whose
+     *            position is the progress, or null if the channel is not
+     *            decompressing.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws IOException if the channel cannot be read.
+     */
+    private void read(ReadableByteChannel channel, GpslHandler handler,
+        FileChannel compressedChannel) throws IOException {
+        long start = counts == null ? 0 : System.nanoTime();
+        try {
+            begin(channel, handler);
+            if(counts != null) {
+                long now = System.nanoTime();
+                counts.headerNanos += now - start;
+                start = now;
+            }
+            GpslProgress progress = this.progress;
+            if(progress == null) {
+                while(tokenizer.next(sink)) {
+                    // The sink does the work
+                }
+            } else {
+                long nextUpdate = GpslProgress.INTERVAL;
+                while(tokenizer.next(sink)) {
+                    progress.checkCancelled();
+                    long bytesRead = tokenizer.getBytesRead();
+                    if(bytesRead >= nextUpdate) {
+                        nextUpdate = bytesRead + GpslProgress.INTERVAL;
+                        progress.update(compressedChannel == null ? bytesRead
+                            : compressedChannel.position());
+                    }
+                }
+            }
+            endRoute();
+            endTrack();
+            handler.onEnd();
+        } finally {
+            if(counts != null) {
+                counts.bodyNanos += System.nanoTime() - start;
+                counts.bytes += tokenizer.getBytesRead();
+                counts.lines += tokenizer.getLineNumber();
+            }
+        }
+    }
+
+    /**
+     * Starts reading from a channel, reading the header and calling
+     * onHeader.
+     *
+     * @param channel The channel.
+     * @param handler The handler.
+     * @throws GpslParseException if the header is invalid.
+     * @throws IOException if the channel cannot be read.
+     */
+    private void begin(ReadableByteChannel channel, GpslHandler handler)
+        throws IOException {
+        this.handler = handler;
+        rteDataInProgress = false;
+        trkDataInProgress = false;
+        segDataInProgress = false;
+        latScale = GpslNumbers.DEFAULT_SCALE;
+        lonScale = GpslNumbers.DEFAULT_SCALE;
+        tokenizer = new GpslTokenizer(channel);
+        tokenizer.setCounts(counts);
+        sink = new StateSink();
+        tokenizer.readHeader(handler);
+        handler.onHeader(tokenizer.getDelimiter(), tokenizer.getOffset());
+    }
+
+    /**
+     * Opens the file and reads the header, calling the handler's onHeader.
+     * The rest of the file is read with next. The file must be closed with
+     * close.
+     *
+     * @param handler The handler.
+     * @throws GpslParseException if the header is invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    void open(GpslHandler handler) throws IOException {
+        FileInputStream fileIn = new FileInputStream(file);
+        openIn = fileIn;
+        try {
+            if(GpslConverter.isCompressed(file)) {
+                openIn = new GZIPInputStream(fileIn,
+                    GpslConverter.GZIP_BUFFER_SIZE);
+                begin(Channels.newChannel(openIn), handler);
+            } else {
+                begin(fileIn.getChannel(), handler);
+            }
+        } catch(IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the next line of a file opened with open, calling the handler
+     * for it. At the end of the file, the routes and tracks in progress are
+     * ended and onEnd is called.
+     *
+     * @return If there was a line or false at the end of the file.
+     * @throws GpslParseException if the line is invalid.
+     * @throws IOException if the file cannot be read.
+     */
+    boolean next() throws IOException {
+        if(tokenizer.next(sink)) {
+            return true;
+        }
+        endRoute();
+        endTrack();
+        handler.onEnd();
+        return false;
+    }
+
+    /**
+     * Closes a file opened with open. It does nothing if the file is not
+     * open.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        if(openIn != null) {
+            InputStream in = openIn;
+            openIn = null;
+            in.close();
+        }
+    }
+
+    private void endRoute() {
+        if(rteDataInProgress) {
+            rteDataInProgress = false;
+            handler.onRouteEnd();
+        }
+    }
+
+    private void endTrack() {
+        if(trkDataInProgress) {
+            trkDataInProgress = false;
+            segDataInProgress = false;
+            handler.onTrackEnd();
+        }
+    }
+
+    /**
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     */
+    void setCounts(GpslMetrics.Counts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * @param progress The progress to update and check for cancellation or
+     *            null for none.
+     */
+    void setProgress(GpslProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The delimiter found in the header.
+     */
+    public char getDelimiter() {
+        return tokenizer == null ? '\t' : tokenizer.getDelimiter();
+    }
+
+    /**
+     * @return The GMTOffset found in the header.
+     */
+    public String getOffset() {
+        return tokenizer == null ? null : tokenizer.getOffset();
+    }
+
+    /**
+     * @return The number of the last line read.
+     */
+    public long getLineNumber() {
+        return tokenizer == null ? 0 : tokenizer.getLineNumber();
+    }
+
+    /**
+     * Keeps track of the routes and tracks in progress and passes the records
+     * on to the handler.
+     */
+    private class StateSink implements GpslTokenizer.Sink
+    {
+        @Override
+        public void blankLine() {
+            // A blank line will terminate routes and tracks in progress
+            endRoute();
+            endTrack();
+        }
+
+        @Override
+        public void waypoint(String name, double lat, double lon, double ele,
+            String symbol, int latScale, int lonScale) {
+            setScales(latScale, lonScale);
+            if(rteDataInProgress) {
+                handler.onRoutepoint(name, lat, lon, ele, symbol);
+            } else {
+                // Duplicates are left to the handler, see GpslWaypointIndex
+                handler.onWaypoint(name, lat, lon, ele, symbol);
+            }
+        }
+
+        @Override
+        public void route(String name) {
+            endRoute();
+            handler.onRouteStart(name);
+            rteDataInProgress = true;
+        }
+
+        @Override
+        public void track(String name) {
+            endTrack();
+            handler.onTrackStart(name);
+            trkDataInProgress = true;
+        }
+
+        @Override
+        public void trackpoint(boolean startSegment, double lat, double lon,
+            double ele, long time, int latScale, int lonScale) {
+            if(!trkDataInProgress) {
+                long lineNum = tokenizer.getLineNumber();
+                handler.onWarning(lineNum, "Line " + lineNum
+                    + " Found trackpoint without track");
+                if(counts != null) counts.skippedLines++;
+                return;
+            }
+            if(!startSegment && !segDataInProgress) {
+                long lineNum = tokenizer.getLineNumber();
+                handler.onWarning(lineNum, "Line " + lineNum
+                    + " Found continued trackpoint without segment");
+            }
+            if(startSegment || !segDataInProgress) {
+                handler.onSegmentStart();
+                segDataInProgress = true;
+            }
+            setScales(latScale, lonScale);
+            handler.onTrackpoint(lat, lon, ele, time);
+        }
+
+        /**
+         * Calls onCoordinateScales if the scales differ from the last ones.
+         */
+        private void setScales(int latScale, int lonScale) {
+            if(latScale != GpslReader.this.latScale
+                || lonScale != GpslReader.this.lonScale) {
+                GpslReader.this.latScale = latScale;
+                GpslReader.this.lonScale = lonScale;
+                handler.onCoordinateScales(latScale, lonScale);
+            }
+        }
+    }
+
+}
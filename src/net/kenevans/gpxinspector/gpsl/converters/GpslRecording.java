@@ -0,0 +1,253 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A GpslHandler that records what it is passed in compact arrays so it can be
+ * replayed to another handler later. Replaying gives the same calls,
+ * including the warnings, as parsing the file again, without reading or
+ * tokenizing it. A trackpoint takes 33 bytes.
+ */
+public class GpslRecording implements GpslHandler
+{
+    // Operations, which are also used by GpslSidecar
+    static final byte OP_HEADER = 0;
+    static final byte OP_WPT = 1;
+    static final byte OP_RTE_START = 2;
+    static final byte OP_RTEPT = 3;
+    static final byte OP_RTE_END = 4;
+    static final byte OP_TRK_START = 5;
+    static final byte OP_SEG_START = 6;
+    static final byte OP_TRKPT = 7;
+    static final byte OP_TRK_END = 8;
+    static final byte OP_WARNING = 9;
+    static final byte OP_END = 10;
+    static final byte OP_SCALES = 11;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] ops = new byte[INITIAL_CAPACITY];
+    private int nOps;
+    /** The latitude, longitude, and elevation of points. */
+    private double[] doubles = new double[3 * INITIAL_CAPACITY];
+    private int nDoubles;
+    /** The times, line numbers, delimiter, and scales. */
+    private long[] longs = new long[INITIAL_CAPACITY];
+    private int nLongs;
+    /** The names, symbols, offset, and warning messages. */
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private int nStrings;
+    /** The estimated memory used by the strings. */
+    private long stringBytes;
+
+    /**
+     * Replays the recording to a handler.
+     *
+     * @param handler The handler.
+     */
+    public void replay(GpslHandler handler) {
+        int iDouble = 0;
+        int iLong = 0;
+        int iString = 0;
+        for(int i = 0; i < nOps; i++) {
+            switch(ops[i]) {
+            case OP_HEADER:
+                handler.onHeader((char)longs[iLong++], strings[iString++]);
+                break;
+            case OP_WPT:
+                handler.onWaypoint(strings[iString], doubles[iDouble],
+                    doubles[iDouble + 1], doubles[iDouble + 2],
+                    strings[iString + 1]);
+                iString += 2;
+                iDouble += 3;
+                break;
+            case OP_RTE_START:
+                handler.onRouteStart(strings[iString++]);
+                break;
+            case OP_RTEPT:
+                handler.onRoutepoint(strings[iString], doubles[iDouble],
+                    doubles[iDouble + 1], doubles[iDouble + 2],
+                    strings[iString + 1]);
+                iString += 2;
+                iDouble += 3;
+                break;
+            case OP_RTE_END:
+                handler.onRouteEnd();
+                break;
+            case OP_TRK_START:
+                handler.onTrackStart(strings[iString++]);
+                break;
+            case OP_SEG_START:
+                handler.onSegmentStart();
+                break;
+            case OP_TRKPT:
+                handler.onTrackpoint(doubles[iDouble], doubles[iDouble + 1],
+                    doubles[iDouble + 2], longs[iLong++]);
+                iDouble += 3;
+                break;
+            case OP_TRK_END:
+                handler.onTrackEnd();
+                break;
+            case OP_WARNING:
+                handler.onWarning(longs[iLong++], strings[iString++]);
+                break;
+            case OP_END:
+                handler.onEnd();
+                break;
+            case OP_SCALES:
+                handler.onCoordinateScales((int)longs[iLong],
+                    (int)longs[iLong + 1]);
+                iLong += 2;
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void onHeader(char delimiter, String offset) {
+        addOp(OP_HEADER);
+        addLong(delimiter);
+        addString(offset);
+    }
+
+    @Override
+    public void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        addOp(OP_WPT);
+        addString(name);
+        addPoint(lat, lon, ele);
+        addString(symbol);
+    }
+
+    @Override
+    public void onRouteStart(String name) {
+        addOp(OP_RTE_START);
+        addString(name);
+    }
+
+    @Override
+    public void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        addOp(OP_RTEPT);
+        addString(name);
+        addPoint(lat, lon, ele);
+        addString(symbol);
+    }
+
+    @Override
+    public void onRouteEnd() {
+        addOp(OP_RTE_END);
+    }
+
+    @Override
+    public void onTrackStart(String name) {
+        addOp(OP_TRK_START);
+        addString(name);
+    }
+
+    @Override
+    public void onSegmentStart() {
+        addOp(OP_SEG_START);
+    }
+
+    @Override
+    public void onTrackpoint(double lat, double lon, double ele, long time) {
+        addOp(OP_TRKPT);
+        addPoint(lat, lon, ele);
+        addLong(time);
+    }
+
+    @Override
+    public void onCoordinateScales(int latScale, int lonScale) {
+        addOp(OP_SCALES);
+        addLong(latScale);
+        addLong(lonScale);
+    }
+
+    @Override
+    public void onTrackEnd() {
+        addOp(OP_TRK_END);
+    }
+
+    @Override
+    public void onWarning(long lineNum, String message) {
+        addOp(OP_WARNING);
+        addLong(lineNum);
+        addString(message);
+    }
+
+    @Override
+    public void onEnd() {
+        addOp(OP_END);
+    }
+
+    private void addOp(byte op) {
+        if(nOps == ops.length) {
+            byte[] newOps = new byte[Math.max(2 * nOps, INITIAL_CAPACITY)];
+            System.arraycopy(ops, 0, newOps, 0, nOps);
+            ops = newOps;
+        }
+        ops[nOps++] = op;
+    }
+
+    private void addPoint(double lat, double lon, double ele) {
+        if(nDoubles + 3 > doubles.length) {
+            double[] newDoubles = new double[Math.max(2 * doubles.length,
+                3 * INITIAL_CAPACITY)];
+            System.arraycopy(doubles, 0, newDoubles, 0, nDoubles);
+            doubles = newDoubles;
+        }
+        doubles[nDoubles++] = lat;
+        doubles[nDoubles++] = lon;
+        doubles[nDoubles++] = ele;
+    }
+
+    private void addLong(long value) {
+        if(nLongs == longs.length) {
+            long[] newLongs = new long[Math.max(2 * nLongs, INITIAL_CAPACITY)];
+            System.arraycopy(longs, 0, newLongs, 0, nLongs);
+            longs = newLongs;
+        }
+        longs[nLongs++] = value;
+    }
+
+    private void addString(String value) {
+        if(nStrings == strings.length) {
+            String[] newStrings = new String[Math.max(2 * nStrings,
+                INITIAL_CAPACITY)];
+            System.arraycopy(strings, 0, newStrings, 0, nStrings);
+            strings = newStrings;
+        }
+        strings[nStrings++] = value;
+        if(value != null) {
+            // The String and its char array
+            stringBytes += 40 + 2 * value.length();
+        }
+    }
+
+    /**
+     * Trims the arrays to what has been recorded.
+     */
+    public void trimToSize() {
+        byte[] newOps = new byte[nOps];
+        System.arraycopy(ops, 0, newOps, 0, nOps);
+        ops = newOps;
+        double[] newDoubles = new double[nDoubles];
+        System.arraycopy(doubles, 0, newDoubles, 0, nDoubles);
+        doubles = newDoubles;
+        long[] newLongs = new long[nLongs];
+        System.arraycopy(longs, 0, newLongs, 0, nLongs);
+        longs = newLongs;
+        String[] newStrings = new String[nStrings];
+        System.arraycopy(strings, 0, newStrings, 0, nStrings);
+        strings = newStrings;
+    }
+
+    /**
+     * @return An estimate of the memory used in bytes. Strings that are shared
+     *         are counted each time they are used.
+     */
+    public long getMemorySize() {
+        return 4 * 16 + ops.length + 8L * doubles.length + 8L * longs.length
+            + 8L * strings.length + stringBytes;
+    }
+
+}
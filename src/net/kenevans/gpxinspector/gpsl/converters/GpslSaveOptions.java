@@ -0,0 +1,83 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * Options that control how GpslConverter saves a GpxType. The defaults give
+ * the standard sequential save.
+ */
+public class GpslSaveOptions
+{
+    private boolean parallel = false;
+    private int threads = 0;
+    private int maxPending = 0;
+    private boolean perTrackOffsets = false;
+
+    /**
+     * @return Whether the lines are formatted on several threads.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel Whether the waypoints, routes, and tracks are formatted
+     *            in batches on several threads and written in order. The
+     *            output is the same as for a sequential save.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return The number of threads to use for a parallel save. 0 means the
+     *         number of available processors.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of threads to use for a parallel save. 0
+     *            means the number of available processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return The most batches that are formatted or being formatted but not
+     *         yet written. 0 means twice the number of threads.
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * @param maxPending The most batches that are formatted or being
+     *            formatted but not yet written, which bounds the memory used.
+     *            A batch is one route or track or consecutive ones with a few
+     *            thousand points in all. 0 means twice the number of threads.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return Whether each track is written with the offset at its own time.
+     */
+    public boolean isPerTrackOffsets() {
+        return perTrackOffsets;
+    }
+
+    /**
+     * @param perTrackOffsets Whether each track is written with the offset of
+     *            the current time zone at the time of its first trackpoint,
+     *            given in a comment before it, so the times are the local
+     *            clock times even if the file mixes tracks made with and
+     *            without DST. Otherwise all the tracks use the offset in the
+     *            header. See GpslWriter.
+     */
+    public void setPerTrackOffsets(boolean perTrackOffsets) {
+        this.perTrackOffsets = perTrackOffsets;
+    }
+
+}
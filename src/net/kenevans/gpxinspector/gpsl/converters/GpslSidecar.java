@@ -0,0 +1,694 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary sidecar files that hold the parse of a GPSL file, so it can be read
+ * again without tokenizing the text. The sidecar records the length and
+ * last-modified time of the GPSL file and a CRC32 of its first and last 64 KB,
+ * which hold the header and the first and last records, and it is only used
+ * if all of them match. It also has a CRC32 of its own sections, so a damaged
+ * sidecar is not used. A valid sidecar is read into memory and decoded
+ * straight to a GpslHandler, giving exactly the same calls, including the
+ * warnings, as parsing the GPSL file. It is not memory mapped, since a mapped
+ * file cannot be deleted or replaced on Windows until the mapping is garbage
+ * collected.<br>
+ * <br>
+ * The calls are stored in four sections: the operations, one byte each; the
+ * latitudes, longitudes, and elevations; the times and line numbers; and the
+ * strings. Each double is stored as the zigzag varint of the difference from
+ * the previous value in the same column, with a 2-bit kind that says whether
+ * it is a whole number of millionths of a degree, a whole number of feet, a
+ * whole number of millionths of a foot, or, if it is none of these, the
+ * 8-byte value. The kinds are only used when they give the value back
+ * exactly. The longs are stored as zigzag varints of the difference from the
+ * previous one. A string that has already been stored is stored as its
+ * index.<br>
+ * <br>
+ * The sidecars are kept either next to the GPSL files, named by adding .bin,
+ * or in a cache directory, where the name includes a hash of the path.
+ */
+public class GpslSidecar
+{
+    /** The extension added to the name of the GPSL file. */
+    public static final String EXTENSION = ".bin";
+
+    /** "GPSB" */
+    private static final int MAGIC = 0x47505342;
+    private static final int VERSION = 3;
+    /** The size of the header, which is followed by the sections. */
+    private static final int HEADER_SIZE = 48;
+    /** The size of the start and end of the GPSL file that are checked. */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final String CHARSET = "UTF-8";
+
+    // The kinds of stored doubles
+    private static final int KIND_MICRODEGREES = 0;
+    private static final int KIND_FEET = 1;
+    private static final int KIND_MICROFEET = 2;
+    private static final int KIND_RAW = 3;
+    /** The largest scaled value that is exact as a double. */
+    private static final double MAX_SCALED = 1L << 52;
+
+    // String codes
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+
+    private final File directory;
+
+    /**
+     * Constructor for sidecars next to the GPSL files.
+     */
+    public GpslSidecar() {
+        this(null);
+    }
+
+    /**
+     * Constructor for sidecars in a cache directory.
+     *
+     * @param directory The directory or null to put them next to the GPSL
+     *            files. It is made if it does not exist.
+     */
+    public GpslSidecar(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the sidecar file for a GPSL file.
+     *
+     * @param file The GPSL file.
+     * @return The sidecar file, which may not exist.
+     */
+    public File getSidecarFile(File file) {
+        if(directory == null) {
+            return new File(file.getPath() + EXTENSION);
+        }
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch(IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(directory, base + "-"
+            + Integer.toHexString(path.hashCode()) + extension + EXTENSION);
+    }
+
+    /**
+     * Passes the contents of the sidecar for a GPSL file to a handler if
+     * there is a valid one. Nothing is passed to the handler otherwise.
+     *
+     * @param file The GPSL file.
+     * @param handler The handler.
+     * @return Whether there was a valid sidecar.
+     * @throws IOException if the sidecar cannot be read.
+     */
+    public boolean replay(File file, GpslHandler handler) throws IOException {
+        File sidecarFile = getSidecarFile(file);
+        long length = sidecarFile.length();
+        if(length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+            return false;
+        }
+        FileInputStream in = null;
+        ByteBuffer bb = ByteBuffer.allocate((int)length);
+        try {
+            in = new FileInputStream(sidecarFile);
+            FileChannel channel = in.getChannel();
+            while(bb.hasRemaining()) {
+                if(channel.read(bb) < 0) {
+                    return false;
+                }
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+        bb.flip();
+        if(bb.getInt() != MAGIC || bb.getInt() != VERSION
+            || bb.getLong() != file.length()
+            || bb.getLong() != file.lastModified()) {
+            return false;
+        }
+        int nOps = bb.getInt();
+        int doublesSize = bb.getInt();
+        int longsSize = bb.getInt();
+        int stringsSize = bb.getInt();
+        long total = (long)HEADER_SIZE + nOps + doublesSize + longsSize
+            + stringsSize;
+        int crc = bb.getInt();
+        int sampleCrc = bb.getInt();
+        if(nOps < 0 || doublesSize < 0 || longsSize < 0 || stringsSize < 0
+            || total != length || crc != crc(bb)
+            || sampleCrc != sampleCrc(file)) {
+            return false;
+        }
+        new Decoder(bb, nOps, doublesSize, longsSize).replay(handler);
+        return true;
+    }
+
+    /**
+     * Deletes the sidecar for a GPSL file, if any. This can be called when the
+     * file is written, though the sidecar would not be used anyway.
+     *
+     * @param file The GPSL file.
+     */
+    public void invalidate(File file) {
+        File sidecarFile = getSidecarFile(file);
+        if(sidecarFile.exists()) {
+            sidecarFile.delete();
+        }
+    }
+
+    /**
+     * Makes an Encoder for a GPSL file. The length and last-modified time of
+     * the file are taken now, so it should be made before the file is parsed.
+     *
+     * @param file The GPSL file.
+     * @return The Encoder, which should be passed the parse of the file.
+     */
+    public Encoder newEncoder(File file) {
+        return new Encoder(file);
+    }
+
+    /**
+     * Calculates the CRC32 of the sections.
+     *
+     * @param bb The buffer, positioned at the start of the sections.
+     * @return The CRC32.
+     */
+    private static int crc(ByteBuffer bb) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bb.array(), bb.arrayOffset() + bb.position(), bb
+            .remaining());
+        return (int)crc32.getValue();
+    }
+
+    /**
+     * Calculates the CRC32 of the first and last SAMPLE_SIZE bytes of a GPSL
+     * file, or of all of it if it is smaller than twice that.
+     *
+     * @param file The GPSL file.
+     * @return The CRC32.
+     * @throws IOException if the file cannot be read.
+     */
+    private static int sampleCrc(File file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        byte[] sample = new byte[SAMPLE_SIZE];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if(size <= 2 * SAMPLE_SIZE) {
+                update(crc32, channel, 0, size, sample);
+            } else {
+                update(crc32, channel, 0, SAMPLE_SIZE, sample);
+                update(crc32, channel, size - SAMPLE_SIZE, size, sample);
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+        return (int)crc32.getValue();
+    }
+
+    /**
+     * Adds part of a file to a CRC32.
+     *
+     * @param crc32 The CRC32.
+     * @param channel The channel for the file.
+     * @param start The start of the part.
+     * @param end The end of the part.
+     * @param buf A buffer to use.
+     * @throws IOException if the part cannot be read.
+     */
+    private static void update(CRC32 crc32, FileChannel channel, long start,
+        long end, byte[] buf) throws IOException {
+        long position = start;
+        while(position < end) {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length,
+                end - position));
+            int nRead = channel.read(bb, position);
+            if(nRead < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            crc32.update(buf, 0, nRead);
+            position += nRead;
+        }
+    }
+
+    /**
+     * A GpslHandler that encodes what it is passed and writes it as the
+     * sidecar when write is called.
+     */
+    public class Encoder implements GpslHandler
+    {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final Bytes ops = new Bytes();
+        private final Bytes doubles = new Bytes();
+        private final Bytes longs = new Bytes();
+        private final Bytes strings = new Bytes();
+        /** The last scaled value of the latitude, longitude, and elevation. */
+        private final long[] last = new long[3];
+        private long lastLong;
+        private final HashMap<String, Integer> stringIndex =
+            new HashMap<String, Integer>();
+
+        private Encoder(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * Writes the sidecar. It is written to a temporary file that is then
+         * renamed, so a partly written sidecar is never used.
+         *
+         * @throws IOException if it cannot be written or the GPSL file has
+         *             changed since the Encoder was made.
+         */
+        public void write() throws IOException {
+            int sampleCrc = sampleCrc(file);
+            if(file.length() != length || file.lastModified() != lastModified) {
+                throw new IOException(file.getName()
+                    + " changed while it was being parsed");
+            }
+            File sidecarFile = getSidecarFile(file);
+            File dir = sidecarFile.getAbsoluteFile().getParentFile();
+            if(dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(ops.buf, 0, ops.size);
+            crc32.update(doubles.buf, 0, doubles.size);
+            crc32.update(longs.buf, 0, longs.size);
+            crc32.update(strings.buf, 0, strings.size);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(length)
+                .putLong(lastModified).putInt(ops.size).putInt(doubles.size)
+                .putInt(longs.size).putInt(strings.size)
+                .putInt((int)crc32.getValue()).putInt(sampleCrc);
+
+            File tmpFile = File.createTempFile(sidecarFile.getName(), ".tmp",
+                dir);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(tmpFile);
+                out.write(header.array());
+                out.write(ops.buf, 0, ops.size);
+                out.write(doubles.buf, 0, doubles.size);
+                out.write(longs.buf, 0, longs.size);
+                out.write(strings.buf, 0, strings.size);
+                out.close();
+                out = null;
+                // Rename does not replace an existing file on all platforms
+                sidecarFile.delete();
+                if(!tmpFile.renameTo(sidecarFile)) {
+                    throw new IOException("Cannot rename " + tmpFile
+                        + " to " + sidecarFile);
+                }
+            } finally {
+                if(out != null) out.close();
+                tmpFile.delete();
+            }
+        }
+
+        @Override
+        public void onHeader(char delimiter, String offset) {
+            ops.put(GpslRecording.OP_HEADER);
+            addLong(delimiter);
+            addString(offset);
+        }
+
+        @Override
+        public void onWaypoint(String name, double lat, double lon,
+            double ele, String symbol) {
+            ops.put(GpslRecording.OP_WPT);
+            addString(name);
+            addPoint(lat, lon, ele);
+            addString(symbol);
+        }
+
+        @Override
+        public void onRouteStart(String name) {
+            ops.put(GpslRecording.OP_RTE_START);
+            addString(name);
+        }
+
+        @Override
+        public void onRoutepoint(String name, double lat, double lon,
+            double ele, String symbol) {
+            ops.put(GpslRecording.OP_RTEPT);
+            addString(name);
+            addPoint(lat, lon, ele);
+            addString(symbol);
+        }
+
+        @Override
+        public void onRouteEnd() {
+            ops.put(GpslRecording.OP_RTE_END);
+        }
+
+        @Override
+        public void onTrackStart(String name) {
+            ops.put(GpslRecording.OP_TRK_START);
+            addString(name);
+        }
+
+        @Override
+        public void onSegmentStart() {
+            ops.put(GpslRecording.OP_SEG_START);
+        }
+
+        @Override
+        public void onTrackpoint(double lat, double lon, double ele,
+            long time) {
+            ops.put(GpslRecording.OP_TRKPT);
+            addPoint(lat, lon, ele);
+            addLong(time);
+        }
+
+        @Override
+        public void onCoordinateScales(int latScale, int lonScale) {
+            ops.put(GpslRecording.OP_SCALES);
+            addLong(latScale);
+            addLong(lonScale);
+        }
+
+        @Override
+        public void onTrackEnd() {
+            ops.put(GpslRecording.OP_TRK_END);
+        }
+
+        @Override
+        public void onWarning(long lineNum, String message) {
+            ops.put(GpslRecording.OP_WARNING);
+            addLong(lineNum);
+            addString(message);
+        }
+
+        @Override
+        public void onEnd() {
+            ops.put(GpslRecording.OP_END);
+        }
+
+        private void addPoint(double lat, double lon, double ele) {
+            addDouble(0, lat);
+            addDouble(1, lon);
+            addDouble(2, ele);
+        }
+
+        private void addDouble(int column, double value) {
+            long bits = Double.doubleToLongBits(value);
+            for(int kind = KIND_MICRODEGREES; kind < KIND_RAW; kind++) {
+                double scaled = scale(kind, value);
+                if(Math.abs(scaled) < MAX_SCALED) {
+                    long n = Math.round(scaled);
+                    if(Double.doubleToLongBits(unscale(kind, n)) == bits) {
+                        doubles.putVarLong(zigzag(n - last[column]) << 2
+                            | kind);
+                        last[column] = n;
+                        return;
+                    }
+                }
+            }
+            doubles.putVarLong(KIND_RAW);
+            doubles.putLong(bits);
+        }
+
+        private void addLong(long value) {
+            longs.putVarLong(zigzag(value - lastLong));
+            lastLong = value;
+        }
+
+        private void addString(String value) {
+            if(value == null) {
+                strings.putVarLong(STRING_NULL);
+                return;
+            }
+            Integer index = stringIndex.get(value);
+            if(index != null) {
+                strings.putVarLong(index.intValue() + 2);
+                return;
+            }
+            stringIndex.put(value, stringIndex.size());
+            byte[] bytes;
+            try {
+                bytes = value.getBytes(CHARSET);
+            } catch(UnsupportedEncodingException ex) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(ex);
+            }
+            strings.putVarLong(STRING_NEW);
+            strings.putVarLong(bytes.length);
+            strings.put(bytes);
+        }
+    }
+
+    /**
+     * Decodes the sections of a sidecar.
+     */
+    private static class Decoder
+    {
+        private final ByteBuffer ops;
+        private final ByteBuffer doubles;
+        private final ByteBuffer longs;
+        private final ByteBuffer strings;
+        private final long[] last = new long[3];
+        private int column;
+        private long lastLong;
+        private final List<String> stringTable = new ArrayList<String>();
+        private byte[] stringBytes = new byte[256];
+
+        /**
+         * Constructor.
+         *
+         * @param bb The buffer, positioned at the start of the sections and
+         *            limited to their end.
+         * @param nOps The size of the operations section.
+         * @param doublesSize The size of the doubles section.
+         * @param longsSize The size of the longs section.
+         */
+        Decoder(ByteBuffer bb, int nOps, int doublesSize, int longsSize) {
+            int doublesStart = bb.position() + nOps;
+            int longsStart = doublesStart + doublesSize;
+            int stringsStart = longsStart + longsSize;
+            ops = section(bb, bb.position(), doublesStart);
+            doubles = section(bb, doublesStart, longsStart);
+            longs = section(bb, longsStart, stringsStart);
+            strings = section(bb, stringsStart, bb.limit());
+        }
+
+        private static ByteBuffer section(ByteBuffer bb, int start, int end) {
+            ByteBuffer view = bb.duplicate();
+            view.limit(end);
+            view.position(start);
+            return view;
+        }
+
+        /**
+         * Passes the decoded calls to a handler.
+         *
+         * @param handler The handler.
+         */
+        void replay(GpslHandler handler) {
+            while(ops.hasRemaining()) {
+                switch(ops.get()) {
+                case GpslRecording.OP_HEADER:
+                    handler.onHeader((char)nextLong(), nextString());
+                    break;
+                case GpslRecording.OP_WPT:
+                    handler.onWaypoint(nextString(), nextDouble(),
+                        nextDouble(), nextDouble(), nextString());
+                    break;
+                case GpslRecording.OP_RTE_START:
+                    handler.onRouteStart(nextString());
+                    break;
+                case GpslRecording.OP_RTEPT:
+                    handler.onRoutepoint(nextString(), nextDouble(),
+                        nextDouble(), nextDouble(), nextString());
+                    break;
+                case GpslRecording.OP_RTE_END:
+                    handler.onRouteEnd();
+                    break;
+                case GpslRecording.OP_TRK_START:
+                    handler.onTrackStart(nextString());
+                    break;
+                case GpslRecording.OP_SEG_START:
+                    handler.onSegmentStart();
+                    break;
+                case GpslRecording.OP_TRKPT:
+                    handler.onTrackpoint(nextDouble(), nextDouble(),
+                        nextDouble(), nextLong());
+                    break;
+                case GpslRecording.OP_TRK_END:
+                    handler.onTrackEnd();
+                    break;
+                case GpslRecording.OP_WARNING:
+                    handler.onWarning(nextLong(), nextString());
+                    break;
+                case GpslRecording.OP_END:
+                    handler.onEnd();
+                    break;
+                case GpslRecording.OP_SCALES:
+                    handler.onCoordinateScales((int)nextLong(),
+                        (int)nextLong());
+                    break;
+                }
+            }
+        }
+
+        private double nextDouble() {
+            long code = getVarLong(doubles);
+            int kind = (int)(code & 3);
+            double value;
+            if(kind == KIND_RAW) {
+                value = Double.longBitsToDouble(doubles.getLong());
+            } else {
+                long n = last[column] + unzigzag(code >>> 2);
+                last[column] = n;
+                value = unscale(kind, n);
+            }
+            column = column == 2 ? 0 : column + 1;
+            return value;
+        }
+
+        private long nextLong() {
+            lastLong += unzigzag(getVarLong(longs));
+            return lastLong;
+        }
+
+        private String nextString() {
+            int code = (int)getVarLong(strings);
+            if(code == STRING_NULL) {
+                return null;
+            }
+            if(code != STRING_NEW) {
+                return stringTable.get(code - 2);
+            }
+            int len = (int)getVarLong(strings);
+            if(len > stringBytes.length) {
+                stringBytes = new byte[Math.max(len, 2 * stringBytes.length)];
+            }
+            strings.get(stringBytes, 0, len);
+            String value;
+            try {
+                value = new String(stringBytes, 0, len, CHARSET);
+            } catch(UnsupportedEncodingException ex) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(ex);
+            }
+            stringTable.add(value);
+            return value;
+        }
+    }
+
+    /**
+     * Scales a double for a kind.
+     */
+    private static double scale(int kind, double value) {
+        switch(kind) {
+        case KIND_MICRODEGREES:
+            return value * 1e6;
+        case KIND_FEET:
+            return value * GpslConverter.M2FT;
+        default:
+            return value * GpslConverter.M2FT * 1e6;
+        }
+    }
+
+    /**
+     * Gets a double from its scaled value the same way GpslTokenizer does
+     * from the text.
+     */
+    private static double unscale(int kind, long n) {
+        switch(kind) {
+        case KIND_MICRODEGREES:
+            return n / 1e6;
+        case KIND_FEET:
+            return n / GpslConverter.M2FT;
+        default:
+            return n / 1e6 / GpslConverter.M2FT;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long getVarLong(ByteBuffer bb) {
+        long value = 0;
+        int shift = 0;
+        while(true) {
+            byte b = bb.get();
+            value |= (long)(b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * A growable byte array.
+     */
+    private static class Bytes
+    {
+        private byte[] buf = new byte[1024];
+        private int size;
+
+        private void ensure(int n) {
+            if(size + n > buf.length) {
+                byte[] newBuf = new byte[Math.max(2 * buf.length, size + n)];
+                System.arraycopy(buf, 0, newBuf, 0, size);
+                buf = newBuf;
+            }
+        }
+
+        void put(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void putVarLong(long value) {
+            ensure(10);
+            while((value & ~0x7FL) != 0) {
+                buf[size++] = (byte)(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte)value;
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte)(value >>> shift);
+            }
+        }
+    }
+
+}
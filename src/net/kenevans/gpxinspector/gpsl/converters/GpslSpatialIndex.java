@@ -0,0 +1,503 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A grid index of the waypoints, route points, and trackpoints of a GpxType,
+ * built by GpxTypeBuilder as the points are added. The grid cells are about
+ * the cell size in degrees on a side, and only the cells that have points are
+ * kept, in a hash table. Each cell has a list of runs of consecutive points,
+ * so a track that stays in a cell for a while costs one run rather than one
+ * entry per point. The positions are kept in primitive columns, and each point
+ * refers back to its waypoint, route and route point, or track, segment, and
+ * trackpoint in the GpxType.<br>
+ * <br>
+ * Bounding box and nearest point queries only look at the cells near the area
+ * asked about, so they do not depend on the number of points elsewhere.
+ * Distances use an equirectangular approximation, which is accurate for the
+ * short distances that nearest point queries are for. A bounding box may
+ * cross the antimeridian.
+ */
+public class GpslSpatialIndex
+{
+    /** The default cell size in degrees, about 1 km of latitude. */
+    public static final double DEFAULT_CELL_SIZE = .01;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The kinds of point.
+     */
+    public static enum Kind {
+        /** A waypoint. */
+        WAYPOINT,
+        /** A route point. */
+        ROUTEPOINT,
+        /** A trackpoint. */
+        TRACKPOINT
+    }
+
+    private final double cellSize;
+    /** The width of the columns, which divide 360 degrees evenly. */
+    private final double colWidth;
+    private final long nRows;
+    private final long nCols;
+
+    // The points in the order they were added
+    private double[] lat = new double[INITIAL_CAPACITY];
+    private double[] lon = new double[INITIAL_CAPACITY];
+    private int size;
+
+    // The groups of consecutive points in the same waypoint list, route, or
+    // segment
+    private Kind[] groupKind = new Kind[INITIAL_CAPACITY];
+    private int[] groupItem = new int[INITIAL_CAPACITY];
+    private int[] groupSegment = new int[INITIAL_CAPACITY];
+    private int[] groupFirstIndex = new int[INITIAL_CAPACITY];
+    private int[] groupStart = new int[INITIAL_CAPACITY];
+    private int nGroups;
+
+    private HashMap<Long, Cell> cells = new HashMap<Long, Cell>();
+    /** The cell of the last point added. */
+    private Cell lastCell;
+    private long lastKey;
+
+    /**
+     * Constructor that uses the default cell size.
+     */
+    public GpslSpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cellSize The cell size in degrees. Smaller cells make the queries
+     *            faster and use more memory.
+     */
+    public GpslSpatialIndex(double cellSize) {
+        if(!(cellSize > 0) || cellSize > 180) {
+            throw new IllegalArgumentException(
+                "The cell size must be positive and at most 180");
+        }
+        this.cellSize = cellSize;
+        nRows = (long)Math.ceil(180 / cellSize) + 1;
+        nCols = Math.max(1, Math.round(360 / cellSize));
+        colWidth = 360. / nCols;
+    }
+
+    /**
+     * Adds a point.
+     *
+     * @param kind The kind of point.
+     * @param item The index of the route or track in the GpxType or -1 for a
+     *            waypoint.
+     * @param segment The index of the segment in the track or -1 for a
+     *            waypoint or route point.
+     * @param index The index of the point in the waypoints of the GpxType, the
+     *            route, or the segment.
+     * @param lat The latitude.
+     * @param lon The longitude.
+     */
+    void add(Kind kind, int item, int segment, int index, double lat,
+        double lon) {
+        // Points usually continue the group of the last one, but the sections
+        // of a file may be interleaved
+        int group = nGroups - 1;
+        if(group < 0 || groupKind[group] != kind || groupItem[group] != item
+            || groupSegment[group] != segment
+            || groupFirstIndex[group] + size - groupStart[group] != index) {
+            startGroup(kind, item, segment, index);
+        }
+        if(size == this.lat.length) {
+            int capacity = 2 * size;
+            this.lat = copyOf(this.lat, size, capacity);
+            this.lon = copyOf(this.lon, size, capacity);
+        }
+        this.lat[size] = lat;
+        this.lon[size] = lon;
+        long key = getKey(getRow(lat), getCol(lon));
+        if(lastCell == null || key != lastKey) {
+            lastKey = key;
+            lastCell = cells.get(key);
+            if(lastCell == null) {
+                lastCell = new Cell();
+                cells.put(key, lastCell);
+            }
+        }
+        lastCell.add(size++);
+    }
+
+    private void startGroup(Kind kind, int item, int segment, int firstIndex) {
+        if(nGroups == groupStart.length) {
+            int capacity = 2 * nGroups;
+            Kind[] newKind = new Kind[capacity];
+            System.arraycopy(groupKind, 0, newKind, 0, nGroups);
+            groupKind = newKind;
+            groupItem = copyOf(groupItem, nGroups, capacity);
+            groupSegment = copyOf(groupSegment, nGroups, capacity);
+            groupFirstIndex = copyOf(groupFirstIndex, nGroups, capacity);
+            groupStart = copyOf(groupStart, nGroups, capacity);
+        }
+        groupKind[nGroups] = kind;
+        groupItem[nGroups] = item;
+        groupSegment[nGroups] = segment;
+        groupFirstIndex[nGroups] = firstIndex;
+        groupStart[nGroups++] = size;
+    }
+
+    /**
+     * Trims the columns and the cells to their sizes. This should be called
+     * when all the points have been added.
+     */
+    void trimToSize() {
+        if(size < lat.length) {
+            lat = copyOf(lat, size, size);
+            lon = copyOf(lon, size, size);
+        }
+        for(Cell cell : cells.values()) {
+            cell.trimToSize();
+        }
+        lastCell = null;
+    }
+
+    /**
+     * Finds the points in a bounding box, including those on its edges. If
+     * minLon is greater than maxLon, the box crosses the antimeridian.
+     *
+     * @param minLat The minimum latitude.
+     * @param minLon The minimum longitude.
+     * @param maxLat The maximum latitude.
+     * @param maxLon The maximum longitude.
+     * @return The points in the order they were added.
+     */
+    public List<Point> find(double minLat, double minLon, double maxLat,
+        double maxLon) {
+        List<Integer> ids = new ArrayList<Integer>();
+        if(minLat <= maxLat) {
+            if(minLon <= maxLon) {
+                find(minLat, minLon, maxLat, maxLon, ids);
+            } else {
+                find(minLat, minLon, maxLat, 180, ids);
+                find(minLat, -180, maxLat, maxLon, ids);
+            }
+        }
+        int[] sorted = new int[ids.size()];
+        for(int i = 0; i < sorted.length; i++) {
+            sorted[i] = ids.get(i);
+        }
+        Arrays.sort(sorted);
+        List<Point> points = new ArrayList<Point>(sorted.length);
+        for(int id : sorted) {
+            points.add(getPoint(id));
+        }
+        return points;
+    }
+
+    private void find(double minLat, double minLon, double maxLat,
+        double maxLon, List<Integer> ids) {
+        long minRow = getRow(minLat);
+        long maxRow = getRow(maxLat);
+        long minCol = getCol(minLon);
+        // The column of 180 is that of -180
+        long nBoxCols = maxLon - minLon >= 360 - colWidth ? nCols
+            : (getCol(maxLon) - minCol + nCols) % nCols + 1;
+        if((maxRow - minRow + 1) * nBoxCols <= cells.size()) {
+            for(long row = minRow; row <= maxRow; row++) {
+                for(long i = 0; i < nBoxCols; i++) {
+                    Cell cell = cells.get(getKey(row, (minCol + i) % nCols));
+                    if(cell != null) {
+                        cell.find(minLat, minLon, maxLat, maxLon, ids);
+                    }
+                }
+            }
+        } else {
+            // There are fewer cells with points than cells in the box
+            for(Cell cell : cells.values()) {
+                cell.find(minLat, minLon, maxLat, maxLon, ids);
+            }
+        }
+    }
+
+    /**
+     * Finds the point nearest a location.
+     *
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return The nearest point or null if there are no points.
+     */
+    public Point findNearest(double lat, double lon) {
+        if(size == 0) {
+            return null;
+        }
+        double cos = Math.cos(Math.toRadians(lat));
+        long row0 = getRow(lat);
+        long col0 = getCol(lon);
+        Nearest nearest = new Nearest(lat, lon, cos);
+        // Look at the rings of cells around the one with the location until
+        // the points in the next ring cannot be nearer than the nearest found
+        for(long ring = 0;; ring++) {
+            if((2 * ring + 1) * (2 * ring + 1) > cells.size()) {
+                // Cheaper to look at all of them
+                for(Cell cell : cells.values()) {
+                    cell.findNearest(nearest);
+                }
+                break;
+            }
+            for(long row = row0 - ring; row <= row0 + ring; row++) {
+                if(row < 0 || row >= nRows) {
+                    continue;
+                }
+                boolean edge = row == row0 - ring || row == row0 + ring;
+                long step = edge || ring == 0 ? 1 : 2 * ring;
+                for(long col = col0 - ring; col <= col0 + ring; col += step) {
+                    Cell cell = cells.get(getKey(row, (col % nCols + nCols)
+                        % nCols));
+                    if(cell != null) {
+                        cell.findNearest(nearest);
+                    }
+                }
+            }
+            double reach = ring * Math.min(cellSize, colWidth * cos);
+            if(nearest.id >= 0 && nearest.distanceSquared <= reach * reach) {
+                break;
+            }
+        }
+        return getPoint(nearest.id);
+    }
+
+    /**
+     * Gets the distance in meters between a location and a point, using the
+     * same approximation as findNearest.
+     *
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @param point The point.
+     * @return The distance.
+     */
+    public static double getDistance(double lat, double lon, Point point) {
+        return Math.sqrt(GpslNumbers.getDistanceSquared(lat, lon, Math
+            .cos(Math.toRadians(lat)), point.lat, point.lon))
+            * GpslNumbers.METERS_PER_DEGREE;
+    }
+
+    private long getRow(double lat) {
+        long row = (long)Math.floor((lat + 90) / cellSize);
+        return row < 0 ? 0 : row >= nRows ? nRows - 1 : row;
+    }
+
+    private long getCol(double lon) {
+        long col = (long)Math.floor((lon + 180) / colWidth) % nCols;
+        return col < 0 ? col + nCols : col;
+    }
+
+    private long getKey(long row, long col) {
+        return row * nCols + col;
+    }
+
+    /**
+     * Makes the Point for a point, finding its group.
+     */
+    private Point getPoint(int id) {
+        int lo = 0;
+        int hi = nGroups - 1;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if(groupStart[mid] <= id) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return new Point(groupKind[lo], groupItem[lo], groupSegment[lo],
+            groupFirstIndex[lo] + id - groupStart[lo], lat[id], lon[id]);
+    }
+
+    private static double[] copyOf(double[] array, int size, int capacity) {
+        double[] newArray = new double[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+
+    private static int[] copyOf(int[] array, int size, int capacity) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+
+    /**
+     * @return The cell size in degrees.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return The number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of cells that have points.
+     */
+    public int getCellCount() {
+        return cells.size();
+    }
+
+    /**
+     * A point found by a query.
+     */
+    public static class Point
+    {
+        private final Kind kind;
+        private final int item;
+        private final int segment;
+        private final int index;
+        private final double lat;
+        private final double lon;
+
+        Point(Kind kind, int item, int segment, int index, double lat,
+            double lon) {
+            this.kind = kind;
+            this.item = item;
+            this.segment = segment;
+            this.index = index;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        /**
+         * @return The kind of point.
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The index of the route or track in the GpxType or -1 for a
+         *         waypoint.
+         */
+        public int getItem() {
+            return item;
+        }
+
+        /**
+         * @return The index of the segment in the track or -1 for a waypoint
+         *         or route point.
+         */
+        public int getSegment() {
+            return segment;
+        }
+
+        /**
+         * @return The index of the point in the waypoints of the GpxType, the
+         *         route, or the segment.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The latitude.
+         */
+        public double getLat() {
+            return lat;
+        }
+
+        /**
+         * @return The longitude.
+         */
+        public double getLon() {
+            return lon;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + item + " " + segment + " " + index + " ("
+                + lat + ", " + lon + ")";
+        }
+    }
+
+    /**
+     * The state of a nearest point search.
+     */
+    private class Nearest
+    {
+        final double lat;
+        final double lon;
+        final double cos;
+        int id = -1;
+        double distanceSquared = Double.MAX_VALUE;
+
+        Nearest(double lat, double lon, double cos) {
+            this.lat = lat;
+            this.lon = lon;
+            this.cos = cos;
+        }
+
+        void check(int id) {
+            double d = GpslNumbers.getDistanceSquared(lat, lon, cos,
+                GpslSpatialIndex.this.lat[id], GpslSpatialIndex.this.lon[id]);
+            if(d < distanceSquared) {
+                distanceSquared = d;
+                this.id = id;
+            }
+        }
+    }
+
+    /**
+     * The points in a cell, as pairs of the first and last of each run of
+     * consecutive points.
+     */
+    private class Cell
+    {
+        private int[] runs = new int[2];
+        private int nRuns;
+
+        void add(int id) {
+            if(nRuns > 0 && runs[2 * nRuns - 1] == id - 1) {
+                runs[2 * nRuns - 1] = id;
+                return;
+            }
+            if(2 * nRuns == runs.length) {
+                runs = copyOf(runs, 2 * nRuns, 4 * nRuns);
+            }
+            runs[2 * nRuns] = id;
+            runs[2 * nRuns++ + 1] = id;
+        }
+
+        void trimToSize() {
+            if(2 * nRuns < runs.length) {
+                runs = copyOf(runs, 2 * nRuns, 2 * nRuns);
+            }
+        }
+
+        void find(double minLat, double minLon, double maxLat, double maxLon,
+            List<Integer> ids) {
+            for(int i = 0; i < 2 * nRuns; i += 2) {
+                for(int id = runs[i]; id <= runs[i + 1]; id++) {
+                    double pLat = lat[id];
+                    double pLon = lon[id];
+                    if(pLat >= minLat && pLat <= maxLat && pLon >= minLon
+                        && pLon <= maxLon) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+
+        void findNearest(Nearest nearest) {
+            for(int i = 0; i < 2 * nRuns; i += 2) {
+                for(int id = runs[i]; id <= runs[i + 1]; id++) {
+                    nearest.check(id);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics of a file, track, or track segment, accumulated one trackpoint
+ * at a time by GpslStatisticsHandler. The statistics of a file have those of
+ * its tracks as parts, and those of a track have those of its segments.<br>
+ * <br>
+ * The distance is the sum of the great circle distances between consecutive
+ * trackpoints of each segment, the duration is the sum of the positive time
+ * differences between them, and the gain and loss are the sums of the
+ * positive and negative elevation differences between them, without any
+ * smoothing. Nothing is counted between segments. The bounding box is that of
+ * the trackpoints and does not allow for crossing the antimeridian.
+ */
+public class GpslStatistics
+{
+    private final List<GpslStatistics> parts = new ArrayList<GpslStatistics>();
+    private long nTrackpoints;
+    private long nWaypoints;
+    private long nRoutepoints;
+    private double distance;
+    private long duration;
+    private double gain;
+    private double loss;
+    private long startTime = GpslTimeDecoder.NO_TIME;
+    private long endTime = GpslTimeDecoder.NO_TIME;
+    private double minLat = Double.POSITIVE_INFINITY;
+    private double maxLat = Double.NEGATIVE_INFINITY;
+    private double minLon = Double.POSITIVE_INFINITY;
+    private double maxLon = Double.NEGATIVE_INFINITY;
+    private double minEle = Double.POSITIVE_INFINITY;
+    private double maxEle = Double.NEGATIVE_INFINITY;
+
+    // The last trackpoint of a segment
+    private double lastLat;
+    private double lastLon;
+    private double lastEle;
+    private long lastTime;
+    /** The cosine of the latitude of the last trackpoint. */
+    private double lastCos;
+
+    /**
+     * Adds the next trackpoint of a segment.
+     *
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     */
+    void addTrackpoint(double lat, double lon, double ele, long time) {
+        double cos = Math.cos(Math.toRadians(lat));
+        if(nTrackpoints > 0) {
+            // Haversine formula
+            double sinLat = Math.sin(Math.toRadians(lat - lastLat) / 2);
+            double sinLon = Math.sin(Math.toRadians(lon - lastLon) / 2);
+            double h = sinLat * sinLat + lastCos * cos * sinLon * sinLon;
+            distance += 2 * GpslNumbers.EARTH_RADIUS
+                * Math.asin(Math.min(1, Math.sqrt(h)));
+            double dEle = ele - lastEle;
+            if(dEle > 0) {
+                gain += dEle;
+            } else {
+                loss -= dEle;
+            }
+            if(time != GpslTimeDecoder.NO_TIME
+                && lastTime != GpslTimeDecoder.NO_TIME && time > lastTime) {
+                duration += time - lastTime;
+            }
+        }
+        nTrackpoints++;
+        lastLat = lat;
+        lastLon = lon;
+        lastEle = ele;
+        lastTime = time;
+        lastCos = cos;
+        if(lat < minLat) minLat = lat;
+        if(lat > maxLat) maxLat = lat;
+        if(lon < minLon) minLon = lon;
+        if(lon > maxLon) maxLon = lon;
+        if(ele < minEle) minEle = ele;
+        if(ele > maxEle) maxEle = ele;
+        if(time != GpslTimeDecoder.NO_TIME) {
+            if(startTime == GpslTimeDecoder.NO_TIME) {
+                startTime = time;
+            }
+            endTime = time;
+        }
+    }
+
+    /**
+     * Adds a waypoint to the count.
+     */
+    void addWaypoint() {
+        nWaypoints++;
+    }
+
+    /**
+     * Adds a route point to the count.
+     */
+    void addRoutepoint() {
+        nRoutepoints++;
+    }
+
+    /**
+     * Adds a part, which has all its trackpoints, to these statistics.
+     *
+     * @param part The part.
+     */
+    void addPart(GpslStatistics part) {
+        parts.add(part);
+        nTrackpoints += part.nTrackpoints;
+        distance += part.distance;
+        duration += part.duration;
+        gain += part.gain;
+        loss += part.loss;
+        if(part.startTime != GpslTimeDecoder.NO_TIME) {
+            if(startTime == GpslTimeDecoder.NO_TIME) {
+                startTime = part.startTime;
+            }
+            endTime = part.endTime;
+        }
+        minLat = Math.min(minLat, part.minLat);
+        maxLat = Math.max(maxLat, part.maxLat);
+        minLon = Math.min(minLon, part.minLon);
+        maxLon = Math.max(maxLon, part.maxLon);
+        minEle = Math.min(minEle, part.minEle);
+        maxEle = Math.max(maxEle, part.maxEle);
+    }
+
+    /**
+     * @return The statistics of the tracks of a file or of the segments of a
+     *         track, in order. There are none for a segment.
+     */
+    public List<GpslStatistics> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * @return The number of trackpoints.
+     */
+    public long getTrackpointCount() {
+        return nTrackpoints;
+    }
+
+    /**
+     * @return The number of waypoints read, including any dropped as
+     *         duplicates, which is 0 except for a file.
+     */
+    public long getWaypointCount() {
+        return nWaypoints;
+    }
+
+    /**
+     * @return The number of route points, which is 0 except for a file.
+     */
+    public long getRoutepointCount() {
+        return nRoutepoints;
+    }
+
+    /**
+     * @return The distance in meters.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return The duration in seconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return The elevation gain in meters.
+     */
+    public double getGain() {
+        return gain;
+    }
+
+    /**
+     * @return The elevation loss in meters, which is not negative.
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * @return The time of the first trackpoint with a time, as UTC seconds
+     *         since the epoch, or GpslTimeDecoder.NO_TIME if there is none.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return The time of the last trackpoint with a time, as UTC seconds
+     *         since the epoch, or GpslTimeDecoder.NO_TIME if there is none.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return The minimum latitude or NaN if there are no trackpoints.
+     */
+    public double getMinLat() {
+        return nTrackpoints == 0 ? Double.NaN : minLat;
+    }
+
+    /**
+     * @return The maximum latitude or NaN if there are no trackpoints.
+     */
+    public double getMaxLat() {
+        return nTrackpoints == 0 ? Double.NaN : maxLat;
+    }
+
+    /**
+     * @return The minimum longitude or NaN if there are no trackpoints.
+     */
+    public double getMinLon() {
+        return nTrackpoints == 0 ? Double.NaN : minLon;
+    }
+
+    /**
+     * @return The maximum longitude or NaN if there are no trackpoints.
+     */
+    public double getMaxLon() {
+        return nTrackpoints == 0 ? Double.NaN : maxLon;
+    }
+
+    /**
+     * @return The minimum elevation in meters or NaN if there are no
+     *         trackpoints.
+     */
+    public double getMinEle() {
+        return nTrackpoints == 0 ? Double.NaN : minEle;
+    }
+
+    /**
+     * @return The maximum elevation in meters or NaN if there are no
+     *         trackpoints.
+     */
+    public double getMaxEle() {
+        return nTrackpoints == 0 ? Double.NaN : maxEle;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d trackpoints, %.1f m, %d s, +%.1f m, -%.1f m",
+            nTrackpoints, distance, duration, gain, loss);
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A GpslHandler that accumulates GpslStatistics for the file and for each
+ * track and segment as they are parsed. The tracks and segments are in the
+ * same order as in the GpxType made by GpxTypeBuilder from the same calls.
+ * Each trackpoint only updates the statistics of its segment, which are added
+ * to those of the track when the segment ends.<br>
+ * <br>
+ * If this is called before a GpxTypeBuilder that has it as its statistics
+ * handler, the builder makes each track a GpslStatisticsTrkType carrying the
+ * statistics of the track.
+ */
+public class GpslStatisticsHandler extends GpslHandlerAdapter
+{
+    private GpslStatistics statistics = new GpslStatistics();
+    private GpslStatistics track;
+    private GpslStatistics segment;
+
+    @Override
+    public void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        statistics.addWaypoint();
+    }
+
+    @Override
+    public void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        statistics.addRoutepoint();
+    }
+
+    @Override
+    public void onTrackStart(String name) {
+        endTrack();
+        track = new GpslStatistics();
+    }
+
+    @Override
+    public void onSegmentStart() {
+        endSegment();
+        segment = new GpslStatistics();
+    }
+
+    @Override
+    public void onTrackpoint(double lat, double lon, double ele, long time) {
+        segment.addTrackpoint(lat, lon, ele, time);
+    }
+
+    @Override
+    public void onTrackEnd() {
+        endTrack();
+    }
+
+    @Override
+    public void onEnd() {
+        endTrack();
+    }
+
+    private void endSegment() {
+        if(segment != null) {
+            track.addPart(segment);
+            segment = null;
+        }
+    }
+
+    private void endTrack() {
+        if(track != null) {
+            endSegment();
+            statistics.addPart(track);
+            track = null;
+        }
+    }
+
+    /**
+     * @return The statistics of the track being parsed or null if there is
+     *         none. They are complete after onTrackEnd.
+     */
+    public GpslStatistics getTrackStatistics() {
+        return track;
+    }
+
+    /**
+     * @return The statistics of the file, whose parts are those of the
+     *         tracks. They are complete after onEnd.
+     */
+    public GpslStatistics getStatistics() {
+        return statistics;
+    }
+
+}
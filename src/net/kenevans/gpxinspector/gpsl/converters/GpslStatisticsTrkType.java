@@ -0,0 +1,33 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+
+/**
+ * A TrkType made by GpxTypeBuilder when statistics are accumulated, which
+ * carries the GpslStatistics of the track.
+ */
+public class GpslStatisticsTrkType extends TrkType
+{
+    private final GpslStatistics statistics;
+
+    /**
+     * Constructor.
+     * 
+     * @param name The name, which is also used as the description.
+     * @param statistics The statistics of the track.
+     */
+    GpslStatisticsTrkType(String name, GpslStatistics statistics) {
+        this.statistics = statistics;
+        setName(name);
+        setDesc(name);
+    }
+
+    /**
+     * @return The statistics of the track, whose parts are those of its
+     *         segments. They are complete once the track has been parsed.
+     */
+    public GpslStatistics getStatistics() {
+        return statistics;
+    }
+
+}
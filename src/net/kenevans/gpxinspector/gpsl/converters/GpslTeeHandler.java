@@ -0,0 +1,97 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+/**
+ * A GpslHandler that passes each call on to two other handlers, first to one
+ * and then to the other.
+ */
+public class GpslTeeHandler implements GpslHandler
+{
+    private final GpslHandler first;
+    private final GpslHandler second;
+
+    /**
+     * Constructor.
+     *
+     * @param first The handler called first.
+     * @param second The handler called second.
+     */
+    public GpslTeeHandler(GpslHandler first, GpslHandler second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void onHeader(char delimiter, String offset) {
+        first.onHeader(delimiter, offset);
+        second.onHeader(delimiter, offset);
+    }
+
+    @Override
+    public void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        first.onWaypoint(name, lat, lon, ele, symbol);
+        second.onWaypoint(name, lat, lon, ele, symbol);
+    }
+
+    @Override
+    public void onRouteStart(String name) {
+        first.onRouteStart(name);
+        second.onRouteStart(name);
+    }
+
+    @Override
+    public void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        first.onRoutepoint(name, lat, lon, ele, symbol);
+        second.onRoutepoint(name, lat, lon, ele, symbol);
+    }
+
+    @Override
+    public void onRouteEnd() {
+        first.onRouteEnd();
+        second.onRouteEnd();
+    }
+
+    @Override
+    public void onTrackStart(String name) {
+        first.onTrackStart(name);
+        second.onTrackStart(name);
+    }
+
+    @Override
+    public void onSegmentStart() {
+        first.onSegmentStart();
+        second.onSegmentStart();
+    }
+
+    @Override
+    public void onTrackpoint(double lat, double lon, double ele, long time) {
+        first.onTrackpoint(lat, lon, ele, time);
+        second.onTrackpoint(lat, lon, ele, time);
+    }
+
+    @Override
+    public void onCoordinateScales(int latScale, int lonScale) {
+        first.onCoordinateScales(latScale, lonScale);
+        second.onCoordinateScales(latScale, lonScale);
+    }
+
+    @Override
+    public void onTrackEnd() {
+        first.onTrackEnd();
+        second.onTrackEnd();
+    }
+
+    @Override
+    public void onWarning(long lineNum, String message) {
+        first.onWarning(lineNum, message);
+        second.onWarning(lineNum, message);
+    }
+
+    @Override
+    public void onEnd() {
+        first.onEnd();
+        second.onEnd();
+    }
+
+}
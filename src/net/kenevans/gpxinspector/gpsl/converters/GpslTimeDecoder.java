@@ -0,0 +1,257 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Decodes GPSL trackpoint time stamps of the form MM/dd/yyyy HH:mm:ss. The
+ * GMTOffset is parsed once when the decoder is made, the fields are read
+ * directly from the characters, and the conversion to UTC is done with
+ * epoch-day arithmetic rather than with a GregorianCalendar. The calendar is
+ * only used for dates before the Gregorian cutover, where it switches to the
+ * Julian calendar.<br>
+ * <br>
+ * The results are the same as those from the original
+ * GregorianCalendar-based conversion, except that the milliseconds are always
+ * zero rather than those of the current time.
+ */
+public class GpslTimeDecoder
+{
+    /** The value used for a missing or invalid time. */
+    public static final long NO_TIME = Long.MIN_VALUE;
+    /** The length of a GPSL time stamp. */
+    public static final int TIME_LENGTH = 19;
+    private static final int INVALID_FIELD = Integer.MIN_VALUE;
+    private static final int SECONDS_PER_DAY = 86400;
+    /** The first year that is always Gregorian in a GregorianCalendar. */
+    private static final int FIRST_GREGORIAN_YEAR = 1583;
+    /** Epoch seconds for Oct 15, 1582, the Gregorian cutover. */
+    private static final long GREGORIAN_CUTOVER = -12219292800L;
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+    /** The cached DatatypeFactory. The JDK implementation is stateless. */
+    private static volatile DatatypeFactory datatypeFactory;
+
+    /** The seconds to add to the local time to get UTC. */
+    private final long offsetSeconds;
+    /** Whether the offset was null, in which case there is never a time. */
+    private final boolean nullOffset;
+
+    /**
+     * Constructor.
+     *
+     * @param offset The String offset representing hours. If it is not a
+     *            valid number, no offset is applied.
+     */
+    public GpslTimeDecoder(String offset) {
+        long minOffset = 0;
+        nullOffset = offset == null;
+        if(!nullOffset) {
+            // Convert in minutes to allow fractional offsets used in some time
+            // zones
+            try {
+                minOffset = (int)Math.round(-60. * Double.parseDouble(offset));
+            } catch(NumberFormatException ex) {
+                // Do nothing
+            }
+        }
+        offsetSeconds = 60 * minOffset;
+    }
+
+    /**
+     * @param other Another decoder.
+     * @return Whether the other decoder gives the same times as this one.
+     */
+    boolean hasSameOffset(GpslTimeDecoder other) {
+        return offsetSeconds == other.offsetSeconds
+            && nullOffset == other.nullOffset;
+    }
+
+    /**
+     * Converts a GPSL time stamp to UTC seconds since the epoch.
+     *
+     * @param time The time stamp.
+     * @return The seconds or NO_TIME if the time stamp is null, GarminTime0,
+     *         or otherwise invalid.
+     */
+    public long toEpochSeconds(CharSequence time) {
+        if(nullOffset || time == null || time.length() != TIME_LENGTH) {
+            return NO_TIME;
+        }
+        int month = parseField(time, 0, 2);
+        int date = parseField(time, 3, 5);
+        int year = parseField(time, 6, 10);
+        int hourOfDay = parseField(time, 11, 13);
+        int minute = parseField(time, 14, 16);
+        int second = parseField(time, 17, 19);
+        if(month == INVALID_FIELD || date == INVALID_FIELD
+            || year == INVALID_FIELD || hourOfDay == INVALID_FIELD
+            || minute == INVALID_FIELD || second == INVALID_FIELD) {
+            return NO_TIME;
+        }
+        // The fields are lenient, as they are in a GregorianCalendar
+        long months = month - 1;
+        long normalizedYear = year + floorDiv(months, 12);
+        if(year >= FIRST_GREGORIAN_YEAR
+            && normalizedYear >= FIRST_GREGORIAN_YEAR) {
+            long days = daysFromCivil(normalizedYear,
+                (int)floorMod(months, 12) + 1, 1) + date - 1;
+            long seconds = days * SECONDS_PER_DAY + hourOfDay * 3600L + minute
+                * 60L + second + offsetSeconds;
+            if(seconds >= GREGORIAN_CUTOVER) {
+                return seconds;
+            }
+        }
+        // Let the calendar handle the Julian dates
+        GregorianCalendar gcal = new GregorianCalendar(GMT);
+        gcal.clear();
+        gcal.set(year, month - 1, date, hourOfDay, minute, second);
+        gcal.add(GregorianCalendar.MINUTE, (int)(offsetSeconds / 60));
+        return floorDiv(gcal.getTimeInMillis(), 1000);
+    }
+
+    /**
+     * Converts a GPSL time stamp to an XMLGregorianCalendar in UTC.
+     *
+     * @param time The time stamp.
+     * @return The XMLGregorianCalendar or null if the time stamp is null,
+     *         GarminTime0, or otherwise invalid.
+     */
+    public XMLGregorianCalendar decode(CharSequence time) {
+        return toXMLGregorianCalendar(toEpochSeconds(time));
+    }
+
+    /**
+     * Converts UTC seconds since the epoch to an XMLGregorianCalendar in UTC.
+     *
+     * @param seconds The seconds.
+     * @return The XMLGregorianCalendar or null if the seconds are NO_TIME or
+     *         there is no DatatypeFactory.
+     */
+    public static XMLGregorianCalendar toXMLGregorianCalendar(long seconds) {
+        if(seconds == NO_TIME) {
+            return null;
+        }
+        DatatypeFactory factory = getDatatypeFactory();
+        if(factory == null) {
+            return null;
+        }
+        if(seconds < GREGORIAN_CUTOVER) {
+            GregorianCalendar gcal = new GregorianCalendar(GMT);
+            gcal.setTimeInMillis(seconds * 1000);
+            return factory.newXMLGregorianCalendar(gcal);
+        }
+        long days = floorDiv(seconds, SECONDS_PER_DAY);
+        int secondOfDay = (int)(seconds - days * SECONDS_PER_DAY);
+        long ymd = civilFromDays(days);
+        return factory.newXMLGregorianCalendar((int)(ymd / 10000),
+            (int)(ymd / 100 % 100), (int)(ymd % 100), secondOfDay / 3600,
+            secondOfDay / 60 % 60, secondOfDay % 60, 0, 0);
+    }
+
+    /**
+     * Gets the cached DatatypeFactory, creating it the first time.
+     *
+     * @return The DatatypeFactory or null if one cannot be created.
+     */
+    public static DatatypeFactory getDatatypeFactory() {
+        DatatypeFactory factory = datatypeFactory;
+        if(factory == null) {
+            try {
+                factory = DatatypeFactory.newInstance();
+            } catch(DatatypeConfigurationException ex) {
+                return null;
+            }
+            datatypeFactory = factory;
+        }
+        return factory;
+    }
+
+    /**
+     * Parses a field the way Integer.parseInt does, but without making a
+     * substring.
+     *
+     * @param s The characters.
+     * @param start The start index, inclusive.
+     * @param end The end index, exclusive.
+     * @return The value or INVALID_FIELD.
+     */
+    private static int parseField(CharSequence s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        char c = s.charAt(i);
+        if(c == '-' || c == '+') {
+            negative = c == '-';
+            if(++i == end) {
+                return INVALID_FIELD;
+            }
+        }
+        int value = 0;
+        int digit;
+        for(; i < end; i++) {
+            c = s.charAt(i);
+            if(c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else {
+                digit = Character.digit(c, 10);
+                if(digit < 0) {
+                    return INVALID_FIELD;
+                }
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Gets the number of days since the epoch for a proleptic Gregorian date.
+     *
+     * @param year The year.
+     * @param month The month, 1-12.
+     * @param day The day of the month, 1-31.
+     * @return The days since Jan 1, 1970.
+     */
+    static long daysFromCivil(long year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Gets the proleptic Gregorian date for a number of days since the epoch.
+     *
+     * @param days The days since Jan 1, 1970.
+     * @return The date packed as year * 10000 + month * 100 + day.
+     */
+    static long civilFromDays(long days) {
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    static long floorDiv(long x, long y) {
+        long q = x / y;
+        if((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+
+    static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+}
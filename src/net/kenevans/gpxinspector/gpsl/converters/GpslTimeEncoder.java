@@ -0,0 +1,221 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Encodes trackpoint times as GPSL time stamps of the form MM/dd/yyyy
+ * HH:mm:ss. The XMLGregorianCalendar fields are converted to epoch seconds
+ * once, the offset is added as a precomputed number of seconds, and the
+ * digits are written directly. The MM/dd/yyyy part is kept from the previous
+ * call and reused when the next time is on the same day, as consecutive
+ * trackpoints usually are. An encoder is not thread safe.<br>
+ * <br>
+ * The results are the same as those from the original GregorianCalendar-based
+ * conversion, which treats the fields as GMT whatever the timezone of the
+ * XMLGregorianCalendar and uses the proleptic Gregorian calendar. Times with
+ * undefined fields or years outside 1-9999 are converted with a
+ * GregorianCalendar as before.
+ */
+public class GpslTimeEncoder
+{
+    /** The most characters written for one time stamp. */
+    public static final int MAX_LENGTH = 32;
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int DATE_LENGTH = 11;
+    private static final int MIN_YEAR = 1;
+    private static final int MAX_YEAR = 9999;
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+    /** Used to make a GregorianCalendar purely Gregorian. */
+    private static final Date PURE_GREGORIAN_CHANGE = new Date(Long.MIN_VALUE);
+
+    /** The offset in hours. */
+    private final double offset;
+    /** The seconds to add to UTC to get the local time. */
+    private final long offsetSeconds;
+    /** The local epoch day of the cached date characters. */
+    private long cachedDay = Long.MIN_VALUE;
+    /** The cached MM/dd/yyyy and following space. */
+    private final char[] datePart = new char[DATE_LENGTH];
+
+    /**
+     * Constructor.
+     *
+     * @param offset The offset in hours to add to UTC.
+     */
+    public GpslTimeEncoder(double offset) {
+        this.offset = offset;
+        // Convert in minutes to allow fractional offsets used in some time
+        // zones
+        offsetSeconds = 60L * (int)Math.round(60. * offset);
+    }
+
+    /**
+     * Encodes the time of an XMLGregorianCalendar.
+     *
+     * @param xgcal The XMLGregorianCalendar.
+     * @return The time stamp.
+     */
+    public String encode(XMLGregorianCalendar xgcal) {
+        char[] chars = new char[MAX_LENGTH];
+        return new String(chars, 0, encode(xgcal, chars, 0));
+    }
+
+    /**
+     * Encodes the time of an XMLGregorianCalendar into a char array.
+     *
+     * @param xgcal The XMLGregorianCalendar.
+     * @param buf The array. There must be room for MAX_LENGTH characters.
+     * @param pos Where to start.
+     * @return The position after the last character written.
+     */
+    public int encode(XMLGregorianCalendar xgcal, char[] buf, int pos) {
+        long seconds = toEpochSeconds(xgcal);
+        if(seconds == GpslTimeDecoder.NO_TIME) {
+            return append(format(xgcal, offset), buf, pos);
+        }
+        return encodeEpochSeconds(seconds, buf, pos);
+    }
+
+    /**
+     * Encodes UTC seconds since the epoch into a char array.
+     *
+     * @param seconds The seconds.
+     * @param buf The array. There must be room for MAX_LENGTH characters.
+     * @param pos Where to start.
+     * @return The position after the last character written.
+     */
+    public int encodeEpochSeconds(long seconds, char[] buf, int pos) {
+        long local = seconds + offsetSeconds;
+        long days = GpslTimeDecoder.floorDiv(local, SECONDS_PER_DAY);
+        if(days != cachedDay && !cacheDate(days)) {
+            return append(format(local), buf, pos);
+        }
+        System.arraycopy(datePart, 0, buf, pos, DATE_LENGTH);
+        pos += DATE_LENGTH;
+        int secondOfDay = (int)(local - days * SECONDS_PER_DAY);
+        pos = appendTwoDigits(secondOfDay / 3600, buf, pos);
+        buf[pos++] = ':';
+        pos = appendTwoDigits(secondOfDay / 60 % 60, buf, pos);
+        buf[pos++] = ':';
+        return appendTwoDigits(secondOfDay % 60, buf, pos);
+    }
+
+    /**
+     * Fills the cached date characters for the given day.
+     *
+     * @param days The local epoch day.
+     * @return Whether the year is one that can be encoded directly.
+     */
+    private boolean cacheDate(long days) {
+        long ymd = GpslTimeDecoder.civilFromDays(days);
+        int year = (int)(ymd / 10000);
+        if(year < MIN_YEAR || year > MAX_YEAR) {
+            return false;
+        }
+        appendTwoDigits((int)(ymd / 100 % 100), datePart, 0);
+        datePart[2] = '/';
+        appendTwoDigits((int)(ymd % 100), datePart, 3);
+        datePart[5] = '/';
+        appendTwoDigits(year / 100, datePart, 6);
+        appendTwoDigits(year % 100, datePart, 8);
+        datePart[10] = ' ';
+        cachedDay = days;
+        return true;
+    }
+
+    /**
+     * Converts the fields of an XMLGregorianCalendar, taken as GMT, to epoch
+     * seconds. The fractional seconds are dropped.
+     *
+     * @param xgcal The XMLGregorianCalendar.
+     * @return The seconds or NO_TIME if a field is undefined or the year is not
+     *         in 1-9999.
+     */
+    static long toEpochSeconds(XMLGregorianCalendar xgcal) {
+        int year = xgcal.getYear();
+        int month = xgcal.getMonth();
+        int day = xgcal.getDay();
+        int hour = xgcal.getHour();
+        int minute = xgcal.getMinute();
+        int second = xgcal.getSecond();
+        BigInteger eon = xgcal.getEon();
+        if(year < MIN_YEAR || year > MAX_YEAR || eon != null
+            || month == DatatypeConstants.FIELD_UNDEFINED
+            || day == DatatypeConstants.FIELD_UNDEFINED
+            || hour == DatatypeConstants.FIELD_UNDEFINED
+            || minute == DatatypeConstants.FIELD_UNDEFINED
+            || second == DatatypeConstants.FIELD_UNDEFINED) {
+            return GpslTimeDecoder.NO_TIME;
+        }
+        // The day and time are lenient, as they are in a GregorianCalendar
+        return GpslTimeDecoder.daysFromCivil(year, month, 1) * SECONDS_PER_DAY
+            + (day - 1) * (long)SECONDS_PER_DAY + hour * 3600L + minute * 60L
+            + second;
+    }
+
+    /**
+     * Formats the time of an XMLGregorianCalendar with a GregorianCalendar.
+     * This is the original conversion.
+     *
+     * @param xgcal The XMLGregorianCalendar.
+     * @param offset The offset in hours.
+     * @return The time stamp.
+     */
+    static String format(XMLGregorianCalendar xgcal, double offset) {
+        GregorianCalendar gcal = xgcal.toGregorianCalendar(GMT, null, null);
+        gcal.add(GregorianCalendar.MINUTE, (int)Math.round(60. * offset));
+        return format(gcal);
+    }
+
+    /**
+     * Formats local epoch seconds with a GregorianCalendar.
+     *
+     * @param local The local seconds.
+     * @return The time stamp.
+     */
+    private static String format(long local) {
+        GregorianCalendar gcal = new GregorianCalendar(GMT);
+        gcal.setGregorianChange(PURE_GREGORIAN_CHANGE);
+        gcal.setTimeInMillis(local * 1000);
+        return format(gcal);
+    }
+
+    private static String format(GregorianCalendar gcal) {
+        // Don't use SimpleDateFormat("MM/dd/yyyy HH:mm:ss") It will format with
+        // the current time zone, Use the values for MONTH, etc. from the gcal.
+        return String.format(Locale.US, "%02d/%02d/%04d %02d:%02d:%02d",
+            gcal.get(GregorianCalendar.MONTH) + 1,
+            gcal.get(GregorianCalendar.DAY_OF_MONTH),
+            gcal.get(GregorianCalendar.YEAR),
+            gcal.get(GregorianCalendar.HOUR_OF_DAY),
+            gcal.get(GregorianCalendar.MINUTE),
+            gcal.get(GregorianCalendar.SECOND));
+    }
+
+    private static int append(String s, char[] buf, int pos) {
+        int len = Math.min(s.length(), MAX_LENGTH);
+        s.getChars(0, len, buf, pos);
+        return pos + len;
+    }
+
+    private static int appendTwoDigits(int value, char[] buf, int pos) {
+        buf[pos] = (char)('0' + value / 10);
+        buf[pos + 1] = (char)('0' + value % 10);
+        return pos + 2;
+    }
+
+    /**
+     * @return The offset in hours.
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+}
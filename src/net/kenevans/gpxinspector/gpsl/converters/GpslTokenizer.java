@@ -0,0 +1,803 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Splits GPSL data into records at the byte level. The data comes either from
+ * a channel or from a part of the body of a file, which are read in large
+ * blocks. Lines may end in LF, CRLF, or CR, as with
+ * BufferedReader.readLine. Numbers and times are decoded in place, and Strings
+ * are only made for names and symbols, using the default character set as
+ * FileReader does. The character set is assumed to be ASCII compatible.<br>
+ * <br>
+ * The tokenizer does not know about routes and tracks in progress. It only
+ * reports the records, which are interpreted by its Sink.
+ */
+class GpslTokenizer
+{
+    /** The number of fields used by any record type. */
+    private static final int MAX_FIELDS = 6;
+    /** The initial size of the read buffer. */
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /** The largest long that converts to a double exactly. */
+    private static final long MAX_EXACT_LONG = 1L << 53;
+    /** Digits at least this large have more digits than a scale is kept for. */
+    private static final long MAX_SCALED_DIGITS = 1000000000000000L;
+    /** The start of a comment line that sets the GMTOffset. */
+    private static final byte[] OFFSET_COMMENT = ("#"
+        + GpslConverter.GMTOFFSET + "=").getBytes();
+    /** Powers of ten that are exact as doubles. */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4,
+        1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+        1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // Line types returned by nextLineType
+    static final int LINE_END = -1;
+    static final int LINE_BLANK = 0;
+    static final int LINE_COMMENT = 1;
+    /** A line that is not a record and is ignored. */
+    static final int LINE_OTHER = 2;
+    static final int LINE_W = 3;
+    static final int LINE_R = 4;
+    static final int LINE_H = 5;
+    static final int LINE_T = 6;
+
+    /**
+     * Receives the records in the body of the file.
+     */
+    interface Sink
+    {
+        /**
+         * Called for a blank line.
+         */
+        void blankLine();
+
+        /**
+         * Called for a W line.
+         *
+         * @param name
+         * @param lat
+         * @param lon
+         * @param ele The elevation in meters.
+         * @param symbol
+         * @param latScale The scale of the latitude, see GpslNumbers.
+         * @param lonScale The scale of the longitude.
+         */
+        void waypoint(String name, double lat, double lon, double ele,
+            String symbol, int latScale, int lonScale);
+
+        /**
+         * Called for an R line.
+         *
+         * @param name
+         */
+        void route(String name);
+
+        /**
+         * Called for an H line.
+         *
+         * @param name
+         */
+        void track(String name);
+
+        /**
+         * Called for a T line.
+         *
+         * @param startSegment Whether the name indicates the start of a
+         *            segment, that is, it does not start with C.
+         * @param lat
+         * @param lon
+         * @param ele The elevation in meters.
+         * @param time The UTC time in seconds since the epoch or
+         *            GpslTimeDecoder.NO_TIME.
+         * @param latScale The scale of the latitude, see GpslNumbers.
+         * @param lonScale The scale of the longitude.
+         */
+        void trackpoint(boolean startSegment, double lat, double lon,
+            double ele, long time, int latScale, int lonScale);
+    }
+
+    private final Charset charset = Charset.defaultCharset();
+    private char delimiter = '\t';
+    private String offset;
+    private GpslTimeDecoder timeDecoder;
+    /** Whether an offset comment has been found. */
+    private boolean offsetComment;
+    private long lineNum;
+
+    // Buffer state
+    private ReadableByteChannel channel;
+    private byte[] buf;
+    /** The position in the input of buf[0]. */
+    private long bufOffset;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    /** Whether the last line ended in CR, so that a following LF is skipped. */
+    private boolean skipLF;
+    private int lineStart;
+    private int lineEnd;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int nFields;
+    /** The scale of the last number parsed, see GpslNumbers. */
+    private int numberScale;
+    private final ByteChars timeChars = new ByteChars();
+    /** The counts for GpslMetrics or null if they are not being kept. */
+    private GpslMetrics.Counts counts;
+
+    /**
+     * Constructor for reading a whole file, starting with the header, from a
+     * channel. The channel is not closed.
+     *
+     * @param channel The channel.
+     */
+    GpslTokenizer(ReadableByteChannel channel) {
+        this.channel = channel;
+        buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Constructor for reading records from part of the body of a file. The
+     * part should consist of whole lines. It is read with positional reads,
+     * so the channel can be shared with other threads, and is not closed.
+     * Positions are relative to the start of the part.
+     *
+     * @param channel The channel for the file.
+     * @param start The start of the part.
+     * @param end The end of the part.
+     * @param delimiter The delimiter from the header.
+     * @param timeDecoder The GpslTimeDecoder for the offset in the header.
+     */
+    GpslTokenizer(FileChannel channel, long start, long end, char delimiter,
+        GpslTimeDecoder timeDecoder) {
+        this.channel = new Part(channel, start, end);
+        buf = new byte[(int)Math.max(1, Math.min(BUFFER_SIZE, end - start))];
+        this.delimiter = delimiter;
+        this.timeDecoder = timeDecoder;
+    }
+
+    /**
+     * Reads the four header lines.
+     *
+     * @param handler The handler to get any warnings.
+     * @throws GpslParseException if the header is invalid.
+     * @throws IOException
+     */
+    void readHeader(GpslHandler handler) throws IOException {
+        // Read ID
+        String line = nextHeaderLine();
+        if(!line.equals(GpslConverter.GPSLINK_ID)) {
+            throw new GpslParseException("Invalid GPSLink file (Bad ID) at line "
+                + lineNum, lineNum);
+        }
+
+        // Read timestamp
+        nextHeaderLine();
+
+        // Delimiter
+        line = nextHeaderLine();
+        String value = getHeaderValue(line, GpslConverter.DELIMITER);
+        delimiter = '\t';
+        if(value == null) {
+            handler.onWarning(lineNum, "No delimiter found at line " + lineNum
+                + ", assuming TAB");
+        } else if(value.equals(",")) {
+            delimiter = ',';
+        } else if(!value.equals("\t")) {
+            handler.onWarning(lineNum, "Invalid delimiter found at line "
+                + lineNum + ", assuming TAB");
+        }
+
+        // GMTOffset
+        line = nextHeaderLine();
+        offset = getHeaderValue(line, GpslConverter.GMTOFFSET);
+        if(offset == null) {
+            handler.onWarning(lineNum, "No " + GpslConverter.GMTOFFSET
+                + " found at " + lineNum + ", assuming 0");
+            offset = "0";
+        }
+        timeDecoder = new GpslTimeDecoder(offset);
+    }
+
+    /**
+     * Reads a header line, which must exist.
+     *
+     * @return The line.
+     * @throws IOException
+     */
+    private String nextHeaderLine() throws IOException {
+        if(!nextLine()) {
+            lineNum++;
+            throw new GpslParseException("Unexpected end of file at line "
+                + lineNum, lineNum);
+        }
+        return new String(buf, lineStart, lineEnd - lineStart, charset);
+    }
+
+    /**
+     * Gets the value from a header line of the form key=value.
+     *
+     * @param line
+     * @param key
+     * @return The value or null if the line is not for this key or there is
+     *         no value.
+     */
+    private static String getHeaderValue(String line, String key) {
+        String[] tokens = line.split("=");
+        if(tokens.length < 2 || !tokens[0].equals(key)) {
+            return null;
+        }
+        return tokens[1];
+    }
+
+    /**
+     * Reads the next line and passes it to the sink if it is a record.
+     *
+     * @param sink The sink.
+     * @return If there was a line or false at the end of the input.
+     * @throws GpslParseException if the record is invalid.
+     * @throws IOException
+     */
+    boolean next(Sink sink) throws IOException {
+        if(!nextLine()) {
+            return false;
+        }
+        processLine(sink);
+        return true;
+    }
+
+    /**
+     * Finds the next line, setting lineStart and lineEnd, which exclude the
+     * line terminator.
+     *
+     * @return If there is a line or false at the end of the input.
+     * @throws IOException
+     */
+    private boolean nextLine() throws IOException {
+        if(skipLF) {
+            resolveSkipLF();
+        }
+        int scan = pos;
+        while(true) {
+            byte[] b = buf;
+            int lim = limit;
+            for(; scan < lim; scan++) {
+                byte c = b[scan];
+                if(c == '\n' || c == '\r') {
+                    lineStart = pos;
+                    lineEnd = scan;
+                    pos = scan + 1;
+                    if(c == '\r') {
+                        if(pos < lim) {
+                            if(b[pos] == '\n') pos++;
+                        } else {
+                            skipLF = true;
+                        }
+                    }
+                    lineNum++;
+                    return true;
+                }
+            }
+            int scanned = scan - pos;
+            if(!fill()) {
+                if(pos == limit) {
+                    return false;
+                }
+                // Last line without a terminator
+                lineStart = pos;
+                lineEnd = limit;
+                pos = limit;
+                lineNum++;
+                return true;
+            }
+            scan = pos + scanned;
+        }
+    }
+
+    /**
+     * Skips the LF of a CRLF that was split between reads.
+     *
+     * @throws IOException
+     */
+    private void resolveSkipLF() throws IOException {
+        if(pos == limit) {
+            fill();
+        }
+        if(pos < limit && buf[pos] == '\n') {
+            pos++;
+        }
+        skipLF = false;
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer, enlarging it if it is
+     * full, and reads more.
+     *
+     * @return If more bytes were read.
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if(eof) {
+            return false;
+        }
+        if(pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            bufOffset += pos;
+            limit -= pos;
+            pos = 0;
+        } else if(limit == buf.length) {
+            // A line longer than the buffer
+            byte[] newBuf = new byte[2 * buf.length];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+        int nRead;
+        do {
+            nRead = channel.read(ByteBuffer.wrap(buf, limit, buf.length
+                - limit));
+        } while(nRead == 0);
+        if(nRead < 0) {
+            eof = true;
+            return false;
+        }
+        limit += nRead;
+        return true;
+    }
+
+    /**
+     * Reads the next line and classifies it the way next does, but without
+     * decoding its fields.
+     *
+     * @return The line type or LINE_END at the end of the input.
+     * @throws IOException
+     */
+    int nextLineType() throws IOException {
+        if(!nextLine()) {
+            return LINE_END;
+        }
+        int type = lineType();
+        if(counts != null) counts.lineTypes[type]++;
+        return type;
+    }
+
+    /**
+     * Classifies the current line.
+     *
+     * @return The line type.
+     */
+    private int lineType() {
+        int start = lineStart;
+        if(lineEnd == start) {
+            return LINE_BLANK;
+        }
+        byte type = buf[start];
+        // Skip comments
+        if(type == '#') return LINE_COMMENT;
+        // Insure there at least two characters
+        if(lineEnd - start < 2) return LINE_OTHER;
+        // Only handle lines that have a type identifier
+        if(buf[start + 1] != delimiter) return LINE_OTHER;
+        switch(type) {
+        case 'W':
+            return LINE_W;
+        case 'R':
+            return LINE_R;
+        case 'H':
+            return LINE_H;
+        case 'T':
+            return LINE_T;
+        default:
+            return LINE_OTHER;
+        }
+    }
+
+    /**
+     * Gets the offset from the current line if it is a comment of the form
+     * #GMTOffset=value.
+     *
+     * @return The value or null if the line is not such a comment.
+     */
+    String getCommentOffset() {
+        int len = OFFSET_COMMENT.length;
+        if(lineEnd - lineStart <= len) {
+            return null;
+        }
+        for(int i = 0; i < len; i++) {
+            if(buf[lineStart + i] != OFFSET_COMMENT[i]) {
+                return null;
+            }
+        }
+        return new String(buf, lineStart + len, lineEnd - lineStart - len,
+            charset);
+    }
+
+    /**
+     * Gets the name field of the current line, which is the second field.
+     *
+     * @return The name, which is empty if there is none.
+     */
+    String getLineName() {
+        split();
+        return getString(1);
+    }
+
+    /**
+     * @return Whether the current line, which should be a T line, starts a
+     *         segment.
+     */
+    boolean isLineSegmentStart() {
+        split();
+        return startsSegment();
+    }
+
+    /**
+     * Decides if the current T line, which has been split, starts a new
+     * segment based on the first character of its name.
+     *
+     * @return Whether the name does not start with C.
+     */
+    private boolean startsSegment() {
+        int nameStart = fieldStart[1];
+        return nameStart == fieldEnd[1]
+            || (buf[nameStart] != 'C' && buf[nameStart] != 'c');
+    }
+
+    /**
+     * @return The position in the input of the start of the current line.
+     */
+    long getLinePosition() {
+        return bufOffset + lineStart;
+    }
+
+    /**
+     * Processes the current line.
+     *
+     * @param sink
+     * @throws GpslParseException
+     */
+    private void processLine(Sink sink) throws GpslParseException {
+        // Branch on type
+        double lat, lon, ele;
+        int latScale, lonScale;
+        int type = lineType();
+        if(counts != null) counts.lineTypes[type]++;
+        switch(type) {
+        case LINE_BLANK:
+            sink.blankLine();
+            break;
+        case LINE_COMMENT:
+            // A #GMTOffset= comment sets the offset for the trackpoints after
+            // it, see GpslWriter.writeTrackOffset
+            String value = getCommentOffset();
+            if(value != null) {
+                timeDecoder = new GpslTimeDecoder(value);
+                offsetComment = true;
+            }
+            break;
+        case LINE_W:
+            // Waypoint
+            split();
+            if(nFields < 5) {
+                throw new GpslParseException("Line " + lineNum
+                    + ": invalid waypoint", lineNum);
+            }
+            lat = parseDouble(2, "waypoint");
+            latScale = numberScale;
+            lon = parseDouble(3, "waypoint");
+            lonScale = numberScale;
+            ele = parseDouble(4, "waypoint") / GpslConverter.M2FT;
+            sink.waypoint(getString(1), lat, lon, ele, getString(5),
+                latScale, lonScale);
+            break;
+        case LINE_R:
+            // Route
+            split();
+            sink.route(getString(1));
+            break;
+        case LINE_H:
+            // Track
+            split();
+            sink.track(getString(1));
+            break;
+        case LINE_T:
+            // TrackPoint
+            split();
+            if(nFields < 6) {
+                throw new GpslParseException("Line " + lineNum
+                    + ": invalid trackpoint", lineNum);
+            }
+            lat = parseDouble(2, "trackpoint");
+            latScale = numberScale;
+            lon = parseDouble(3, "trackpoint");
+            lonScale = numberScale;
+            ele = parseDouble(4, "trackpoint") / GpslConverter.M2FT;
+            long time;
+            if(counts != null && counts.sampleTime()) {
+                long start = System.nanoTime();
+                time = parseTime(5);
+                counts.addTimeSample(System.nanoTime() - start);
+            } else {
+                time = parseTime(5);
+            }
+            sink.trackpoint(startsSegment(), lat, lon, ele, time, latScale,
+                lonScale);
+            break;
+        }
+    }
+
+    /**
+     * Splits the current line into fields at the delimiter. Trailing empty
+     * fields are kept. Fields past MAX_FIELDS are not kept.
+     */
+    private void split() {
+        byte[] b = buf;
+        byte delim = (byte)delimiter;
+        int end = lineEnd;
+        int start = lineStart;
+        int n = 0;
+        fieldStart[0] = start;
+        for(int i = start; i < end; i++) {
+            if(b[i] == delim) {
+                fieldEnd[n++] = i;
+                if(n == MAX_FIELDS) {
+                    nFields = n;
+                    return;
+                }
+                fieldStart[n] = i + 1;
+            }
+        }
+        fieldEnd[n++] = end;
+        nFields = n;
+    }
+
+    /**
+     * Gets a field as a String.
+     *
+     * @param field The field index.
+     * @return The String, which is empty if the field does not exist.
+     */
+    private String getString(int field) {
+        if(field >= nFields) {
+            return "";
+        }
+        return new String(buf, fieldStart[field], fieldEnd[field]
+            - fieldStart[field], charset);
+    }
+
+    /**
+     * Parses a numeric field. Plain decimal numbers that fit in a long with
+     * at most 53 bits are converted directly, which gives the same result as
+     * Double.parseDouble since both the digits and the power of ten are exact.
+     * Anything else goes through Double.parseDouble. The scale of the number
+     * is left in numberScale.
+     *
+     * @param field The field index.
+     * @param type The record type to use in the message.
+     * @return The value.
+     * @throws GpslParseException if the field is not a finite number.
+     */
+    private double parseDouble(int field, String type)
+        throws GpslParseException {
+        byte[] b = buf;
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if(i < end && (b[i] == '-' || b[i] == '+')) {
+            negative = b[i] == '-';
+            i++;
+        }
+        long digits = 0;
+        int nDigits = 0;
+        int scale = -1;
+        for(; i < end; i++) {
+            int c = b[i];
+            if(c >= '0' && c <= '9') {
+                if(++nDigits > 18) break;
+                digits = 10 * digits + (c - '0');
+                if(scale >= 0) scale++;
+            } else if(c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                break;
+            }
+        }
+        if(i == end && nDigits > 0 && digits <= MAX_EXACT_LONG) {
+            numberScale = digits >= MAX_SCALED_DIGITS
+                || scale > GpslNumbers.MAX_SCALE ? GpslNumbers.UNKNOWN_SCALE
+                : Math.max(scale, 0);
+            double value = scale > 0 ? digits / POWERS_OF_TEN[scale] : digits;
+            return negative ? -value : value;
+        }
+
+        // Use the slow way
+        String text = getString(field);
+        double value;
+        try {
+            value = Double.parseDouble(text);
+        } catch(NumberFormatException ex) {
+            value = Double.NaN;
+        }
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new GpslParseException("Line " + lineNum + ": invalid "
+                + type, lineNum);
+        }
+        numberScale = GpslNumbers.getScale(text);
+        return value;
+    }
+
+    /**
+     * Parses a time field.
+     *
+     * @param field The field index.
+     * @return The UTC time in seconds since the epoch or
+     *         GpslTimeDecoder.NO_TIME.
+     */
+    private long parseTime(int field) {
+        int start = fieldStart[field];
+        int len = fieldEnd[field] - start;
+        for(int i = 0; i < len; i++) {
+            if(buf[start + i] < 0) {
+                // Not ASCII, let the character set decide
+                return timeDecoder.toEpochSeconds(getString(field));
+            }
+        }
+        timeChars.set(buf, start, len);
+        return timeDecoder.toEpochSeconds(timeChars);
+    }
+
+    /**
+     * Gets the position in the input of the start of the next line. When
+     * called after readHeader, this is where the body starts.
+     *
+     * @return The position.
+     * @throws IOException
+     */
+    long getPosition() throws IOException {
+        if(skipLF) {
+            resolveSkipLF();
+        }
+        return bufOffset + pos;
+    }
+
+    /**
+     * @return The delimiter found in the header.
+     */
+    char getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * @return The GMTOffset found in the header.
+     */
+    String getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The GpslTimeDecoder for the GMTOffset in the header or, after
+     *         an offset comment, for the offset in the last one.
+     */
+    GpslTimeDecoder getTimeDecoder() {
+        return timeDecoder;
+    }
+
+    /**
+     * @return Whether an offset comment has been found.
+     */
+    boolean hasOffsetComment() {
+        return offsetComment;
+    }
+
+    /**
+     * @return The number of bytes that have been tokenized, including the
+     *         line terminators.
+     */
+    long getBytesRead() {
+        return bufOffset + pos;
+    }
+
+    /**
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     */
+    void setCounts(GpslMetrics.Counts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * @return The number of the last line read.
+     */
+    long getLineNumber() {
+        return lineNum;
+    }
+
+    /**
+     * A channel for part of a file, read with positional reads.
+     */
+    private static class Part implements ReadableByteChannel
+    {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        Part(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if(position >= end) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if(end - position < dst.remaining()) {
+                dst.limit(dst.position() + (int)(end - position));
+            }
+            int nRead;
+            try {
+                nRead = channel.read(dst, position);
+            } finally {
+                dst.limit(limit);
+            }
+            if(nRead < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += nRead;
+            return nRead;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The channel belongs to the caller
+        }
+    }
+
+    /**
+     * A reusable CharSequence view of ASCII bytes, used to pass a field to the
+     * GpslTimeDecoder without making a String.
+     */
+    private static class ByteChars implements CharSequence
+    {
+        private byte[] bytes;
+        private int start;
+        private int length;
+
+        void set(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char)bytes[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, this.start + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, length);
+        }
+    }
+
+}
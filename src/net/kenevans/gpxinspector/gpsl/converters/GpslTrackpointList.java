@@ -0,0 +1,292 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * The trackpoint list of a GpslTrksegType. The points are stored in parallel
+ * primitive columns, 32 bytes per point, until something asks for one of the
+ * WptType elements or changes the list. Then all the WptType objects are made
+ * at once, the columns are dropped, and the list behaves like an ArrayList.
+ * Asking only for the size does not make the objects.<br>
+ * <br>
+ * The latitude and longitude are rounded to their scales and the elevation
+ * to 6 decimal places when they are added, so the WptType objects are the
+ * same as those made by GpxTypeBuilder.newTrackpoint, and writing from the
+ * columns gives the same output as writing the WptType objects. The scales
+ * are only stored, 2 bytes per point, once a point has one that is not the
+ * default.
+ */
+public class GpslTrackpointList extends AbstractList<WptType> implements
+    RandomAccess
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] lat;
+    private double[] lon;
+    private double[] ele;
+    private long[] time;
+    /**
+     * The scales of the latitude and longitude of each point, or null if they
+     * are all the default.
+     */
+    private byte[] scales;
+    private int size;
+    /** The WptType objects, or null if they have not been made. */
+    private ArrayList<WptType> points;
+
+    /**
+     * Constructor.
+     */
+    public GpslTrackpointList() {
+        lat = new double[INITIAL_CAPACITY];
+        lon = new double[INITIAL_CAPACITY];
+        ele = new double[INITIAL_CAPACITY];
+        time = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a point to the columns or, if the WptType objects have been made,
+     * adds a new WptType.
+     *
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     */
+    public void add(double lat, double lon, double ele, long time) {
+        add(lat, lon, ele, time, GpslNumbers.DEFAULT_SCALE,
+            GpslNumbers.DEFAULT_SCALE);
+    }
+
+    /**
+     * Adds a point to the columns or, if the WptType objects have been made,
+     * adds a new WptType.
+     *
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     * @param latScale The scale of the latitude, see
+     *            GpslHandler.onCoordinateScales.
+     * @param lonScale The scale of the longitude.
+     */
+    public void add(double lat, double lon, double ele, long time,
+        int latScale, int lonScale) {
+        if(points != null) {
+            add(GpxTypeBuilder.newTrackpoint(lat, lon, ele, time, latScale,
+                lonScale));
+            return;
+        }
+        if(size == this.lat.length) {
+            grow(Math.max(2 * size, INITIAL_CAPACITY));
+        }
+        if(scales == null && (latScale != GpslNumbers.DEFAULT_SCALE
+            || lonScale != GpslNumbers.DEFAULT_SCALE)) {
+            scales = new byte[2 * this.lat.length];
+            Arrays.fill(scales, 0, 2 * size,
+                (byte)GpslNumbers.DEFAULT_SCALE);
+        }
+        if(scales != null) {
+            scales[2 * size] = (byte)latScale;
+            scales[2 * size + 1] = (byte)lonScale;
+        }
+        this.lat[size] = GpslNumbers.round(lat, latScale);
+        this.lon[size] = GpslNumbers.round(lon, lonScale);
+        this.ele[size] = GpslNumbers.round6(ele);
+        this.time[size++] = time;
+        modCount++;
+    }
+
+    /**
+     * Trims the columns to the number of points.
+     */
+    public void trimToSize() {
+        if(points != null) {
+            points.trimToSize();
+        } else if(size < lat.length) {
+            grow(size);
+        }
+    }
+
+    private void grow(int capacity) {
+        lat = copyOf(lat, capacity);
+        lon = copyOf(lon, capacity);
+        ele = copyOf(ele, capacity);
+        long[] newTime = new long[capacity];
+        System.arraycopy(time, 0, newTime, 0, size);
+        time = newTime;
+        if(scales != null) {
+            byte[] newScales = new byte[2 * capacity];
+            System.arraycopy(scales, 0, newScales, 0, 2 * size);
+            scales = newScales;
+        }
+    }
+
+    private double[] copyOf(double[] array, int capacity) {
+        double[] newArray = new double[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+
+    /**
+     * Makes the WptType objects, if they have not been made already, and
+     * drops the columns.
+     *
+     * @return The WptType objects.
+     */
+    private ArrayList<WptType> materialize() {
+        if(points == null) {
+            ArrayList<WptType> list = new ArrayList<WptType>(size);
+            for(int i = 0; i < size; i++) {
+                list.add(GpxTypeBuilder.newTrackpoint(lat[i], lon[i], ele[i],
+                    time[i], getLatitudeScale(i), getLongitudeScale(i)));
+            }
+            points = list;
+            lat = null;
+            lon = null;
+            ele = null;
+            time = null;
+            scales = null;
+        }
+        return points;
+    }
+
+    /**
+     * @return Whether the WptType objects have been made. If not, the
+     *         column accessors can be used.
+     */
+    public boolean isMaterialized() {
+        return points != null;
+    }
+
+    @Override
+    public int size() {
+        return points != null ? points.size() : size;
+    }
+
+    @Override
+    public WptType get(int index) {
+        return materialize().get(index);
+    }
+
+    @Override
+    public WptType set(int index, WptType element) {
+        return materialize().set(index, element);
+    }
+
+    @Override
+    public void add(int index, WptType element) {
+        materialize().add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public WptType remove(int index) {
+        WptType removed = materialize().remove(index);
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        if(points != null) {
+            points.clear();
+        } else {
+            size = 0;
+        }
+        modCount++;
+    }
+
+    /**
+     * Gets the time of a point without making the WptType objects.
+     *
+     * @param index The index.
+     * @return The time or null if there is none.
+     */
+    public XMLGregorianCalendar getTime(int index) {
+        if(points != null) {
+            return points.get(index).getTime();
+        }
+        return GpslTimeDecoder.toXMLGregorianCalendar(getEpochSeconds(index));
+    }
+
+    // The column accessors are only valid when the list is not materialized
+
+    /**
+     * @param index The index.
+     * @return The latitude of the point.
+     */
+    public double getLatitude(int index) {
+        checkColumns(index);
+        return lat[index];
+    }
+
+    /**
+     * @param index The index.
+     * @return The longitude of the point.
+     */
+    public double getLongitude(int index) {
+        checkColumns(index);
+        return lon[index];
+    }
+
+    /**
+     * @param index The index.
+     * @return The scale of the latitude of the point, see
+     *         GpslHandler.onCoordinateScales.
+     */
+    public int getLatitudeScale(int index) {
+        checkColumns(index);
+        return scales == null ? GpslNumbers.DEFAULT_SCALE : scales[2 * index];
+    }
+
+    /**
+     * @param index The index.
+     * @return The scale of the longitude of the point.
+     */
+    public int getLongitudeScale(int index) {
+        checkColumns(index);
+        return scales == null ? GpslNumbers.DEFAULT_SCALE
+            : scales[2 * index + 1];
+    }
+
+    /**
+     * @param index The index.
+     * @return The elevation of the point in meters.
+     */
+    public double getElevation(int index) {
+        checkColumns(index);
+        return ele[index];
+    }
+
+    /**
+     * @param index The index.
+     * @return The UTC time in seconds since the epoch or
+     *         GpslTimeDecoder.NO_TIME.
+     */
+    public long getEpochSeconds(int index) {
+        checkColumns(index);
+        return time[index];
+    }
+
+    private void checkColumns(int index) {
+        if(points != null) {
+            throw new IllegalStateException(
+                "The points have been materialized");
+        }
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                + size);
+        }
+    }
+
+}
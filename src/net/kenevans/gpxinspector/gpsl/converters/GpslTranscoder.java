@@ -0,0 +1,692 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.kenevans.gpxinspector.gpsl.converters.GpslDiagnostic.Severity;
+
+/**
+ * Converts a GPSL file to a GPX 1.1 file without making a GpxType. The GPSL
+ * file is read with a GpslReader, and each waypoint, route point, and
+ * trackpoint is written with a StAX XMLStreamWriter as soon as it has been
+ * read, so the memory used does not depend on the size of the file.<br>
+ * <br>
+ * The output has the same contents as the GPX file GPXParser would save for
+ * the GpxType GpslConverter.parse makes with the default parse options: the
+ * same points, names, descriptions, and symbols, the numbers rounded to 6
+ * decimal places as GpslNumbers does, and the times in UTC in the format of
+ * XMLGregorianCalendar.toXMLFormat. The times are formatted directly from the
+ * seconds rather than through an XMLGregorianCalendar, except for those before
+ * 1583 or after 9999. The root element declares the TrackPointExtension
+ * namespace, as GPXParser does, though no extensions are written.<br>
+ * <br>
+ * The file is read once if the waypoints, routes, and tracks are in the order
+ * of the schema, which is the usual case. If one is found out of order, the
+ * output is started over and the file is read once for each section instead.
+ */
+public class GpslTranscoder
+{
+    static final String GPX_NAMESPACE = "http://www.topografix.com/GPX/1/1";
+    static final String TRACKPOINT_EXTENSION_NAMESPACE =
+        "http://www.garmin.com/xmlschemas/TrackPointExtension/v1";
+    private static final String SCHEMA_LOCATION = GPX_NAMESPACE
+        + " http://www.topografix.com/GPX/1/1/gpx.xsd "
+        + TRACKPOINT_EXTENSION_NAMESPACE
+        + " http://www.garmin.com/xmlschemas/TrackPointExtensionv1.xsd";
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // The sections, which are also their order in the file
+    private static final int WAYPOINTS = 0;
+    private static final int ROUTES = 1;
+    private static final int TRACKS = 2;
+    private static final int NONE = -1;
+    private static final int SECONDS_PER_DAY = 86400;
+    /** The times from here to END_FAST_TIME are formatted directly. */
+    private static final long START_FAST_TIME = GpslTimeDecoder
+        .daysFromCivil(1583, 1, 1) * SECONDS_PER_DAY;
+    private static final long END_FAST_TIME = GpslTimeDecoder.daysFromCivil(
+        10000, 1, 1) * SECONDS_PER_DAY;
+    /** A newline followed by enough spaces for the deepest element. */
+    private static final char[] INDENT = "\n                ".toCharArray();
+    private static final int INDENT_SIZE = 4;
+
+    private final File file;
+    private final XMLOutputFactory factory;
+    private String creator = GpxTypeBuilder.CREATOR;
+
+    /**
+     * Constructor.
+     *
+     * @param file The GPSL file.
+     */
+    public GpslTranscoder(File file) {
+        this.file = file;
+        factory = XMLOutputFactory.newInstance();
+    }
+
+    /**
+     * Writes the GPX file for the GPSL file. If the name of the GPX file ends
+     * in .gz, it is compressed. A transcoder is used by one thread at a time.
+     *
+     * @param gpxFile The GPX file.
+     * @param diagnostics Where to put the warnings from the GPSL file.
+     * @throws GpslParseException if the contents are invalid.
+     * @throws XMLStreamException if the GPX file cannot be written.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public void transcode(File gpxFile, GpslDiagnostics diagnostics)
+        throws IOException, XMLStreamException {
+        // Keep the warnings until the pass is known to be the only one
+        GpslDiagnostics warnings = new GpslDiagnostics();
+        if(write(gpxFile, new int[] {NONE}, warnings)) {
+            copyWarnings(warnings, diagnostics);
+            return;
+        }
+        if(!write(gpxFile, new int[] {WAYPOINTS, ROUTES, TRACKS},
+            diagnostics)) {
+            // Should not happen
+            throw new IllegalStateException("Section out of order in a "
+                + "single section pass");
+        }
+    }
+
+    private static void copyWarnings(GpslDiagnostics from, GpslDiagnostics to) {
+        for(GpslDiagnostic diagnostic : from.getList()) {
+            to.add(diagnostic.getLineNumber(), diagnostic.getSeverity(),
+                diagnostic.getMessage());
+        }
+    }
+
+    /**
+     * Writes the GPX file, reading the GPSL file once for each of the given
+     * sections.
+     *
+     * @param gpxFile The GPX file.
+     * @param passes The section to write on each pass or NONE for all of
+     *            them.
+     * @param diagnostics Where to put the warnings, which are only taken from
+     *            the first pass.
+     * @return False if there was only one pass and a section was found out of
+     *         order, so nothing useful was written.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private boolean write(File gpxFile, int[] passes,
+        GpslDiagnostics diagnostics) throws IOException, XMLStreamException {
+        OutputStream out = null;
+        try {
+            // Assume any asking to overwrite has been done already
+            out = new FileOutputStream(gpxFile);
+            if(GpslConverter.isCompressed(gpxFile)) {
+                // Favor speed, as for GPSL
+                out = new GZIPOutputStream(out,
+                    GpslConverter.GZIP_BUFFER_SIZE) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            }
+            // Given a stream, the XMLStreamWriter encodes and writes a byte at
+            // a time, and given a Writer it writes each piece as it comes, so
+            // buffer the characters and encode a buffer at a time
+            Writer writer = new UnsynchronizedBufferedWriter(
+                new OutputStreamWriter(out, ENCODING));
+            XMLStreamWriter xml = factory.createXMLStreamWriter(writer);
+            writeStart(xml);
+            for(int i = 0; i < passes.length; i++) {
+                Pass pass = new Pass(xml, passes[i], i == 0 ? diagnostics
+                    : null);
+                try {
+                    new GpslReader(file).read(pass);
+                } catch(OutOfOrderException ex) {
+                    return false;
+                } catch(WriteException ex) {
+                    throw ex.getCause();
+                }
+            }
+            writeEnd(xml);
+            xml.close();
+            writer.flush();
+            return true;
+        } finally {
+            if(out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the start of the document through the metadata.
+     *
+     * @param xml The XMLStreamWriter.
+     * @throws XMLStreamException
+     */
+    private void writeStart(XMLStreamWriter xml) throws XMLStreamException {
+        xml.writeStartDocument(ENCODING, "1.0");
+        xml.writeCharacters(INDENT, 0, 1);
+        xml.setDefaultNamespace(GPX_NAMESPACE);
+        xml.writeStartElement(GPX_NAMESPACE, "gpx");
+        xml.writeDefaultNamespace(GPX_NAMESPACE);
+        xml.writeNamespace("gpxtpx", TRACKPOINT_EXTENSION_NAMESPACE);
+        xml.writeNamespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+        xml.writeAttribute("xsi",
+            XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation",
+            SCHEMA_LOCATION);
+        xml.writeAttribute("version", "1.1");
+        xml.writeAttribute("creator", creator);
+        xml.writeCharacters(INDENT, 0, 1 + INDENT_SIZE);
+        xml.writeStartElement("metadata");
+        xml.writeCharacters(INDENT, 0, 1 + 2 * INDENT_SIZE);
+        xml.writeStartElement("time");
+        xml.writeCharacters(GpslTimeDecoder.toXMLGregorianCalendar(
+            System.currentTimeMillis() / 1000).toXMLFormat());
+        xml.writeEndElement();
+        xml.writeCharacters(INDENT, 0, 1 + INDENT_SIZE);
+        xml.writeEndElement();
+    }
+
+    /**
+     * Writes the end of the document.
+     *
+     * @param xml The XMLStreamWriter.
+     * @throws XMLStreamException
+     */
+    private void writeEnd(XMLStreamWriter xml) throws XMLStreamException {
+        xml.writeCharacters(INDENT, 0, 1);
+        xml.writeEndElement();
+        xml.writeCharacters(INDENT, 0, 1);
+        xml.writeEndDocument();
+    }
+
+    /**
+     * @return The creator written in the gpx element.
+     */
+    public String getCreator() {
+        return creator;
+    }
+
+    /**
+     * @param creator The creator written in the gpx element.
+     */
+    public void setCreator(String creator) {
+        this.creator = creator;
+    }
+
+    /**
+     * Writes the elements of one or all of the sections as the GPSL file is
+     * read. The route, track, and segment elements are ended when the next
+     * one starts or at the end, since the GpslReader does not always end
+     * them.
+     */
+    private static class Pass extends GpslHandlerAdapter
+    {
+        private final XMLStreamWriter xml;
+        /** The section to write or NONE for all of them. */
+        private final int only;
+        private final GpslDiagnostics diagnostics;
+        /** The last section written to, used when writing all of them. */
+        private int section = NONE;
+        private boolean inRoute;
+        private boolean inTrack;
+        private boolean inSegment;
+        /** The scales of the coordinates that follow. */
+        private int latScale = GpslNumbers.DEFAULT_SCALE;
+        private int lonScale = GpslNumbers.DEFAULT_SCALE;
+        /** Where numbers and times are formatted. */
+        private final char[] buf = new char[64];
+
+        /**
+         * Constructor.
+         *
+         * @param xml The XMLStreamWriter.
+         * @param only The section to write or NONE for all of them.
+         * @param diagnostics Where to put the warnings or null to ignore them.
+         */
+        Pass(XMLStreamWriter xml, int only, GpslDiagnostics diagnostics) {
+            this.xml = xml;
+            this.only = only;
+            this.diagnostics = diagnostics;
+        }
+
+        /**
+         * Determines if a record for the given section is written. When all
+         * the sections are written, it fails if an earlier section has
+         * already been written to.
+         *
+         * @param next The section of the record.
+         * @return If the record is written.
+         */
+        private boolean accept(int next) {
+            if(only != NONE) {
+                return next == only;
+            }
+            if(next < section) {
+                throw new OutOfOrderException();
+            }
+            section = next;
+            return true;
+        }
+
+        @Override
+        public void onWaypoint(String name, double lat, double lon,
+            double ele, String symbol) {
+            if(!accept(WAYPOINTS)) {
+                return;
+            }
+            try {
+                writeWaypoint("wpt", 1, name, lat, lon, ele, symbol);
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onRouteStart(String name) {
+            if(!accept(ROUTES)) {
+                return;
+            }
+            try {
+                endRoute();
+                startElement("rte", 1);
+                inRoute = true;
+                writeText("name", 2, name);
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onRoutepoint(String name, double lat, double lon,
+            double ele, String symbol) {
+            if(!accept(ROUTES)) {
+                return;
+            }
+            try {
+                writeWaypoint("rtept", 2, name, lat, lon, ele, symbol);
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onRouteEnd() {
+            if(!accept(ROUTES)) {
+                return;
+            }
+            try {
+                endRoute();
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onTrackStart(String name) {
+            if(!accept(TRACKS)) {
+                return;
+            }
+            try {
+                // A route still open is not continued when all the sections
+                // are written, since a route point would be out of order
+                endRoute();
+                endTrack();
+                startElement("trk", 1);
+                inTrack = true;
+                writeText("name", 2, name);
+                writeText("desc", 2, name);
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onSegmentStart() {
+            if(!accept(TRACKS)) {
+                return;
+            }
+            try {
+                endSegment();
+                startElement("trkseg", 2);
+                inSegment = true;
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onTrackpoint(double lat, double lon, double ele,
+            long time) {
+            if(!accept(TRACKS)) {
+                return;
+            }
+            try {
+                startElement("trkpt", 3);
+                writeAttribute("lat", lat, latScale);
+                writeAttribute("lon", lon, lonScale);
+                writeNumber("ele", 4, ele);
+                if(time != GpslTimeDecoder.NO_TIME) {
+                    startElement("time", 4);
+                    int start = formatTime(time);
+                    if(start >= 0) {
+                        xml.writeCharacters(buf, start, buf.length - start);
+                    } else {
+                        xml.writeCharacters(GpslTimeDecoder
+                            .toXMLGregorianCalendar(time).toXMLFormat());
+                    }
+                    xml.writeEndElement();
+                }
+                endElement(3);
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onTrackEnd() {
+            if(!accept(TRACKS)) {
+                return;
+            }
+            try {
+                endTrack();
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        @Override
+        public void onCoordinateScales(int latScale, int lonScale) {
+            this.latScale = latScale;
+            this.lonScale = lonScale;
+        }
+
+        @Override
+        public void onWarning(long lineNum, String message) {
+            if(diagnostics != null) {
+                diagnostics.add(lineNum, Severity.WARNING, message);
+            }
+        }
+
+        @Override
+        public void onEnd() {
+            try {
+                endRoute();
+                endTrack();
+            } catch(XMLStreamException ex) {
+                throw new WriteException(ex);
+            }
+        }
+
+        private void endRoute() throws XMLStreamException {
+            if(inRoute) {
+                inRoute = false;
+                endElement(1);
+            }
+        }
+
+        private void endTrack() throws XMLStreamException {
+            if(inTrack) {
+                endSegment();
+                inTrack = false;
+                endElement(1);
+            }
+        }
+
+        private void endSegment() throws XMLStreamException {
+            if(inSegment) {
+                inSegment = false;
+                endElement(2);
+            }
+        }
+
+        /**
+         * Writes a wpt or rtept element the same as a WptType made by
+         * GpxTypeBuilder.newWaypoint.
+         */
+        private void writeWaypoint(String element, int depth, String name,
+            double lat, double lon, double ele, String symbol)
+            throws XMLStreamException {
+            startElement(element, depth);
+            writeAttribute("lat", lat, latScale);
+            writeAttribute("lon", lon, lonScale);
+            writeNumber("ele", depth + 1, ele);
+            writeText("name", depth + 1, name);
+            writeText("desc", depth + 1, name);
+            writeText("sym", depth + 1, symbol);
+            endElement(depth);
+        }
+
+        private void startElement(String element, int depth)
+            throws XMLStreamException {
+            xml.writeCharacters(INDENT, 0, 1 + depth * INDENT_SIZE);
+            xml.writeStartElement(element);
+        }
+
+        private void endElement(int depth) throws XMLStreamException {
+            xml.writeCharacters(INDENT, 0, 1 + depth * INDENT_SIZE);
+            xml.writeEndElement();
+        }
+
+        /**
+         * Writes an element with text content, unless the text is null, as
+         * JAXB does.
+         */
+        private void writeText(String element, int depth, String text)
+            throws XMLStreamException {
+            if(text == null) {
+                return;
+            }
+            startElement(element, depth);
+            xml.writeCharacters(text);
+            xml.writeEndElement();
+        }
+
+        private void writeNumber(String element, int depth, double value)
+            throws XMLStreamException {
+            startElement(element, depth);
+            int start = formatDecimal6(value);
+            xml.writeCharacters(buf, start, buf.length - start);
+            xml.writeEndElement();
+        }
+
+        private void writeAttribute(String name, double value, int scale)
+            throws XMLStreamException {
+            if(scale != GpslNumbers.DEFAULT_SCALE) {
+                xml.writeAttribute(name, GpslNumbers.toBigDecimal(value, scale)
+                    .toPlainString());
+                return;
+            }
+            int start = formatDecimal6(value);
+            xml.writeAttribute(name, new String(buf, start, buf.length
+                - start));
+        }
+
+        /**
+         * Formats a value rounded to 6 decimal places at the end of the
+         * buffer, the same as GpslNumbers.toBigDecimal6(value)
+         * .toPlainString().
+         *
+         * @param value The value.
+         * @return The index of the first character.
+         * @throws NumberFormatException if the value is NaN or infinite.
+         */
+        private int formatDecimal6(double value) {
+            long scaled = GpslNumbers.round(value, 1e6);
+            if(scaled == Long.MIN_VALUE) {
+                String string = GpslNumbers.toBigDecimal6(value)
+                    .toPlainString();
+                int start = buf.length - string.length();
+                string.getChars(0, string.length(), buf, start);
+                return start;
+            }
+            long abs = Math.abs(scaled);
+            int pos = buf.length;
+            for(int i = 0; i < 6; i++) {
+                buf[--pos] = (char)('0' + abs % 10);
+                abs /= 10;
+            }
+            buf[--pos] = '.';
+            do {
+                buf[--pos] = (char)('0' + abs % 10);
+                abs /= 10;
+            } while(abs != 0);
+            if(scaled < 0) {
+                buf[--pos] = '-';
+            }
+            return pos;
+        }
+
+        /**
+         * Formats a time at the end of the buffer the same as
+         * XMLGregorianCalendar.toXMLFormat for the XMLGregorianCalendar from
+         * GpslTimeDecoder.toXMLGregorianCalendar.
+         *
+         * @param time The UTC time in seconds since the epoch.
+         * @return The index of the first character or -1 if the time is not
+         *         in the range formatted here.
+         */
+        private int formatTime(long time) {
+            if(time < START_FAST_TIME || time >= END_FAST_TIME) {
+                return -1;
+            }
+            long days = GpslTimeDecoder.floorDiv(time, SECONDS_PER_DAY);
+            int secondOfDay = (int)(time - days * SECONDS_PER_DAY);
+            long ymd = GpslTimeDecoder.civilFromDays(days);
+            // yyyy-MM-ddTHH:mm:ss.000Z
+            int pos = buf.length - 24;
+            put4(pos, (int)(ymd / 10000));
+            buf[pos + 4] = '-';
+            put2(pos + 5, (int)(ymd / 100 % 100));
+            buf[pos + 7] = '-';
+            put2(pos + 8, (int)(ymd % 100));
+            buf[pos + 10] = 'T';
+            put2(pos + 11, secondOfDay / 3600);
+            buf[pos + 13] = ':';
+            put2(pos + 14, secondOfDay / 60 % 60);
+            buf[pos + 16] = ':';
+            put2(pos + 17, secondOfDay % 60);
+            buf[pos + 19] = '.';
+            buf[pos + 20] = '0';
+            buf[pos + 21] = '0';
+            buf[pos + 22] = '0';
+            buf[pos + 23] = 'Z';
+            return pos;
+        }
+
+        private void put2(int pos, int value) {
+            buf[pos] = (char)('0' + value / 10);
+            buf[pos + 1] = (char)('0' + value % 10);
+        }
+
+        private void put4(int pos, int value) {
+            put2(pos, value / 100);
+            put2(pos + 2, value % 100);
+        }
+    }
+
+    /**
+     * A buffered Writer for one thread, which avoids the locking
+     * BufferedWriter does for each of the many short writes.
+     */
+    private static class UnsynchronizedBufferedWriter extends Writer
+    {
+        private final Writer out;
+        private final char[] chars = new char[BUFFER_SIZE];
+        private int count;
+
+        UnsynchronizedBufferedWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if(count == chars.length) {
+                flushBuffer();
+            }
+            chars[count++] = (char)c;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if(len > chars.length - count) {
+                flushBuffer();
+                if(len > chars.length) {
+                    out.write(cbuf, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(cbuf, off, chars, count, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if(len > chars.length - count) {
+                flushBuffer();
+                if(len > chars.length) {
+                    out.write(str, off, len);
+                    return;
+                }
+            }
+            str.getChars(off, off + len, chars, count);
+            count += len;
+        }
+
+        private void flushBuffer() throws IOException {
+            if(count > 0) {
+                out.write(chars, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            out.close();
+        }
+    }
+
+    /**
+     * Thrown by a Pass when a record is found after a later section has been
+     * written to.
+     */
+    private static class OutOfOrderException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Carries an XMLStreamException out of the GpslHandler methods, which
+     * cannot throw it.
+     */
+    private static class WriteException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        WriteException(XMLStreamException cause) {
+            super(cause);
+        }
+
+        @Override
+        public XMLStreamException getCause() {
+            return (XMLStreamException)super.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+
+/**
+ * A TrksegType whose trackpoints are kept in a GpslTrackpointList, so they
+ * are stored as primitive columns until the WptType objects are needed. It is
+ * otherwise an ordinary TrksegType, and its list is the one JAXB sees.
+ */
+public class GpslTrksegType extends TrksegType
+{
+    private final GpslTrackpointList points = new GpslTrackpointList();
+
+    /**
+     * Constructor.
+     */
+    public GpslTrksegType() {
+        trkpt = points;
+    }
+
+    /**
+     * @return The trackpoint list. This is the same list as getTrkpt().
+     */
+    public GpslTrackpointList getTrackpoints() {
+        return points;
+    }
+
+}
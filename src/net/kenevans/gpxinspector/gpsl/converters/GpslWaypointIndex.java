@@ -0,0 +1,222 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.util.HashMap;
+import java.util.List;
+
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Finds duplicate waypoints as they are added to a list. Two waypoints are
+ * duplicates if they have the same name and their latitude, longitude, and
+ * elevation round to the same multiples of the quanta. The waypoints added
+ * are kept in a hash table keyed on these, so each one is checked in constant
+ * time rather than against all the others. Waypoints that are close but fall
+ * on different sides of a multiple are not duplicates.<br>
+ * <br>
+ * The policy determines what happens to a duplicate. The list keeps the
+ * position of the first one in all cases.
+ */
+public class GpslWaypointIndex
+{
+    /**
+     * What to do with duplicates.
+     */
+    public static enum Policy {
+        /** Keep all the waypoints. */
+        KEEP_ALL,
+        /** Keep the first of the duplicates and drop the rest. */
+        KEEP_FIRST,
+        /** Replace the first of the duplicates by each later one. */
+        KEEP_LAST,
+        /**
+         * Average the positions of the duplicates into the first one, which
+         * also gets the first symbol that is not empty.
+         */
+        MERGE
+    }
+
+    /** The default latitude and longitude quantum, the GPSL resolution. */
+    public static final double DEFAULT_LAT_LON_QUANTUM = 1e-6;
+    /** The default elevation quantum, one foot, the GPSL resolution. */
+    public static final double DEFAULT_ELE_QUANTUM = 1 / GpslConverter.M2FT;
+
+    private final Policy policy;
+    private final double latLonQuantum;
+    private final double eleQuantum;
+    private HashMap<Key, Entry> entries = new HashMap<Key, Entry>();
+    private int nDuplicates;
+
+    /**
+     * Constructor that uses the default quanta.
+     *
+     * @param policy The policy.
+     */
+    public GpslWaypointIndex(Policy policy) {
+        this(policy, DEFAULT_LAT_LON_QUANTUM, DEFAULT_ELE_QUANTUM);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param policy The policy.
+     * @param latLonQuantum The latitude and longitude quantum in degrees.
+     * @param eleQuantum The elevation quantum in meters.
+     */
+    public GpslWaypointIndex(Policy policy, double latLonQuantum,
+        double eleQuantum) {
+        if(!(latLonQuantum > 0) || !(eleQuantum > 0)) {
+            throw new IllegalArgumentException("The quanta must be positive");
+        }
+        this.policy = policy;
+        this.latLonQuantum = latLonQuantum;
+        this.eleQuantum = eleQuantum;
+    }
+
+    /**
+     * Adds a waypoint to a list or, if it is a duplicate of one added to the
+     * list before, applies the policy. The list should only be changed
+     * through this index.
+     *
+     * @param list The list.
+     * @param wpt The waypoint.
+     * @return Whether the waypoint was added.
+     */
+    public boolean add(List<WptType> list, WptType wpt) {
+        if(policy == Policy.KEEP_ALL) {
+            list.add(wpt);
+            return true;
+        }
+        double lat = wpt.getLat().doubleValue();
+        double lon = wpt.getLon().doubleValue();
+        double ele = wpt.getEle().doubleValue();
+        Key key = new Key(wpt.getName(), Math.round(lat / latLonQuantum),
+            Math.round(lon / latLonQuantum), Math.round(ele / eleQuantum));
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            entries.put(key, new Entry(list.size(), wpt, lat, lon, ele));
+            list.add(wpt);
+            return true;
+        }
+        nDuplicates++;
+        switch(policy) {
+        case KEEP_LAST:
+            list.set(entry.index, wpt);
+            break;
+        case MERGE:
+            entry.merge(list.get(entry.index), wpt, lat, lon, ele);
+            break;
+        default:
+            break;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the hash table to free its memory. Waypoints added after this are
+     * not checked against those added before.
+     */
+    public void clear() {
+        entries = new HashMap<Key, Entry>();
+    }
+
+    /**
+     * @return The number of duplicates found, which were not added.
+     */
+    public int getDuplicateCount() {
+        return nDuplicates;
+    }
+
+    /**
+     * @return The policy.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * The name and quantized position of a waypoint.
+     */
+    private static class Key
+    {
+        private final String name;
+        private final long lat;
+        private final long lon;
+        private final long ele;
+
+        Key(String name, long lat, long lon, long ele) {
+            this.name = name;
+            this.lat = lat;
+            this.lon = lon;
+            this.ele = ele;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = (name == null ? 0 : name.hashCode());
+            hash = 31 * hash + lat;
+            hash = 31 * hash + lon;
+            hash = 31 * hash + ele;
+            return (int)(hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return lat == other.lat && lon == other.lon && ele == other.ele
+                && (name == null ? other.name == null : name.equals(other.name));
+        }
+    }
+
+    /**
+     * Where the first of a set of duplicates is in the list, and the sums used
+     * to merge them.
+     */
+    private static class Entry
+    {
+        final int index;
+        /** The scales of the first one, which the merged values keep. */
+        final int latScale;
+        final int lonScale;
+        int count = 1;
+        double latSum;
+        double lonSum;
+        double eleSum;
+
+        Entry(int index, WptType wpt, double lat, double lon, double ele) {
+            this.index = index;
+            latScale = wpt.getLat().scale();
+            lonScale = wpt.getLon().scale();
+            latSum = lat;
+            lonSum = lon;
+            eleSum = ele;
+        }
+
+        /**
+         * Merges a duplicate into the first one.
+         *
+         * @param first The first one, which is changed.
+         * @param wpt The duplicate.
+         * @param lat The latitude of the duplicate.
+         * @param lon The longitude of the duplicate.
+         * @param ele The elevation of the duplicate.
+         */
+        void merge(WptType first, WptType wpt, double lat, double lon,
+            double ele) {
+            count++;
+            latSum += lat;
+            lonSum += lon;
+            eleSum += ele;
+            first.setLat(GpslNumbers.toBigDecimal(latSum / count, latScale));
+            first.setLon(GpslNumbers.toBigDecimal(lonSum / count, lonScale));
+            first.setEle(GpslNumbers.toBigDecimal6(eleSum / count));
+            String symbol = first.getSym();
+            if(symbol == null || symbol.length() == 0) {
+                first.setSym(wpt.getSym());
+            }
+        }
+    }
+
+}
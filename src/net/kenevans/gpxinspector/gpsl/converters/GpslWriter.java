@@ -0,0 +1,600 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import net.kenevans.core.utils.Utils;
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.RteType;
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+
+/**
+ * Writes GPSL files. The lines are assembled in a reusable char buffer that is
+ * passed to the underlying Writer only when it fills, and the numbers are
+ * rendered directly into it. The output is the same as that of the original
+ * String.format-based save, %.6f for the coordinates and %.0f for the
+ * altitude in feet, except that the decimal separator is always a period, as
+ * GPSL readers expect, rather than that of the default locale.<br>
+ * <br>
+ * If there is a GpslOffsetResolver, each track that has a time is preceded by
+ * a comment line of the form #GMTOffset=value with the offset at the time of
+ * its first trackpoint that has one, and its times are written with that
+ * offset, so they are the local clock times even if the tracks were made at
+ * different offsets. Other GPSL readers ignore the comment and use the offset
+ * in the header.<br>
+ * <br>
+ * The Writer is not closed by this class. Call flush() when done.
+ */
+public class GpslWriter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Powers of ten used for the fixed-precision formats. */
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L,
+        100000L, 1000000L};
+
+    private final Writer out;
+    private final String ls;
+    private final char delimiter;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private GpslTimeEncoder timeEncoder = new GpslTimeEncoder(0);
+    /** The resolver for the offsets of the tracks or null for none. */
+    private GpslOffsetResolver offsetResolver;
+    /** The counts for GpslMetrics or null if they are not being kept. */
+    private GpslMetrics.Counts counts;
+
+    /**
+     * Constructor.
+     *
+     * @param out The Writer to write to. It should be buffered if it is not
+     *            efficient for large writes.
+     * @param ls The line separator.
+     * @param delimiter The delimiter.
+     */
+    public GpslWriter(Writer out, String ls, char delimiter) {
+        this.out = out;
+        this.ls = ls;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Writes a complete file for the given GpxType.
+     *
+     * @param gpxType The GpxType.
+     * @param offset The offset in hours used for the trackpoint times.
+     * @throws IOException
+     */
+    public void write(GpxType gpxType, double offset) throws IOException {
+        writeHeader(offset);
+
+        // Waypoints
+        if(gpxType.getWpt().size() > 0) {
+            writeSectionHeader("Waypoints", "Symbol");
+            for(WptType wpt : gpxType.getWpt()) {
+                writeWaypoint(wpt);
+            }
+        }
+
+        // Routes
+        if(gpxType.getRte().size() > 0) {
+            writeSectionHeader("Routes", "Symbol");
+            for(RteType rte : gpxType.getRte()) {
+                writeRoute(rte.getName());
+                for(WptType wpt : rte.getRtept()) {
+                    writeWaypoint(wpt);
+                }
+            }
+        }
+
+        // Tracks
+        if(gpxType.getTrk().size() > 0) {
+            writeSectionHeader("Tracks", "Time");
+            for(TrkType trk : gpxType.getTrk()) {
+                writeTrack(trk);
+            }
+        }
+    }
+
+    /**
+     * Writes the GPSLink ID, the time stamp, the delimiter, and the offset.
+     * The offset is also used for the trackpoints written after this.
+     *
+     * @param offset The offset in hours.
+     * @throws IOException
+     */
+    public void writeHeader(double offset) throws IOException {
+        long start = counts == null ? 0 : System.nanoTime();
+        setOffset(offset);
+        append(GpslConverter.GPSLINK_ID);
+        append(ls);
+        String timeStamp = Utils.timeStamp("MMM dd, yyyy hh:mm:ssa");
+        // Convert AM/PM
+        if(timeStamp.substring(21, 22).equalsIgnoreCase("P")) {
+            timeStamp = timeStamp.substring(0, 21) + "p";
+        } else {
+            timeStamp = timeStamp.substring(0, 21) + "a";
+        }
+        append("Saved ");
+        append(timeStamp);
+        append(ls);
+        append(GpslConverter.DELIMITER);
+        append('=');
+        append(delimiter);
+        append(ls);
+        // This prints e.g. -5.0 instead of -5, but leave it
+        append(GpslConverter.GMTOFFSET);
+        append('=');
+        append(Double.toString(offset));
+        append(ls);
+        if(counts != null) {
+            counts.lines += 4;
+            counts.headerNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Writes the blank line, the section name, and the column names that
+     * start a section.
+     *
+     * @param section The section name, e.g. Waypoints.
+     * @param lastColumn The name of the last column, Symbol or Time.
+     * @throws IOException
+     */
+    public void writeSectionHeader(String section, String lastColumn)
+        throws IOException {
+        append(ls);
+        append(section);
+        append(ls);
+        append("Type");
+        append(delimiter);
+        append("Name");
+        append(delimiter);
+        append("Latitude");
+        append(delimiter);
+        append("Longitude");
+        append(delimiter);
+        append("Alt");
+        append(delimiter);
+        append(lastColumn);
+        append(ls);
+        if(counts != null) {
+            counts.lines += 3;
+            counts.lineTypes[GpslTokenizer.LINE_BLANK]++;
+            counts.lineTypes[GpslTokenizer.LINE_OTHER] += 2;
+        }
+    }
+
+    /**
+     * Writes a W line for a waypoint or route point.
+     *
+     * @param wpt The waypoint.
+     * @throws IOException
+     */
+    public void writeWaypoint(WptType wpt) throws IOException {
+        writeWaypoint(wpt.getName(), wpt.getLat().doubleValue(), wpt.getLon()
+            .doubleValue(), wpt.getEle().doubleValue(), wpt.getSym());
+    }
+
+    /**
+     * Writes a W line for a waypoint or route point.
+     *
+     * @param name The name.
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @param symbol The symbol.
+     * @throws IOException
+     */
+    public void writeWaypoint(String name, double lat, double lon, double ele,
+        String symbol) throws IOException {
+        append('W');
+        append(delimiter);
+        append(String.valueOf(name));
+        writeCoordinates(lat, lon, ele);
+        append(String.valueOf(symbol));
+        append(ls);
+        count(GpslTokenizer.LINE_W);
+    }
+
+    /**
+     * Writes an R line.
+     *
+     * @param name The route name.
+     * @throws IOException
+     */
+    public void writeRoute(String name) throws IOException {
+        append('R');
+        append(delimiter);
+        append(String.valueOf(name));
+        append(ls);
+        count(GpslTokenizer.LINE_R);
+    }
+
+    /**
+     * Writes the H line and the trackpoints of a track, preceded by an offset
+     * comment if there is a GpslOffsetResolver.
+     *
+     * @param trk The track.
+     * @throws IOException
+     */
+    public void writeTrack(TrkType trk) throws IOException {
+        if(offsetResolver != null) {
+            writeTrackOffset(getFirstTime(trk));
+        }
+        writeTrackStart(trk.getName());
+        for(TrksegType seg : trk.getTrkseg()) {
+            List<WptType> trkpts = seg.getTrkpt();
+            if(trkpts instanceof GpslTrackpointList
+                && !((GpslTrackpointList)trkpts).isMaterialized()) {
+                // Write from the columns without making the WptType objects
+                GpslTrackpointList points = (GpslTrackpointList)trkpts;
+                for(int i = 0; i < points.size(); i++) {
+                    writeTrackpoint(i == 0, points.getLatitude(i), points
+                        .getLongitude(i), points.getElevation(i), points
+                        .getEpochSeconds(i));
+                }
+                continue;
+            }
+            boolean first = true;
+            for(WptType wpt : trkpts) {
+                writeTrackpoint(first, wpt);
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Finds the time of the first trackpoint of a track that has one.
+     *
+     * @param trk The track.
+     * @return The UTC time in seconds since the epoch or
+     *         GpslTimeDecoder.NO_TIME if no trackpoint has one.
+     */
+    private static long getFirstTime(TrkType trk) {
+        for(TrksegType seg : trk.getTrkseg()) {
+            List<WptType> trkpts = seg.getTrkpt();
+            if(trkpts instanceof GpslTrackpointList
+                && !((GpslTrackpointList)trkpts).isMaterialized()) {
+                // This avoids making the WptType objects
+                GpslTrackpointList points = (GpslTrackpointList)trkpts;
+                for(int i = 0; i < points.size(); i++) {
+                    long time = points.getEpochSeconds(i);
+                    if(time != GpslTimeDecoder.NO_TIME) {
+                        return time;
+                    }
+                }
+                continue;
+            }
+            for(WptType wpt : trkpts) {
+                if(wpt.getTime() != null) {
+                    return GpslTimeDecoder.floorDiv(wpt.getTime()
+                        .toGregorianCalendar().getTimeInMillis(), 1000);
+                }
+            }
+        }
+        return GpslTimeDecoder.NO_TIME;
+    }
+
+    /**
+     * Writes the offset comment for a track and uses the offset for the
+     * trackpoints written after it, if there is a GpslOffsetResolver and the
+     * track has a time. Call this before writeTrackStart.
+     *
+     * @param time The time of the first trackpoint of the track that has one,
+     *            as UTC seconds since the epoch, or GpslTimeDecoder.NO_TIME if
+     *            there is none.
+     * @throws IOException
+     */
+    public void writeTrackOffset(long time) throws IOException {
+        if(offsetResolver == null || time == GpslTimeDecoder.NO_TIME) {
+            return;
+        }
+        double offset = offsetResolver.getOffset(time);
+        if(offset != timeEncoder.getOffset()) {
+            setOffset(offset);
+        }
+        append('#');
+        append(GpslConverter.GMTOFFSET);
+        append('=');
+        append(Double.toString(offset));
+        append(ls);
+        count(GpslTokenizer.LINE_COMMENT);
+    }
+
+    /**
+     * Writes an H line.
+     *
+     * @param name The track name.
+     * @throws IOException
+     */
+    public void writeTrackStart(String name) throws IOException {
+        append('H');
+        append(delimiter);
+        append(String.valueOf(name));
+        append(ls);
+        count(GpslTokenizer.LINE_H);
+    }
+
+    /**
+     * Writes a T line.
+     *
+     * @param startSegment Whether the point starts a segment, in which case it
+     *            is named Start rather than Cont.
+     * @param wpt The trackpoint.
+     * @throws IOException
+     */
+    public void writeTrackpoint(boolean startSegment, WptType wpt)
+        throws IOException {
+        writeTrackpoint(startSegment, wpt.getLat().doubleValue(), wpt
+            .getLon().doubleValue(), wpt.getEle().doubleValue(), wpt.getTime());
+    }
+
+    /**
+     * Writes a T line.
+     *
+     * @param startSegment Whether the point starts a segment, in which case it
+     *            is named Start rather than Cont.
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @param xgcal The time or null if there is none.
+     * @throws IOException
+     */
+    public void writeTrackpoint(boolean startSegment, double lat, double lon,
+        double ele, XMLGregorianCalendar xgcal) throws IOException {
+        append('T');
+        append(delimiter);
+        append(startSegment ? "Start" : "Cont");
+        writeCoordinates(lat, lon, ele);
+        if(xgcal == null) {
+            append(GpslConverter.GARMINTIME0);
+        } else {
+            if(pos + GpslTimeEncoder.MAX_LENGTH > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            if(counts != null && counts.sampleTime()) {
+                long start = System.nanoTime();
+                pos = timeEncoder.encode(xgcal, buf, pos);
+                counts.addTimeSample(System.nanoTime() - start);
+            } else {
+                pos = timeEncoder.encode(xgcal, buf, pos);
+            }
+        }
+        append(ls);
+        count(GpslTokenizer.LINE_T);
+    }
+
+    /**
+     * Writes a T line.
+     *
+     * @param startSegment Whether the point starts a segment, in which case it
+     *            is named Start rather than Cont.
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     * @throws IOException
+     */
+    public void writeTrackpoint(boolean startSegment, double lat, double lon,
+        double ele, long time) throws IOException {
+        append('T');
+        append(delimiter);
+        append(startSegment ? "Start" : "Cont");
+        writeCoordinates(lat, lon, ele);
+        if(time == GpslTimeDecoder.NO_TIME) {
+            append(GpslConverter.GARMINTIME0);
+        } else {
+            if(pos + GpslTimeEncoder.MAX_LENGTH > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            if(counts != null && counts.sampleTime()) {
+                long start = System.nanoTime();
+                pos = timeEncoder.encodeEpochSeconds(time, buf, pos);
+                counts.addTimeSample(System.nanoTime() - start);
+            } else {
+                pos = timeEncoder.encodeEpochSeconds(time, buf, pos);
+            }
+        }
+        append(ls);
+        count(GpslTokenizer.LINE_T);
+    }
+
+    /**
+     * Sets the offset used for the trackpoint times without writing the
+     * header.
+     *
+     * @param offset The offset in hours.
+     */
+    void setOffset(double offset) {
+        timeEncoder = new GpslTimeEncoder(offset);
+    }
+
+    /**
+     * Makes a GpslWriter that formats lines the same way as this one, with the
+     * same line separator, delimiter, and offset, so parts of a file can be
+     * formatted separately and written with writeFormatted.
+     *
+     * @param out The Writer for the part.
+     * @return The GpslWriter.
+     */
+    GpslWriter newPartWriter(Writer out) {
+        GpslWriter writer = new GpslWriter(out, ls, delimiter);
+        writer.setOffset(timeEncoder.getOffset());
+        writer.setOffsetResolver(offsetResolver);
+        return writer;
+    }
+
+    /**
+     * Writes characters formatted by a GpslWriter from newPartWriter.
+     *
+     * @param part The characters.
+     * @throws IOException
+     */
+    void writeFormatted(CharArrayWriter part) throws IOException {
+        flushBuffer();
+        part.writeTo(out);
+    }
+
+    /**
+     * Counts a record line if the counts are being kept.
+     *
+     * @param lineType The GpslTokenizer line type.
+     */
+    private void count(int lineType) {
+        if(counts != null) {
+            counts.lines++;
+            counts.lineTypes[lineType]++;
+        }
+    }
+
+    /**
+     * @param counts The counts for GpslMetrics or null to not keep them.
+     */
+    void setCounts(GpslMetrics.Counts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * @return The counts for GpslMetrics or null if they are not being kept.
+     */
+    GpslMetrics.Counts getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return The resolver for the offsets of the tracks or null if the
+     *         offset in the header is used for all of them.
+     */
+    public GpslOffsetResolver getOffsetResolver() {
+        return offsetResolver;
+    }
+
+    /**
+     * @param offsetResolver The resolver for the offsets of the tracks or null
+     *            to use the offset in the header for all of them.
+     */
+    public void setOffsetResolver(GpslOffsetResolver offsetResolver) {
+        this.offsetResolver = offsetResolver;
+    }
+
+    /**
+     * Writes the latitude, longitude, and altitude in feet, each preceded by
+     * the delimiter and the last followed by it.
+     *
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param ele The elevation in meters.
+     * @throws IOException
+     */
+    private void writeCoordinates(double lat, double lon, double ele)
+        throws IOException {
+        append(delimiter);
+        appendFixed(lat, 6);
+        append(delimiter);
+        appendFixed(lon, 6);
+        append(delimiter);
+        appendFixed(ele * GpslConverter.M2FT, 0);
+        append(delimiter);
+    }
+
+    /**
+     * Appends a value with a fixed number of decimal places, the same as
+     * %.nf. Values the fast path cannot decide use a Formatter.
+     *
+     * @param value The value.
+     * @param decimals The number of decimal places, 0-6.
+     * @throws IOException
+     */
+    private void appendFixed(double value, int decimals) throws IOException {
+        // The Formatter prints a minus sign for -0.0 and for negative values
+        // that round to zero
+        boolean negative = Double.compare(value, 0.0) < 0;
+        long scaled = GpslNumbers.round(negative ? -value : value,
+            POW10[decimals]);
+        if(scaled == Long.MIN_VALUE) {
+            append(String.format(Locale.US, "%." + decimals + "f", value));
+            return;
+        }
+        if(pos + 24 > BUFFER_SIZE) {
+            flushBuffer();
+        }
+        if(negative) {
+            buf[pos++] = '-';
+        }
+        long intPart = scaled / POW10[decimals];
+        long fraction = scaled - intPart * POW10[decimals];
+        appendDigits(intPart);
+        if(decimals > 0) {
+            buf[pos++] = '.';
+            for(int i = pos + decimals - 1; i >= pos; i--) {
+                buf[i] = (char)('0' + fraction % 10);
+                fraction /= 10;
+            }
+            pos += decimals;
+        }
+    }
+
+    /**
+     * Appends the digits of a non-negative value. There must be room for 19
+     * characters.
+     *
+     * @param value The value.
+     */
+    private void appendDigits(long value) {
+        int n = 1;
+        for(long v = value; v >= 10; v /= 10) {
+            n++;
+        }
+        for(int i = pos + n - 1; i >= pos; i--) {
+            buf[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+        pos += n;
+    }
+
+    private void append(char c) throws IOException {
+        if(pos == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        buf[pos++] = c;
+    }
+
+    private void append(String s) throws IOException {
+        int len = s.length();
+        if(pos + len > BUFFER_SIZE) {
+            flushBuffer();
+            if(len > BUFFER_SIZE) {
+                out.write(s);
+                return;
+            }
+        }
+        s.getChars(0, len, buf, pos);
+        pos += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if(pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * Writes the buffered characters and flushes the Writer.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+}
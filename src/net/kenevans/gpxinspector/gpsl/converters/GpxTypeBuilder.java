@@ -0,0 +1,368 @@
+package net.kenevans.gpxinspector.gpsl.converters;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import net.kenevans.gpxtrackpointextensionsv1.GpxType;
+import net.kenevans.gpxtrackpointextensionsv1.RteType;
+import net.kenevans.gpxtrackpointextensionsv1.TrkType;
+import net.kenevans.gpxtrackpointextensionsv1.TrksegType;
+import net.kenevans.gpxtrackpointextensionsv1.WptType;
+import net.kenevans.gpxtrackpointextensionsv1.parser.GPXParser;
+
+/**
+ * A GpslHandler that builds a GpxType. This is what GpslConverter.parse uses.
+ * If the tracks are columnar, the trackpoints are stored in primitive columns
+ * and the WptType objects are only made when they are asked for.
+ */
+public class GpxTypeBuilder implements GpslHandler
+{
+    /** The creator of the GpxType. */
+    static final String CREATOR = "GPSL Converter for GPX Inspector";
+
+    private GpxType gpx;
+    private RteType rteType;
+    private TrkType trkType;
+    private TrksegType trksegType;
+    /** The trackpoints of the current segment when they are columnar. */
+    private GpslTrackpointList trackpoints;
+    private boolean columnarTracks;
+    /** The index used to find duplicate waypoints or null for none. */
+    private GpslWaypointIndex waypointIndex;
+    /** The spatial index of the points or null for none. */
+    private GpslSpatialIndex spatialIndex;
+    /** The handler whose track statistics the tracks carry or null. */
+    private GpslStatisticsHandler statisticsHandler;
+    /** The scales of the coordinates, see GpslNumbers. */
+    private int latScale = GpslNumbers.DEFAULT_SCALE;
+    private int lonScale = GpslNumbers.DEFAULT_SCALE;
+
+    /**
+     * Constructor.
+     */
+    public GpxTypeBuilder() {
+        gpx = new GpxType();
+        // These will be overwritten when saving as .gpx
+        gpx.setCreator(CREATOR);
+        GPXParser.setMetaDataTime(gpx);
+    }
+
+    @Override
+    public void onHeader(char delimiter, String offset) {
+    }
+
+    @Override
+    public void onWaypoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        if(addWaypoint(newWaypoint(name, lat, lon, ele, symbol, latScale,
+            lonScale))
+            && spatialIndex != null) {
+            spatialIndex.add(GpslSpatialIndex.Kind.WAYPOINT, -1, -1, gpx
+                .getWpt().size() - 1, lat, lon);
+        }
+    }
+
+    /**
+     * Adds a waypoint to the GpxType, applying the policy of the
+     * GpslWaypointIndex, if any.
+     * 
+     * @param wpt The waypoint.
+     * @return Whether the waypoint was added rather than dropped as a
+     *         duplicate.
+     */
+    boolean addWaypoint(WptType wpt) {
+        if(waypointIndex != null) {
+            return waypointIndex.add(gpx.getWpt(), wpt);
+        }
+        gpx.getWpt().add(wpt);
+        return true;
+    }
+
+    @Override
+    public void onRouteStart(String name) {
+        rteType = newRoute(name);
+        gpx.getRte().add(rteType);
+    }
+
+    @Override
+    public void onRoutepoint(String name, double lat, double lon, double ele,
+        String symbol) {
+        rteType.getRtept().add(newWaypoint(name, lat, lon, ele, symbol,
+            latScale, lonScale));
+        if(spatialIndex != null) {
+            spatialIndex.add(GpslSpatialIndex.Kind.ROUTEPOINT, gpx.getRte()
+                .size() - 1, -1, rteType.getRtept().size() - 1, lat, lon);
+        }
+    }
+
+    @Override
+    public void onRouteEnd() {
+        rteType = null;
+    }
+
+    @Override
+    public void onTrackStart(String name) {
+        if(statisticsHandler != null) {
+            trkType = new GpslStatisticsTrkType(name, statisticsHandler
+                .getTrackStatistics());
+        } else {
+            trkType = newTrack(name);
+        }
+        gpx.getTrk().add(trkType);
+    }
+
+    @Override
+    public void onSegmentStart() {
+        endSegment();
+        trksegType = newSegment();
+        if(columnarTracks) {
+            trackpoints = ((GpslTrksegType)trksegType).getTrackpoints();
+        }
+        trkType.getTrkseg().add(trksegType);
+    }
+
+    @Override
+    public void onTrackpoint(double lat, double lon, double ele, long time) {
+        if(trackpoints != null) {
+            trackpoints.add(lat, lon, ele, time, latScale, lonScale);
+        } else {
+            trksegType.getTrkpt().add(newTrackpoint(lat, lon, ele, time,
+                latScale, lonScale));
+        }
+        if(spatialIndex != null) {
+            spatialIndex.add(GpslSpatialIndex.Kind.TRACKPOINT, gpx.getTrk()
+                .size() - 1, trkType.getTrkseg().size() - 1, trksegType
+                .getTrkpt().size() - 1, lat, lon);
+        }
+    }
+
+    @Override
+    public void onCoordinateScales(int latScale, int lonScale) {
+        this.latScale = latScale;
+        this.lonScale = lonScale;
+    }
+
+    @Override
+    public void onTrackEnd() {
+        endSegment();
+        trkType = null;
+        trksegType = null;
+    }
+
+    private void endSegment() {
+        if(trackpoints != null) {
+            trackpoints.trimToSize();
+            trackpoints = null;
+        }
+    }
+
+    @Override
+    public void onWarning(long lineNum, String message) {
+    }
+
+    @Override
+    public void onEnd() {
+        if(waypointIndex != null) {
+            waypointIndex.clear();
+        }
+        if(spatialIndex != null) {
+            spatialIndex.trimToSize();
+        }
+    }
+
+    /**
+     * Makes a RteType.
+     * 
+     * @param name
+     * @return The RteType.
+     */
+    public static RteType newRoute(String name) {
+        RteType rteType = new RteType();
+        rteType.setName(name);
+        return rteType;
+    }
+
+    /**
+     * Makes a TrkType.
+     * 
+     * @param name
+     * @return The TrkType.
+     */
+    public static TrkType newTrack(String name) {
+        TrkType trkType = new TrkType();
+        trkType.setName(name);
+        trkType.setDesc(name);
+        return trkType;
+    }
+
+    /**
+     * Makes a TrksegType, which is a GpslTrksegType if the tracks are
+     * columnar.
+     * 
+     * @return The TrksegType.
+     */
+    public TrksegType newSegment() {
+        return columnarTracks ? new GpslTrksegType() : new TrksegType();
+    }
+
+    /**
+     * Makes a WptType for a waypoint or route point with the latitude and
+     * longitude rounded to 6 decimal places.
+     * 
+     * @param name
+     * @param lat
+     * @param lon
+     * @param ele The elevation in meters.
+     * @param symbol
+     * @return The WptType.
+     */
+    public static WptType newWaypoint(String name, double lat, double lon,
+        double ele, String symbol) {
+        return newWaypoint(name, lat, lon, ele, symbol,
+            GpslNumbers.DEFAULT_SCALE, GpslNumbers.DEFAULT_SCALE);
+    }
+
+    /**
+     * Makes a WptType for a waypoint or route point.
+     * 
+     * @param name
+     * @param lat
+     * @param lon
+     * @param ele The elevation in meters.
+     * @param symbol
+     * @param latScale The scale of the latitude, see
+     *            GpslHandler.onCoordinateScales.
+     * @param lonScale The scale of the longitude.
+     * @return The WptType.
+     */
+    public static WptType newWaypoint(String name, double lat, double lon,
+        double ele, String symbol, int latScale, int lonScale) {
+        WptType wptType = new WptType();
+        wptType.setName(name);
+        wptType.setDesc(name);
+        wptType.setLat(GpslNumbers.toBigDecimal(lat, latScale));
+        wptType.setLon(GpslNumbers.toBigDecimal(lon, lonScale));
+        wptType.setEle(GpslNumbers.toBigDecimal6(ele));
+        wptType.setSym(symbol);
+        return wptType;
+    }
+
+    /**
+     * Makes a WptType for a trackpoint with the latitude and longitude
+     * rounded to 6 decimal places.
+     * 
+     * @param lat
+     * @param lon
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     * @return The WptType.
+     */
+    public static WptType newTrackpoint(double lat, double lon, double ele,
+        long time) {
+        return newTrackpoint(lat, lon, ele, time, GpslNumbers.DEFAULT_SCALE,
+            GpslNumbers.DEFAULT_SCALE);
+    }
+
+    /**
+     * Makes a WptType for a trackpoint.
+     * 
+     * @param lat
+     * @param lon
+     * @param ele The elevation in meters.
+     * @param time The UTC time in seconds since the epoch or
+     *            GpslTimeDecoder.NO_TIME.
+     * @param latScale The scale of the latitude, see
+     *            GpslHandler.onCoordinateScales.
+     * @param lonScale The scale of the longitude.
+     * @return The WptType.
+     */
+    public static WptType newTrackpoint(double lat, double lon, double ele,
+        long time, int latScale, int lonScale) {
+        WptType wptType = new WptType();
+        wptType.setLat(GpslNumbers.toBigDecimal(lat, latScale));
+        wptType.setLon(GpslNumbers.toBigDecimal(lon, lonScale));
+        wptType.setEle(GpslNumbers.toBigDecimal6(ele));
+        XMLGregorianCalendar xgcal = GpslTimeDecoder
+            .toXMLGregorianCalendar(time);
+        if(xgcal != null) {
+            wptType.setTime(xgcal);
+        }
+        return wptType;
+    }
+
+    /**
+     * @return The GpxType that has been built.
+     */
+    public GpxType getGpx() {
+        return gpx;
+    }
+
+    /**
+     * @return Whether the trackpoints are stored in columns.
+     */
+    public boolean isColumnarTracks() {
+        return columnarTracks;
+    }
+
+    /**
+     * @param columnarTracks Whether the trackpoints are stored in columns, in
+     *            GpslTrksegType segments, rather than as WptType objects.
+     *            This should be set before parsing.
+     */
+    public void setColumnarTracks(boolean columnarTracks) {
+        this.columnarTracks = columnarTracks;
+    }
+
+    /**
+     * @return The index used to find duplicate waypoints or null if there is
+     *         none.
+     */
+    public GpslWaypointIndex getWaypointIndex() {
+        return waypointIndex;
+    }
+
+    /**
+     * @param waypointIndex The index used to find duplicate waypoints or null
+     *            for none. This should be set before parsing. The index is
+     *            cleared at the end of the parse, keeping the count of
+     *            duplicates.
+     */
+    public void setWaypointIndex(GpslWaypointIndex waypointIndex) {
+        this.waypointIndex = waypointIndex;
+    }
+
+    /**
+     * @return The spatial index of the points or null if there is none.
+     */
+    public GpslSpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * @param spatialIndex The spatial index to add the points to as they are
+     *            built or null for none. This should be set before parsing.
+     */
+    public void setSpatialIndex(GpslSpatialIndex spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    /**
+     * @return The handler whose track statistics the tracks carry or null if
+     *         there is none.
+     */
+    public GpslStatisticsHandler getStatisticsHandler() {
+        return statisticsHandler;
+    }
+
+    /**
+     * @param statisticsHandler The handler whose track statistics the tracks
+     *            carry, as GpslStatisticsTrkType objects, or null for none.
+     *            This should be set before parsing, and the handler must be
+     *            called before this builder, as by a GpslTeeHandler with it
+     *            first.
+     */
+    public void setStatisticsHandler(GpslStatisticsHandler statisticsHandler) {
+        this.statisticsHandler = statisticsHandler;
+    }
+
+}